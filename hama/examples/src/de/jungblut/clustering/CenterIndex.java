@@ -0,0 +1,301 @@
+package de.jungblut.clustering;
+
+import java.util.Random;
+
+import de.jungblut.distance.DistanceMeasurer;
+import de.jungblut.distance.EuclidianDistance;
+import de.jungblut.math.DoubleVector;
+
+/**
+ * Binary space partitioning tree over the centers for exact nearest center
+ * queries, rebuilt after each center update. <br/>
+ * A KD_TREE splits at the median of the coordinate with the largest spread.
+ * Its pruning requires that the distance is at least the absolute difference
+ * of any single coordinate, which holds for Minkowski distances only. A
+ * RP_TREE splits at the median of the projection onto a random direction and
+ * requires the {@link EuclidianDistance}. See
+ * {@link #isSupported(Type, DistanceMeasurer)}. <br/>
+ * Only subtrees farther away than the best center found so far are skipped,
+ * so the result equals the brute force search (lowest index wins on ties).
+ *
+ */
+public final class CenterIndex {
+
+  public enum Type {
+    KD_TREE, RP_TREE
+  }
+
+  private static final int LEAF_SIZE = 8;
+  // relative safety margin for floating point rounding of the projections
+  private static final double BOUND_TOLERANCE = 1e-10;
+
+  private final Type type;
+  private final DistanceMeasurer distanceMeasurer;
+  private final Random random;
+
+  private double[][] centers;
+  private int[] order;
+  private double[] projections;
+
+  // nodes of the tree, the root is node 0
+  private int nodeCount;
+  private int[] nodeStart;
+  private int[] nodeEnd;
+  private int[] left;
+  private int[] right;
+  private int[] splitAxis;
+  private double[] splitValue;
+  private double[][] directions;
+
+  public CenterIndex(Type type, DistanceMeasurer distanceMeasurer, long seed) {
+    if (!isSupported(type, distanceMeasurer)) {
+      throw new IllegalArgumentException(type + " is not supported for "
+          + distanceMeasurer.getClass().getSimpleName());
+    }
+    this.type = type;
+    this.distanceMeasurer = distanceMeasurer;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * @return the index type or null for "none" or null
+   */
+  public static Type parseType(String value) {
+    if (value == null || value.equalsIgnoreCase("none")) {
+      return null;
+    } else if (value.equalsIgnoreCase("kdtree")) {
+      return Type.KD_TREE;
+    } else if (value.equalsIgnoreCase("rptree")) {
+      return Type.RP_TREE;
+    }
+    throw new IllegalArgumentException("Unknown center index: " + value);
+  }
+
+  /**
+   * The kd-tree pruning is only valid for Minkowski distances and the
+   * projection bounds of the rp-tree only for the euclidean distance. The
+   * {@link EuclidianDistance} is the only known Minkowski distance, other
+   * measurers have to use the brute force search.
+   * 
+   * @return true if the index returns exact results for the given measurer
+   */
+  public static boolean isSupported(Type type,
+      DistanceMeasurer distanceMeasurer) {
+    return distanceMeasurer instanceof EuclidianDistance;
+  }
+
+  /**
+   * Has to be called after each center update before any query.
+   */
+  public void build(DoubleVector[] newCenters) {
+    final int centerCount = newCenters.length;
+    if (centers == null || centers.length != centerCount) {
+      int maxNodes = Math.max(1, 2 * centerCount);
+      order = new int[centerCount];
+      projections = new double[centerCount];
+      nodeStart = new int[maxNodes];
+      nodeEnd = new int[maxNodes];
+      left = new int[maxNodes];
+      right = new int[maxNodes];
+      splitAxis = new int[maxNodes];
+      splitValue = new double[maxNodes];
+      directions = new double[maxNodes][];
+    }
+    centers = new double[centerCount][];
+    for (int i = 0; i < centerCount; i++) {
+      centers[i] = newCenters[i].toArray().clone();
+      order[i] = i;
+    }
+    nodeCount = 0;
+    buildNode(0, centerCount);
+  }
+
+  private int buildNode(int start, int end) {
+    final int node = nodeCount++;
+    nodeStart[node] = start;
+    nodeEnd[node] = end;
+    left[node] = -1;
+    right[node] = -1;
+    if (end - start <= LEAF_SIZE) {
+      return node;
+    }
+
+    if (type == Type.KD_TREE) {
+      splitAxis[node] = getWidestAxis(start, end);
+    } else {
+      directions[node] = getRandomDirection(centers[0].length);
+    }
+    double min = Double.MAX_VALUE;
+    double max = -Double.MAX_VALUE;
+    for (int i = start; i < end; i++) {
+      final double projection = project(node, centers[order[i]]);
+      projections[order[i]] = projection;
+      min = Math.min(min, projection);
+      max = Math.max(max, projection);
+    }
+    // all centers are equal in this direction
+    if (!(max > min)) {
+      return node;
+    }
+
+    final int mid = (start + end) >>> 1;
+    select(start, end - 1, mid);
+    splitValue[node] = projections[order[mid]];
+    left[node] = buildNode(start, mid);
+    right[node] = buildNode(mid, end);
+    return node;
+  }
+
+  private int getWidestAxis(int start, int end) {
+    int widestAxis = 0;
+    double widestSpread = -1;
+    for (int j = 0; j < centers[0].length; j++) {
+      double min = Double.MAX_VALUE;
+      double max = -Double.MAX_VALUE;
+      for (int i = start; i < end; i++) {
+        min = Math.min(min, centers[order[i]][j]);
+        max = Math.max(max, centers[order[i]][j]);
+      }
+      if (max - min > widestSpread) {
+        widestSpread = max - min;
+        widestAxis = j;
+      }
+    }
+    return widestAxis;
+  }
+
+  private double[] getRandomDirection(int dimension) {
+    double[] direction = new double[dimension];
+    double norm = 0;
+    for (int j = 0; j < dimension; j++) {
+      direction[j] = random.nextGaussian();
+      norm += direction[j] * direction[j];
+    }
+    norm = Math.sqrt(norm);
+    for (int j = 0; j < dimension; j++) {
+      direction[j] /= norm;
+    }
+    return direction;
+  }
+
+  private double project(int node, double[] vector) {
+    if (type == Type.KD_TREE) {
+      return vector[splitAxis[node]];
+    }
+    double projection = 0;
+    for (int j = 0; j < vector.length; j++) {
+      projection += vector[j] * directions[node][j];
+    }
+    return projection;
+  }
+
+  // moves the k-th smallest projection of order[from..to] to k
+  private void select(int from, int to, int k) {
+    while (from < to) {
+      final double pivot = projections[order[(from + to) >>> 1]];
+      int i = from;
+      int j = to;
+      while (i <= j) {
+        while (projections[order[i]] < pivot) {
+          i++;
+        }
+        while (projections[order[j]] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          final int tmp = order[i];
+          order[i] = order[j];
+          order[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        to = j;
+      } else if (k >= i) {
+        from = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  public int getNearestCenter(double[] point) {
+    final Query query = new Query(false);
+    search(0, point, query);
+    return query.getBest();
+  }
+
+  /**
+   * Searches the nearest and the second nearest center.
+   *
+   * @param distances receives the distance to the nearest center at index 0
+   *          and to the second nearest at index 1
+   * @return the nearest center
+   */
+  public int getNearestCenters(double[] point, double[] distances) {
+    final Query query = new Query(true);
+    search(0, point, query);
+    distances[0] = query.bestDistance;
+    distances[1] = query.secondDistance;
+    return query.getBest();
+  }
+
+  private void search(int node, double[] point, Query query) {
+    if (left[node] < 0) {
+      for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+        final int center = order[i];
+        query.offer(center,
+            distanceMeasurer.measureDistance(centers[center], point));
+      }
+      return;
+    }
+
+    final double projection = project(node, point);
+    final double diff = projection - splitValue[node];
+    search((diff < 0) ? left[node] : right[node], point, query);
+
+    // distance to the splitting hyperplane
+    final double bound = Math.abs(diff) - BOUND_TOLERANCE
+        * (Math.abs(projection) + Math.abs(splitValue[node]));
+    if (bound <= query.getWorstDistance()) {
+      search((diff < 0) ? right[node] : left[node], point, query);
+    }
+  }
+
+  // the best two centers ordered by distance and index
+  private static final class Query {
+    private final boolean second;
+    private int best = -1;
+    private double bestDistance = Double.MAX_VALUE;
+    private int secondBest = -1;
+    private double secondDistance = Double.MAX_VALUE;
+
+    Query(boolean second) {
+      this.second = second;
+    }
+
+    void offer(int center, double distance) {
+      if (distance < bestDistance
+          || (distance == bestDistance && center < best)) {
+        secondBest = best;
+        secondDistance = bestDistance;
+        best = center;
+        bestDistance = distance;
+      } else if (distance < secondDistance
+          || (distance == secondDistance && center < secondBest)) {
+        secondBest = center;
+        secondDistance = distance;
+      }
+    }
+
+    double getWorstDistance() {
+      return second ? secondDistance : bestDistance;
+    }
+
+    int getBest() {
+      return (best < 0) ? 0 : best;
+    }
+  }
+
+}
@@ -2,6 +2,7 @@ package de.jungblut.clustering;
 
 import gnu.trove.map.hash.TIntObjectHashMap;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -49,6 +50,11 @@ public final class KMeansBSP
   private static final String CENTER_OUT_PATH = "center.out.path";
   private static final String MAX_ITERATIONS_KEY = "k.means.max.iterations";
   private static final String CACHING_ENABLED_KEY = "k.means.caching.enabled";
+  private static final String DISK_CACHING_KEY = "k.means.caching.disk";
+  private static final String DISK_CACHING_DIR_KEY = "k.means.caching.disk.dir";
+  private static final String PRUNING_ENABLED_KEY = "k.means.pruning.enabled";
+  private static final String REDUCE_CENTERS_KEY = "k.means.reduce.centers";
+  private static final String CENTER_INDEX_KEY = "k.means.center.index";
   private static final String DISTANCE_MEASURE_CLASS = "distance.measure.class";
   private static final String CENTER_IN_PATH = "center.in.path";
 
@@ -57,10 +63,20 @@ public final class KMeansBSP
   private DoubleVector[] centers;
   // simple cache to speed up computation, because the algorithm is disk based
   private List<DoubleVector> cache;
+  // memory mapped local file instead of the heap cache, null until written
+  private boolean diskCachingEnabled;
+  private MappedDoubleVectorCache diskCache;
   // numbers of maximum iterations to do
   private int maxIterations;
   // our distance measurement
   private DistanceMeasurer distanceMeasurer;
+  // triangle inequality bounds per cached vector, null if disabled
+  private boolean pruningEnabled;
+  private TriangleInequalityPruning pruning;
+  // tree over the centers for large k, rebuilt after each update
+  private CenterIndex centerIndex;
+  // reduce center i on peer (i mod numPeers) instead of on all peers
+  private boolean reduceCenters;
   private Configuration conf;
 
   @Override
@@ -111,10 +127,41 @@ public final class KMeansBSP
     }
 
     maxIterations = peer.getConfiguration().getInt(MAX_ITERATIONS_KEY, -1);
+    reduceCenters = peer.getConfiguration().getBoolean(REDUCE_CENTERS_KEY,
+        false);
+    // spill the vectors to a local file if they do not fit into ram
+    diskCachingEnabled = peer.getConfiguration().getBoolean(DISK_CACHING_KEY,
+        false);
     // enable caching to store vectors in ram to get additional speed
-    if (peer.getConfiguration().getBoolean(CACHING_ENABLED_KEY, true)) {
+    if (!diskCachingEnabled
+        && peer.getConfiguration().getBoolean(CACHING_ENABLED_KEY, true)) {
       cache = new ArrayList<DoubleVector>();
     }
+    // the bounds are stored per cached vector and require a metric
+    if (peer.getConfiguration().getBoolean(PRUNING_ENABLED_KEY, false)) {
+      if (cache == null && !diskCachingEnabled) {
+        LOG.warn(PRUNING_ENABLED_KEY + " requires " + CACHING_ENABLED_KEY
+            + ", pruning is disabled!");
+      } else if (!(distanceMeasurer instanceof EuclidianDistance)) {
+        LOG.warn(PRUNING_ENABLED_KEY + " is only supported for "
+            + EuclidianDistance.class.getSimpleName()
+            + ", pruning is disabled!");
+      } else {
+        pruningEnabled = true;
+      }
+    }
+    // the kd-tree needs a Minkowski distance, the rp-tree is euclidean
+    CenterIndex.Type indexType = CenterIndex.parseType(peer.getConfiguration()
+        .get(CENTER_INDEX_KEY));
+    if (indexType != null
+        && !CenterIndex.isSupported(indexType, distanceMeasurer)) {
+      LOG.warn(indexType + " is only supported for "
+          + EuclidianDistance.class.getSimpleName()
+          + ", the center index is disabled!");
+    } else if (indexType != null) {
+      centerIndex = new CenterIndex(indexType, distanceMeasurer,
+          peer.getPeerIndex());
+    }
   }
 
   @Override
@@ -122,24 +169,71 @@ public final class KMeansBSP
       BSPPeer<VectorWritable, NullWritable, IntWritable, VectorWritable, CenterMessage> peer)
       throws IOException, InterruptedException, SyncException {
     long converged;
+    int iterations = 0;
     while (true) {
       assignCenters(peer);
       peer.sync();
+      if (reduceCenters) {
+        // second superstep: the owners broadcast their reduced centers
+        reduceOwnedCenters(peer);
+        peer.sync();
+      }
       converged = updateCenters(peer);
+      iterations++;
       peer.reopenInput();
       if (converged == 0)
         break;
-      if (maxIterations > 0 && maxIterations < peer.getSuperstepCount())
+      if (maxIterations > 0 && maxIterations < iterations)
         break;
     }
     LOG.info("Finished! Writing the assignments...");
     recalculateAssignmentsAndWrite(peer);
+    if (diskCache != null) {
+      diskCache.close();
+    }
     LOG.info("Done.");
   }
 
+  /**
+   * The owner of a center reduces the partial sums and broadcasts the changed
+   * center, which is then received as a sum of a single vector.
+   */
+  private void reduceOwnedCenters(
+      BSPPeer<VectorWritable, NullWritable, IntWritable, VectorWritable, CenterMessage> peer)
+      throws IOException {
+    DoubleVector[] msgCenters = receiveCenters(peer);
+    for (int i = 0; i < msgCenters.length; i++) {
+      if (msgCenters[i] != null
+          && centers[i].subtract(msgCenters[i]).abs().sum() > 0.0d) {
+        for (String peerName : peer.getAllPeerNames()) {
+          peer.send(peerName, new CenterMessage(i, 1, msgCenters[i]));
+        }
+      }
+    }
+  }
+
   private long updateCenters(
       BSPPeer<VectorWritable, NullWritable, IntWritable, VectorWritable, CenterMessage> peer)
       throws IOException {
+    DoubleVector[] msgCenters = receiveCenters(peer);
+    // finally check for convergence by the absolute difference
+    long convergedCounter = 0L;
+    for (int i = 0; i < msgCenters.length; i++) {
+      final DoubleVector oldCenter = centers[i];
+      if (msgCenters[i] != null) {
+        double calculateError = oldCenter.subtract(msgCenters[i]).abs().sum();
+        if (calculateError > 0.0d) {
+          centers[i] = msgCenters[i];
+          convergedCounter++;
+        }
+      }
+    }
+    return convergedCounter;
+  }
+
+  private DoubleVector[] receiveCenters(
+      BSPPeer<VectorWritable, NullWritable, IntWritable, VectorWritable, CenterMessage> peer)
+      throws IOException {
     // this is the update step
     DoubleVector[] msgCenters = new DoubleVector[centers.length];
     int[] incrementSum = new int[centers.length];
@@ -162,19 +256,7 @@ public final class KMeansBSP
         msgCenters[i] = msgCenters[i].divide(incrementSum[i]);
       }
     }
-    // finally check for convergence by the absolute difference
-    long convergedCounter = 0L;
-    for (int i = 0; i < msgCenters.length; i++) {
-      final DoubleVector oldCenter = centers[i];
-      if (msgCenters[i] != null) {
-        double calculateError = oldCenter.subtract(msgCenters[i]).abs().sum();
-        if (calculateError > 0.0d) {
-          centers[i] = msgCenters[i];
-          convergedCounter++;
-        }
-      }
-    }
-    return convergedCounter;
+    return msgCenters;
   }
 
   private void assignCenters(
@@ -184,8 +266,26 @@ public final class KMeansBSP
     // needs to be broadcasted.
     final DoubleVector[] newCenterArray = new DoubleVector[centers.length];
     final int[] summationCount = new int[centers.length];
-    // if our cache is not enabled, iterate over the disk items
-    if (cache == null) {
+    if (centerIndex != null) {
+      centerIndex.build(centers);
+    }
+    if (diskCachingEnabled) {
+      if (diskCache == null) {
+        writeDiskCache(peer);
+      }
+      if (pruning != null) {
+        pruning.updateCenters(centers);
+      }
+      int row = 0;
+      while (row < diskCache.getSize()) {
+        for (DoubleVector v : diskCache.readBlock(row)) {
+          assignCentersInternal(newCenterArray, summationCount, v,
+              getNearestCenter(row, v));
+          row++;
+        }
+      }
+    } else if (cache == null) {
+      // if our cache is not enabled, iterate over the disk items
       // we have an assignment step
       final NullWritable value = NullWritable.get();
       final VectorWritable key = new VectorWritable();
@@ -196,6 +296,17 @@ public final class KMeansBSP
     } else {
       // if our cache is enabled but empty, we have to read it from disk
       // first
+      if (cache.isEmpty() && pruningEnabled) {
+        // read everything first, the bounds are allocated per vector
+        final NullWritable value = NullWritable.get();
+        final VectorWritable key = new VectorWritable();
+        while (peer.readNext(key, value)) {
+          cache.add(key.getVector().deepCopy());
+        }
+        pruning = new TriangleInequalityPruning(distanceMeasurer,
+            cache.size(), centers.length);
+        pruning.setCenterIndex(centerIndex);
+      }
       if (cache.isEmpty()) {
         final NullWritable value = NullWritable.get();
         final VectorWritable key = new VectorWritable();
@@ -205,6 +316,12 @@ public final class KMeansBSP
           // but do the assignment directly
           assignCentersInternal(newCenterArray, summationCount, deepCopy);
         }
+      } else if (pruning != null) {
+        pruning.updateCenters(centers);
+        for (int i = 0; i < cache.size(); i++) {
+          assignCentersInternal(newCenterArray, summationCount, cache.get(i),
+              pruning.getNearestCenter(i, cache.get(i)));
+        }
       } else {
         // now we can iterate in memory and check against the centers
         for (DoubleVector v : cache) {
@@ -215,17 +332,64 @@ public final class KMeansBSP
     // now send messages about the local updates to each other peer
     for (int i = 0; i < newCenterArray.length; i++) {
       if (newCenterArray[i] != null) {
-        for (String peerName : peer.getAllPeerNames()) {
-          peer.send(peerName, new CenterMessage(i, summationCount[i],
-              newCenterArray[i]));
+        final CenterMessage msg = new CenterMessage(i, summationCount[i],
+            newCenterArray[i]);
+        if (reduceCenters) {
+          peer.send(peer.getPeerName(i % peer.getNumPeers()), msg);
+        } else {
+          for (String peerName : peer.getAllPeerNames()) {
+            peer.send(peerName, msg);
+          }
         }
       }
     }
   }
 
+  /**
+   * Writes the input once into a local file, the following iterations read
+   * the mapped file instead of deserializing the input again.
+   */
+  private void writeDiskCache(
+      BSPPeer<VectorWritable, NullWritable, IntWritable, VectorWritable, CenterMessage> peer)
+      throws IOException {
+    final File file = File.createTempFile("kmeans_" + peer.getTaskId() + "_",
+        ".cache", new File(conf.get(DISK_CACHING_DIR_KEY,
+            System.getProperty("java.io.tmpdir"))));
+    final NullWritable value = NullWritable.get();
+    final VectorWritable key = new VectorWritable();
+    while (peer.readNext(key, value)) {
+      if (diskCache == null) {
+        diskCache = new MappedDoubleVectorCache(file, key.getVector()
+            .getDimension());
+      }
+      diskCache.add(key.getVector());
+    }
+    if (diskCache == null) {
+      // empty input, the dimension does not matter
+      diskCache = new MappedDoubleVectorCache(file, centers[0].getDimension());
+    }
+    diskCache.finish();
+    if (pruningEnabled) {
+      pruning = new TriangleInequalityPruning(distanceMeasurer,
+          diskCache.getSize(), centers.length);
+      pruning.setCenterIndex(centerIndex);
+    }
+  }
+
+  private int getNearestCenter(int row, DoubleVector key) {
+    return (pruning != null) ? pruning.getNearestCenter(row, key)
+        : getNearestCenter(key);
+  }
+
   private void assignCentersInternal(final DoubleVector[] newCenterArray,
       final int[] summationCount, final DoubleVector key) {
-    final int lowestDistantCenter = getNearestCenter(key);
+    assignCentersInternal(newCenterArray, summationCount, key,
+        getNearestCenter(key));
+  }
+
+  private void assignCentersInternal(final DoubleVector[] newCenterArray,
+      final int[] summationCount, final DoubleVector key,
+      final int lowestDistantCenter) {
     final DoubleVector clusterCenter = newCenterArray[lowestDistantCenter];
     if (clusterCenter == null) {
       newCenterArray[lowestDistantCenter] = key;
@@ -238,6 +402,9 @@ public final class KMeansBSP
   }
 
   private int getNearestCenter(DoubleVector key) {
+    if (centerIndex != null) {
+      return centerIndex.getNearestCenter(key.toArray());
+    }
     int lowestDistantCenter = 0;
     double lowestDistance = Double.MAX_VALUE;
     for (int i = 0; i < centers.length; i++) {
@@ -257,8 +424,24 @@ public final class KMeansBSP
       BSPPeer<VectorWritable, NullWritable, IntWritable, VectorWritable, CenterMessage> peer)
       throws IOException {
     final NullWritable value = NullWritable.get();
+    if (centerIndex != null) {
+      centerIndex.build(centers);
+    }
     // also use our cache to speed up the final writes if exists
-    if (cache == null) {
+    if (diskCache != null) {
+      IntWritable keyWrite = new IntWritable();
+      if (pruning != null) {
+        pruning.updateCenters(centers);
+      }
+      int row = 0;
+      while (row < diskCache.getSize()) {
+        for (DoubleVector v : diskCache.readBlock(row)) {
+          keyWrite.set(getNearestCenter(row, v));
+          peer.write(keyWrite, new VectorWritable(v));
+          row++;
+        }
+      }
+    } else if (cache == null) {
       final VectorWritable key = new VectorWritable();
       IntWritable keyWrite = new IntWritable();
       while (peer.readNext(key, value)) {
@@ -268,8 +451,13 @@ public final class KMeansBSP
       }
     } else {
       IntWritable keyWrite = new IntWritable();
-      for (DoubleVector v : cache) {
-        final int lowestDistantCenter = getNearestCenter(v);
+      if (pruning != null) {
+        pruning.updateCenters(centers);
+      }
+      for (int i = 0; i < cache.size(); i++) {
+        final DoubleVector v = cache.get(i);
+        final int lowestDistantCenter = (pruning != null) ? pruning
+            .getNearestCenter(i, v) : getNearestCenter(v);
         keyWrite.set(lowestDistantCenter);
         peer.write(keyWrite, new VectorWritable(v));
       }
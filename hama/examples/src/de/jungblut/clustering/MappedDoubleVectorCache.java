@@ -0,0 +1,216 @@
+package de.jungblut.clustering;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.jungblut.math.DoubleVector;
+import de.jungblut.math.dense.DenseDoubleVector;
+
+/**
+ * Disk based vector cache for inputs that do not fit into the heap. The
+ * vectors are written once as fixed-width rows of doubles into a local file,
+ * which is then memory mapped and read in blocks. Reading a block touches the
+ * pages of the next block in a background thread, so sequential scans are
+ * not blocked by the disk. <br/>
+ * Vectors are stored dense, all vectors must have the same dimension.
+ *
+ */
+public final class MappedDoubleVectorCache implements Closeable {
+
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+  private static final int BLOCK_SIZE = 1 << 20;
+  // a MappedByteBuffer is int addressed, larger files use several segments
+  private static final int SEGMENT_SIZE = 1 << 30;
+  private static final int PAGE_SIZE = 4096;
+
+  private final File file;
+  private final int dimension;
+  private final int rowBytes;
+  private final int blockRows;
+  private int size;
+
+  private RandomAccessFile randomAccessFile;
+  private FileChannel channel;
+  private ByteBuffer writeBuffer;
+
+  private MappedByteBuffer[] segments;
+  private int rowsPerSegment;
+  private ThreadPoolExecutor readAhead;
+  private volatile int touched;
+
+  public MappedDoubleVectorCache(File file, int dimension) throws IOException {
+    if (dimension <= 0) {
+      throw new IllegalArgumentException("Dimension must be positive: "
+          + dimension);
+    }
+    this.file = file;
+    this.dimension = dimension;
+    this.rowBytes = dimension * 8;
+    this.blockRows = Math.max(1, BLOCK_SIZE / rowBytes);
+    this.randomAccessFile = new RandomAccessFile(file, "rw");
+    this.randomAccessFile.setLength(0);
+    this.channel = randomAccessFile.getChannel();
+    this.writeBuffer = ByteBuffer.allocateDirect(
+        Math.max(WRITE_BUFFER_SIZE, rowBytes)).order(ByteOrder.nativeOrder());
+  }
+
+  public void add(DoubleVector vector) throws IOException {
+    if (vector.getDimension() != dimension) {
+      throw new IllegalArgumentException("Vector dimension "
+          + vector.getDimension() + " does not match cache dimension "
+          + dimension);
+    }
+    if (writeBuffer == null) {
+      throw new IllegalStateException("Cache is already finished!");
+    }
+    if (writeBuffer.remaining() < rowBytes) {
+      flushWriteBuffer();
+    }
+    for (int i = 0; i < dimension; i++) {
+      writeBuffer.putDouble(vector.get(i));
+    }
+    size++;
+  }
+
+  private void flushWriteBuffer() throws IOException {
+    writeBuffer.flip();
+    while (writeBuffer.hasRemaining()) {
+      channel.write(writeBuffer);
+    }
+    writeBuffer.clear();
+  }
+
+  /**
+   * Writes the remaining vectors and maps the file for reading.
+   */
+  public void finish() throws IOException {
+    flushWriteBuffer();
+    writeBuffer = null;
+
+    rowsPerSegment = Math.max(1, SEGMENT_SIZE / rowBytes);
+    int segmentCount = (size + rowsPerSegment - 1) / rowsPerSegment;
+    segments = new MappedByteBuffer[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      long firstRow = (long) i * rowsPerSegment;
+      long rows = Math.min(rowsPerSegment, size - firstRow);
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, firstRow
+          * rowBytes, rows * rowBytes);
+    }
+
+    // stale read-ahead requests are dropped if the scan is faster
+    readAhead = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(4), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MappedDoubleVectorCache-"
+                + file.getName());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.DiscardOldestPolicy());
+  }
+
+  /**
+   * Reads the block of vectors starting at the given row, the block ends at
+   * the end of the cache or after about 1MB of vectors.
+   */
+  public DoubleVector[] readBlock(int row) {
+    if (segments == null) {
+      throw new IllegalStateException("Cache is not finished!");
+    }
+    if (row < 0 || row >= size) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+    }
+    final int count = Math.min(blockRows, size - row);
+    final DoubleVector[] block = new DoubleVector[count];
+    int current = row;
+    while (current < row + count) {
+      final int segmentRow = current % rowsPerSegment;
+      final int rows = Math.min(row + count - current, rowsPerSegment
+          - segmentRow);
+      // duplicate to read with an own position
+      ByteBuffer bytes = segments[current / rowsPerSegment].duplicate();
+      bytes.order(ByteOrder.nativeOrder());
+      bytes.position(segmentRow * rowBytes);
+      DoubleBuffer doubles = bytes.asDoubleBuffer();
+      for (int i = 0; i < rows; i++) {
+        double[] vector = new double[dimension];
+        doubles.get(vector);
+        block[current - row + i] = new DenseDoubleVector(vector);
+      }
+      current += rows;
+    }
+    readAhead(row + count, count);
+    return block;
+  }
+
+  private void readAhead(final int row, final int count) {
+    if (row >= size) {
+      return;
+    }
+    readAhead.execute(new Runnable() {
+      @Override
+      public void run() {
+        touch(row, Math.min(size, row + count));
+      }
+    });
+  }
+
+  // reading one byte per page lets the OS load the page
+  private void touch(int start, int end) {
+    int sum = 0;
+    int current = start;
+    while (current < end) {
+      final MappedByteBuffer segment = segments[current / rowsPerSegment];
+      final int segmentRow = current % rowsPerSegment;
+      final int rows = Math.min(end - current, rowsPerSegment - segmentRow);
+      final int to = (segmentRow + rows) * rowBytes;
+      for (int i = segmentRow * rowBytes; i < to; i += PAGE_SIZE) {
+        sum += segment.get(i);
+      }
+      current += rows;
+    }
+    touched = sum;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getDimension() {
+    return dimension;
+  }
+
+  /**
+   * Closes and deletes the file, the mapping is released by the GC.
+   */
+  @Override
+  public void close() throws IOException {
+    if (readAhead != null) {
+      readAhead.shutdownNow();
+      readAhead = null;
+    }
+    segments = null;
+    writeBuffer = null;
+    if (randomAccessFile != null) {
+      randomAccessFile.close();
+      randomAccessFile = null;
+      channel = null;
+    }
+    if (!file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+}
@@ -0,0 +1,170 @@
+package de.jungblut.clustering;
+
+import de.jungblut.distance.DistanceMeasurer;
+import de.jungblut.math.DoubleVector;
+
+/**
+ * Nearest center search with triangle inequality pruning (Hamerly's
+ * algorithm). Every point keeps an upper bound to its assigned center and a
+ * lower bound to all other centers, which are moved by the center drift after
+ * each update. A point is only compared against all centers again if its
+ * bounds overlap, the full scan skips centers by their distance to the best
+ * center found so far (Elkan's first lemma) or uses a {@link CenterIndex}
+ * if one is set. <br/>
+ * Only centers strictly farther away than the returned one are skipped, so
+ * the result equals the brute force search. The distance measure must be a
+ * metric.
+ *
+ */
+public final class TriangleInequalityPruning {
+
+  // relative safety margin for floating point rounding of the bounds
+  private static final double BOUND_TOLERANCE = 1e-10;
+
+  private final DistanceMeasurer distanceMeasurer;
+  private final int centerCount;
+
+  private final double[] upperBounds;
+  private final double[] lowerBounds;
+  private final int[] assignments;
+  private final boolean[] initialized;
+
+  private double[][] centers;
+  private final double[] centerDrift;
+  private double maxDrift;
+  private int maxDriftCenter;
+  private double secondMaxDrift;
+
+  private final double[][] centerDistances;
+  private final double[] halfMinCenterDistances;
+  // replaces the full scan, built from the same centers after each update
+  private CenterIndex centerIndex;
+
+  public TriangleInequalityPruning(DistanceMeasurer distanceMeasurer,
+      int pointCount, int centerCount) {
+    this.distanceMeasurer = distanceMeasurer;
+    this.centerCount = centerCount;
+    this.upperBounds = new double[pointCount];
+    this.lowerBounds = new double[pointCount];
+    this.assignments = new int[pointCount];
+    this.initialized = new boolean[pointCount];
+    this.centerDrift = new double[centerCount];
+    this.centerDistances = new double[centerCount][centerCount];
+    this.halfMinCenterDistances = new double[centerCount];
+  }
+
+  public void setCenterIndex(CenterIndex centerIndex) {
+    this.centerIndex = centerIndex;
+  }
+
+  /**
+   * Has to be called with the current centers before the points are searched.
+   */
+  public void updateCenters(DoubleVector[] newCenters) {
+    double[][] previousCenters = centers;
+    centers = new double[centerCount][];
+    for (int i = 0; i < centerCount; i++) {
+      centers[i] = newCenters[i].toArray().clone();
+    }
+
+    maxDrift = 0;
+    secondMaxDrift = 0;
+    maxDriftCenter = -1;
+    for (int i = 0; i < centerCount; i++) {
+      double drift = 0;
+      if (previousCenters != null) {
+        drift = distanceMeasurer.measureDistance(previousCenters[i],
+            centers[i]);
+      }
+      centerDrift[i] = drift;
+      if (drift > maxDrift) {
+        secondMaxDrift = maxDrift;
+        maxDrift = drift;
+        maxDriftCenter = i;
+      } else if (drift > secondMaxDrift) {
+        secondMaxDrift = drift;
+      }
+    }
+
+    for (int i = 0; i < centerCount; i++) {
+      double minDistance = Double.MAX_VALUE;
+      for (int j = 0; j < centerCount; j++) {
+        if (i != j) {
+          centerDistances[i][j] = distanceMeasurer.measureDistance(centers[i],
+              centers[j]);
+          minDistance = Math.min(minDistance, centerDistances[i][j]);
+        }
+      }
+      halfMinCenterDistances[i] = minDistance / 2;
+    }
+  }
+
+  public int getNearestCenter(int pointIndex, DoubleVector key) {
+    final double[] point = key.toArray();
+    if (!initialized[pointIndex]) {
+      initialized[pointIndex] = true;
+      return scanCenters(pointIndex, point);
+    }
+
+    final int assigned = assignments[pointIndex];
+    double upper = upperBounds[pointIndex] + centerDrift[assigned];
+    final double lower = lowerBounds[pointIndex]
+        - (assigned == maxDriftCenter ? secondMaxDrift : maxDrift);
+    lowerBounds[pointIndex] = lower;
+
+    final double bound = Math.max(halfMinCenterDistances[assigned], lower);
+    if (isStrictlyBelow(upper, bound)) {
+      upperBounds[pointIndex] = upper;
+      return assigned;
+    }
+    upper = distanceMeasurer.measureDistance(centers[assigned], point);
+    upperBounds[pointIndex] = upper;
+    if (isStrictlyBelow(upper, bound)) {
+      return assigned;
+    }
+    return scanCenters(pointIndex, point);
+  }
+
+  private int scanCenters(int pointIndex, double[] point) {
+    if (centerIndex != null) {
+      // the exact second nearest distance is the tightest lower bound
+      final double[] distances = new double[2];
+      final int nearestCenter = centerIndex.getNearestCenters(point, distances);
+      assignments[pointIndex] = nearestCenter;
+      upperBounds[pointIndex] = distances[0];
+      lowerBounds[pointIndex] = distances[1];
+      return nearestCenter;
+    }
+    int lowestDistantCenter = 0;
+    double lowestDistance = Double.MAX_VALUE;
+    double secondLowestDistance = Double.MAX_VALUE;
+    for (int i = 0; i < centerCount; i++) {
+      if (i > 0) {
+        final double centerDistance = centerDistances[lowestDistantCenter][i];
+        if (isStrictlyBelow(2 * lowestDistance, centerDistance)) {
+          secondLowestDistance = Math.min(secondLowestDistance,
+              centerDistance - lowestDistance);
+          continue;
+        }
+      }
+      final double estimatedDistance = distanceMeasurer.measureDistance(
+          centers[i], point);
+      if (estimatedDistance < lowestDistance) {
+        secondLowestDistance = lowestDistance;
+        lowestDistance = estimatedDistance;
+        lowestDistantCenter = i;
+      } else if (estimatedDistance < secondLowestDistance) {
+        secondLowestDistance = estimatedDistance;
+      }
+    }
+    assignments[pointIndex] = lowestDistantCenter;
+    upperBounds[pointIndex] = lowestDistance;
+    lowerBounds[pointIndex] = secondLowestDistance;
+    return lowestDistantCenter;
+  }
+
+  private static boolean isStrictlyBelow(double value, double bound) {
+    return value < bound - (BOUND_TOLERANCE * Math.abs(bound));
+  }
+
+}
@@ -46,9 +46,10 @@ import org.apache.hama.bsp.sync.SyncException;
 import org.trifort.rootbeer.runtime.Context;
 import org.trifort.rootbeer.runtime.Rootbeer;
 import org.trifort.rootbeer.runtime.StatsRow;
-import org.trifort.rootbeer.runtime.ThreadConfig;
 import org.trifort.rootbeer.runtime.util.Stopwatch;
 
+import at.illecker.hama.hybrid.examples.util.emulator.KernelRunner;
+
 public class HelloHybridBSP
     extends
     HybridBSP<IntWritable, NullWritable, IntWritable, NullWritable, NullWritable> {
@@ -164,14 +165,14 @@ public class HelloHybridBSP
         .get(CONF_EXAMPLE_PATH), CONF_N, "boo:and:foo", ":");
 
     // Run GPU Kernels
-    Context context = rootbeer.createDefaultContext();
     Stopwatch watch = new Stopwatch();
     watch.start();
     // 1 Kernel within 1 Block
-    rootbeer.run(kernel, new ThreadConfig(1, 1, 1), context);
+    Context context = KernelRunner.run(peer, rootbeer, kernel, 1, 1, false);
     watch.stop();
 
-    List<StatsRow> stats = context.getStats();
+    List<StatsRow> stats = (context != null) ? context.getStats()
+        : new ArrayList<StatsRow>();
     for (StatsRow row : stats) {
       outStream.writeChars("  StatsRow:\n");
       outStream.writeChars("    serial time: " + row.getSerializationTime()
@@ -0,0 +1,319 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.kmeans;
+
+import java.util.Random;
+
+/**
+ * Binary space partitioning tree over the centers for exact nearest center
+ * queries with Euclidean distance. The tree is rebuilt for every superstep.
+ *
+ * A KD_TREE splits at the median of the coordinate with the largest spread,
+ * which works well for low dimensions. A RP_TREE splits at the median of the
+ * projection onto a random direction, which adapts better to data of high
+ * dimension with a low intrinsic dimension.
+ *
+ * The distance to the splitting hyperplane is a lower bound of the distance
+ * to all centers on the other side, so only subtrees which may contain a
+ * closer center are searched. The result is the same as the brute force
+ * search (lowest index wins on ties). Queries may run concurrently.
+ */
+public final class CenterIndex {
+  public enum Type {
+    KD_TREE, RP_TREE
+  }
+
+  private static final int LEAF_SIZE = 8;
+  // relative safety margin for floating point rounding of the projections
+  private static final double BOUND_TOLERANCE = 1e-10;
+
+  private final Type m_type;
+  private final int m_centerCount;
+  private final int m_dimension;
+  private final Random m_random;
+
+  // copy of the centers, row-major
+  private final double[] m_centers;
+  // center indices, each node covers a range of it
+  private final int[] m_order;
+  private final double[] m_projections;
+
+  // nodes of the tree, the root is node 0
+  private int m_nodeCount;
+  private final int[] m_nodeStart;
+  private final int[] m_nodeEnd;
+  private final int[] m_left;
+  private final int[] m_right;
+  private final int[] m_splitAxis;
+  private final double[] m_splitValue;
+  private final double[] m_directions;
+
+  public CenterIndex(Type type, int centerCount, int dimension, long seed) {
+    this.m_type = type;
+    this.m_centerCount = centerCount;
+    this.m_dimension = dimension;
+    this.m_random = new Random(seed);
+
+    this.m_centers = new double[centerCount * dimension];
+    this.m_order = new int[centerCount];
+    this.m_projections = new double[centerCount];
+
+    int maxNodes = Math.max(1, 2 * centerCount);
+    this.m_nodeStart = new int[maxNodes];
+    this.m_nodeEnd = new int[maxNodes];
+    this.m_left = new int[maxNodes];
+    this.m_right = new int[maxNodes];
+    this.m_splitAxis = new int[maxNodes];
+    this.m_splitValue = new double[maxNodes];
+    this.m_directions = (type == Type.RP_TREE) ? new double[maxNodes
+        * dimension] : null;
+  }
+
+  /**
+   * @return the index type or null for "none" or null
+   */
+  public static Type parseType(String value) {
+    if (value == null || value.equalsIgnoreCase("none")) {
+      return null;
+    } else if (value.equalsIgnoreCase("kdtree")) {
+      return Type.KD_TREE;
+    } else if (value.equalsIgnoreCase("rptree")) {
+      return Type.RP_TREE;
+    }
+    throw new IllegalArgumentException("Unknown center index: " + value);
+  }
+
+  /**
+   * Has to be called once per superstep before any query.
+   *
+   * @param centers the current centers, row-major
+   */
+  public void build(double[] centers) {
+    System.arraycopy(centers, 0, m_centers, 0, m_centers.length);
+    for (int i = 0; i < m_centerCount; i++) {
+      m_order[i] = i;
+    }
+    m_nodeCount = 0;
+    buildNode(0, m_centerCount);
+  }
+
+  private int buildNode(int start, int end) {
+    final int node = m_nodeCount++;
+    m_nodeStart[node] = start;
+    m_nodeEnd[node] = end;
+    m_left[node] = -1;
+    m_right[node] = -1;
+    if (end - start <= LEAF_SIZE) {
+      return node;
+    }
+
+    if (m_type == Type.KD_TREE) {
+      m_splitAxis[node] = getWidestAxis(start, end);
+    } else {
+      setRandomDirection(node);
+    }
+    double min = Double.MAX_VALUE;
+    double max = -Double.MAX_VALUE;
+    for (int i = start; i < end; i++) {
+      final int center = m_order[i];
+      final double projection = project(node, m_centers, center * m_dimension);
+      m_projections[center] = projection;
+      min = Math.min(min, projection);
+      max = Math.max(max, projection);
+    }
+    // all centers are equal in this direction
+    if (!(max > min)) {
+      return node;
+    }
+
+    final int mid = (start + end) >>> 1;
+    select(start, end - 1, mid);
+    m_splitValue[node] = m_projections[m_order[mid]];
+    m_left[node] = buildNode(start, mid);
+    m_right[node] = buildNode(mid, end);
+    return node;
+  }
+
+  private int getWidestAxis(int start, int end) {
+    int widestAxis = 0;
+    double widestSpread = -1;
+    for (int j = 0; j < m_dimension; j++) {
+      double min = Double.MAX_VALUE;
+      double max = -Double.MAX_VALUE;
+      for (int i = start; i < end; i++) {
+        final double value = m_centers[m_order[i] * m_dimension + j];
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      if (max - min > widestSpread) {
+        widestSpread = max - min;
+        widestAxis = j;
+      }
+    }
+    return widestAxis;
+  }
+
+  private void setRandomDirection(int node) {
+    final int offset = node * m_dimension;
+    double norm = 0;
+    for (int j = 0; j < m_dimension; j++) {
+      final double value = m_random.nextGaussian();
+      m_directions[offset + j] = value;
+      norm += value * value;
+    }
+    norm = Math.sqrt(norm);
+    for (int j = 0; j < m_dimension; j++) {
+      m_directions[offset + j] /= norm;
+    }
+  }
+
+  private double project(int node, double[] vector, int offset) {
+    if (m_type == Type.KD_TREE) {
+      return vector[offset + m_splitAxis[node]];
+    }
+    final int directionOffset = node * m_dimension;
+    double projection = 0;
+    for (int j = 0; j < m_dimension; j++) {
+      projection += vector[offset + j] * m_directions[directionOffset + j];
+    }
+    return projection;
+  }
+
+  // moves the k-th smallest projection of m_order[left..right] to k
+  private void select(int left, int right, int k) {
+    while (left < right) {
+      final double pivot = m_projections[m_order[(left + right) >>> 1]];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (m_projections[m_order[i]] < pivot) {
+          i++;
+        }
+        while (m_projections[m_order[j]] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          final int tmp = m_order[i];
+          m_order[i] = m_order[j];
+          m_order[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  public int getNearestCenter(double[] points, int pointOffset) {
+    final Query query = new Query(false);
+    search(0, points, pointOffset, query);
+    return query.getBest();
+  }
+
+  /**
+   * Searches the nearest and the second nearest center.
+   *
+   * @param distances receives the distance to the nearest center at index 0
+   *          and to the second nearest at index 1
+   * @return the nearest center
+   */
+  public int getNearestCenters(double[] points, int pointOffset,
+      double[] distances) {
+    final Query query = new Query(true);
+    search(0, points, pointOffset, query);
+    distances[0] = query.m_bestDistance;
+    distances[1] = query.m_secondDistance;
+    return query.getBest();
+  }
+
+  private void search(int node, double[] points, int pointOffset, Query query) {
+    if (m_left[node] < 0) {
+      for (int i = m_nodeStart[node]; i < m_nodeEnd[node]; i++) {
+        final int center = m_order[i];
+        query.offer(center, distance(points, pointOffset, center));
+      }
+      return;
+    }
+
+    final double projection = project(node, points, pointOffset);
+    final double diff = projection - m_splitValue[node];
+    search((diff < 0) ? m_left[node] : m_right[node], points, pointOffset,
+        query);
+
+    // distance to the splitting hyperplane
+    final double bound = Math.abs(diff) - BOUND_TOLERANCE
+        * (Math.abs(projection) + Math.abs(m_splitValue[node]));
+    if (bound <= query.getWorstDistance()) {
+      search((diff < 0) ? m_right[node] : m_left[node], points, pointOffset,
+          query);
+    }
+  }
+
+  private double distance(double[] points, int pointOffset, int center) {
+    final int centerOffset = center * m_dimension;
+    // measure Euclidean Distance
+    double sum = 0;
+    for (int j = 0; j < m_dimension; j++) {
+      double diff = points[pointOffset + j] - m_centers[centerOffset + j];
+      // multiplication is faster than Math.pow() for ^2.
+      sum += (diff * diff);
+    }
+    return Math.sqrt(sum);
+  }
+
+  // the best two centers ordered by distance and index
+  private static final class Query {
+    private final boolean m_second;
+    private int m_best = -1;
+    private double m_bestDistance = Double.MAX_VALUE;
+    private int m_secondBest = -1;
+    private double m_secondDistance = Double.MAX_VALUE;
+
+    Query(boolean second) {
+      this.m_second = second;
+    }
+
+    void offer(int center, double distance) {
+      if (distance < m_bestDistance
+          || (distance == m_bestDistance && center < m_best)) {
+        m_secondBest = m_best;
+        m_secondDistance = m_bestDistance;
+        m_best = center;
+        m_bestDistance = distance;
+      } else if (distance < m_secondDistance
+          || (distance == m_secondDistance && center < m_secondBest)) {
+        m_secondBest = center;
+        m_secondDistance = distance;
+      }
+    }
+
+    double getWorstDistance() {
+      return m_second ? m_secondDistance : m_bestDistance;
+    }
+
+    int getBest() {
+      return (m_best < 0) ? 0 : m_best;
+    }
+  }
+
+}
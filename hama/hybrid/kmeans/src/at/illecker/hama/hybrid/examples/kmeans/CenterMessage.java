@@ -23,32 +23,216 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hama.commons.math.DenseDoubleVector;
 import org.apache.hama.commons.math.DoubleVector;
 
+/**
+ * Message of the KMeansHybridBSP, a tagged union of the center updates and
+ * the messages of the rebalancing. Only CENTER messages are read by the GPU
+ * kernel, they keep the encodings below. STATS and POINT messages are always
+ * written binary with their own marker byte.
+ */
 public final class CenterMessage implements Writable {
 
+  public enum Type {
+    // partial sum of a center: centerIndex, incrementCounter, data
+    CENTER,
+    // rebalancing: point count and assignment time of a peer
+    STATS,
+    // rebalancing: cached point moved to another peer
+    POINT
+  }
+
+  /**
+   * Wire encodings of a CenterMessage. readFields detects the encoding of
+   * each message, the encoding of a message only selects how it is written.
+   * 
+   * TEXT: "centerIndex:incrementCounter:v1, v2, ..." (legacy)
+   * 
+   * HEX: "#" + centerIndex, incrementCounter and the raw IEEE 754 bits of
+   * each value as fixed width hex digits, used by the GPU kernel
+   * 
+   * DOUBLE: marker byte, int centerIndex, int incrementCounter, int length,
+   * raw doubles
+   * 
+   * FLOAT: same as DOUBLE but values are sent as float32
+   */
+  public enum Encoding {
+    TEXT, HEX, DOUBLE, FLOAT
+  }
+
+  // Text lengths are non-negative vints, which never start with these bytes
+  private static final byte MARKER_DOUBLE = -128;
+  private static final byte MARKER_FLOAT = -127;
+  private static final byte MARKER_STATS = -126;
+  private static final byte MARKER_POINT = -125;
+  private static final char MARKER_HEX = '#';
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private Type type = Type.CENTER;
+
+  // CENTER
   private int centerIndex;
   private DoubleVector newCenter;
   private int incrementCounter;
 
+  // STATS and POINT, the reporting or sending peer
+  private int peerIndex;
+  // STATS
+  private int pointCount;
+  private long assignNanos;
+  // POINT, the row in the cache of the sender, the point is kept in newCenter
+  private int row;
+
+  // Encoding used by write. A received message is written as HEX if it
+  // arrived binary, because the pipes forwarder of a GPU task passes
+  // received messages by write to the kernel, which only reads strings.
+  private Encoding encoding = Encoding.TEXT;
+
   public CenterMessage() {
   }
 
   public CenterMessage(int key, DoubleVector value) {
-    this.centerIndex = key;
-    this.newCenter = value;
+    this(key, 0, value, Encoding.TEXT);
   }
 
   public CenterMessage(int key, int increment, DoubleVector value) {
+    this(key, increment, value, Encoding.TEXT);
+  }
+
+  public CenterMessage(int key, int increment, DoubleVector value,
+      Encoding encoding) {
     this.centerIndex = key;
     this.incrementCounter = increment;
     this.newCenter = value;
+    this.encoding = encoding;
+  }
+
+  /**
+   * The point count of a peer and its assignment time, sent to all peers
+   * before the points are rebalanced.
+   */
+  public static CenterMessage stats(int peerIndex, int pointCount,
+      long assignNanos) {
+    CenterMessage msg = new CenterMessage();
+    msg.type = Type.STATS;
+    msg.peerIndex = peerIndex;
+    msg.pointCount = pointCount;
+    msg.assignNanos = assignNanos;
+    return msg;
+  }
+
+  /**
+   * A point moved from the cache of the sender to the receiver, the receiver
+   * appends the points ordered by sender and row. The values are sent as
+   * exact doubles.
+   */
+  public static CenterMessage point(int sender, int row, DoubleVector point) {
+    CenterMessage msg = new CenterMessage();
+    msg.type = Type.POINT;
+    msg.peerIndex = sender;
+    msg.row = row;
+    msg.newCenter = point;
+    return msg;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Parses the value of KMeansHybridBSP.CONF_MESSAGE_ENCODING
+   * (text|binary|float).
+   */
+  public static Encoding parseEncoding(String value) {
+    if (value == null || value.equalsIgnoreCase("binary")
+        || value.equalsIgnoreCase("double")) {
+      return Encoding.DOUBLE;
+    } else if (value.equalsIgnoreCase("float")) {
+      return Encoding.FLOAT;
+    } else if (value.equalsIgnoreCase("text")) {
+      return Encoding.TEXT;
+    } else if (value.equalsIgnoreCase("hex")) {
+      return Encoding.HEX;
+    }
+    throw new IllegalArgumentException("Unknown CenterMessage encoding: "
+        + value);
   }
 
   @Override
   public final void readFields(DataInput in) throws IOException {
-    String str = Text.readString(in);
+    byte firstByte = in.readByte();
+
+    if (firstByte == MARKER_STATS) {
+      type = Type.STATS;
+      peerIndex = in.readInt();
+      pointCount = in.readInt();
+      assignNanos = in.readLong();
+      return;
+    }
+    if (firstByte == MARKER_POINT) {
+      type = Type.POINT;
+      peerIndex = in.readInt();
+      row = in.readInt();
+      int len = in.readInt();
+      double[] vector = new double[len];
+      for (int i = 0; i < len; i++) {
+        vector[i] = in.readDouble();
+      }
+      newCenter = new DenseDoubleVector(vector);
+      return;
+    }
+    type = Type.CENTER;
+
+    if (firstByte == MARKER_DOUBLE || firstByte == MARKER_FLOAT) {
+      centerIndex = in.readInt();
+      incrementCounter = in.readInt();
+      int len = in.readInt();
+      double[] vector = new double[len];
+      if (firstByte == MARKER_DOUBLE) {
+        for (int i = 0; i < len; i++) {
+          vector[i] = in.readDouble();
+        }
+      } else {
+        for (int i = 0; i < len; i++) {
+          vector[i] = in.readFloat();
+        }
+      }
+      newCenter = new DenseDoubleVector(vector);
+      // hex keeps the exact bits of the received values
+      encoding = Encoding.HEX;
+      return;
+    }
+
+    // Text.readString, the first byte of the vint length was already read
+    int length = firstByte;
+    int vintSize = WritableUtils.decodeVIntSize(firstByte);
+    if (vintSize > 1) {
+      long value = 0;
+      for (int i = 0; i < vintSize - 1; i++) {
+        value = (value << 8) | (in.readByte() & 0xFF);
+      }
+      length = (int) value;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes, 0, length);
+    String str = Text.decode(bytes);
+
+    if (str.length() > 0 && str.charAt(0) == MARKER_HEX) {
+      readHexString(str);
+      encoding = Encoding.HEX;
+    } else {
+      readTextString(str);
+      encoding = Encoding.TEXT;
+    }
+  }
+
+  private void readTextString(String str) {
     String[] values = str.split(":", 3);
 
     centerIndex = Integer.parseInt(values[0]);
@@ -63,25 +247,182 @@ public final class CenterMessage implements Writable {
     newCenter = vector;
   }
 
+  private void readHexString(String str) {
+    centerIndex = (int) parseHex(str, 1, 8);
+    incrementCounter = (int) parseHex(str, 9, 8);
+
+    int len = (str.length() - 17) / 16;
+    double[] vector = new double[len];
+    for (int i = 0; i < len; i++) {
+      vector[i] = Double.longBitsToDouble(parseHex(str, 17 + (i * 16), 16));
+    }
+    newCenter = new DenseDoubleVector(vector);
+  }
+
   @Override
   public final void write(DataOutput out) throws IOException {
-    String str = centerIndex + ":" + incrementCounter + ":";
+    if (type == Type.STATS) {
+      out.writeByte(MARKER_STATS);
+      out.writeInt(peerIndex);
+      out.writeInt(pointCount);
+      out.writeLong(assignNanos);
+      return;
+    }
+    if (type == Type.POINT) {
+      out.writeByte(MARKER_POINT);
+      out.writeInt(peerIndex);
+      out.writeInt(row);
+      int len = newCenter.getLength();
+      out.writeInt(len);
+      for (int i = 0; i < len; i++) {
+        out.writeDouble(newCenter.get(i));
+      }
+      return;
+    }
+
+    switch (encoding) {
+      case DOUBLE:
+      case FLOAT:
+        boolean asFloat = (encoding == Encoding.FLOAT);
+        out.writeByte(asFloat ? MARKER_FLOAT : MARKER_DOUBLE);
+        out.writeInt(centerIndex);
+        out.writeInt(incrementCounter);
+        int len = newCenter.getLength();
+        out.writeInt(len);
+        for (int i = 0; i < len; i++) {
+          if (asFloat) {
+            out.writeFloat((float) newCenter.get(i));
+          } else {
+            out.writeDouble(newCenter.get(i));
+          }
+        }
+        break;
+      case HEX:
+        Text.writeString(out, toHexString());
+        break;
+      default:
+        Text.writeString(out, toTextString());
+    }
+  }
+
+  /**
+   * Returns the number of bytes write produces with the encoding of this
+   * message.
+   */
+  public int getEncodedSize() {
+    if (type == Type.STATS) {
+      return 17;
+    }
+    int len = newCenter.getLength();
+    if (type == Type.POINT) {
+      return 13 + (len * 8);
+    }
+    switch (encoding) {
+      case DOUBLE:
+        return 13 + (len * 8);
+      case FLOAT:
+        return 13 + (len * 4);
+      case HEX:
+        int hexLength = 17 + (len * 16);
+        return WritableUtils.getVIntSize(hexLength) + hexLength;
+      default:
+        // the text encoding only contains ASCII characters
+        int textLength = toTextString().length();
+        return WritableUtils.getVIntSize(textLength) + textLength;
+    }
+  }
+
+  private String toTextString() {
+    StringBuilder str = new StringBuilder();
+    str.append(centerIndex).append(':').append(incrementCounter).append(':');
     for (int i = 0; i < newCenter.getLength(); i++) {
-      str += (i < newCenter.getLength() - 1) ? newCenter.get(i) + ", "
-          : newCenter.get(i);
+      if (i > 0) {
+        str.append(", ");
+      }
+      str.append(newCenter.get(i));
+    }
+    return str.toString();
+  }
+
+  private String toHexString() {
+    int len = newCenter.getLength();
+    char[] chars = new char[17 + (len * 16)];
+    chars[0] = MARKER_HEX;
+    appendHex(chars, 1, centerIndex & 0xFFFFFFFFL, 8);
+    appendHex(chars, 9, incrementCounter & 0xFFFFFFFFL, 8);
+    for (int i = 0; i < len; i++) {
+      appendHex(chars, 17 + (i * 16),
+          Double.doubleToRawLongBits(newCenter.get(i)), 16);
+    }
+    return new String(chars);
+  }
+
+  private static void appendHex(char[] chars, int offset, long value,
+      int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      chars[offset + i] = HEX_DIGITS[(int) (value & 0xF)];
+      value >>>= 4;
+    }
+  }
+
+  private static long parseHex(String str, int offset, int digits) {
+    long value = 0;
+    for (int i = offset; i < offset + digits; i++) {
+      value = (value << 4) | Character.digit(str.charAt(i), 16);
+    }
+    return value;
+  }
+
+  private void checkType(Type expected) {
+    if (type != expected) {
+      throw new IllegalStateException("CenterMessage is " + type + ", not "
+          + expected);
     }
-    Text.writeString(out, str);
   }
 
   public int getCenterIndex() {
+    checkType(Type.CENTER);
     return centerIndex;
   }
 
   public int getIncrementCounter() {
+    checkType(Type.CENTER);
     return incrementCounter;
   }
 
   public final DoubleVector getData() {
+    checkType(Type.CENTER);
+    return newCenter;
+  }
+
+  /**
+   * @return the peer which sent the STATS or POINT message
+   */
+  public int getPeerIndex() {
+    if (type == Type.CENTER) {
+      throw new IllegalStateException(
+          "CenterMessage is CENTER, not STATS or POINT");
+    }
+    return peerIndex;
+  }
+
+  public int getPointCount() {
+    checkType(Type.STATS);
+    return pointCount;
+  }
+
+  public long getAssignNanos() {
+    checkType(Type.STATS);
+    return assignNanos;
+  }
+
+  public int getRow() {
+    checkType(Type.POINT);
+    return row;
+  }
+
+  public DoubleVector getPoint() {
+    checkType(Type.POINT);
     return newCenter;
   }
 
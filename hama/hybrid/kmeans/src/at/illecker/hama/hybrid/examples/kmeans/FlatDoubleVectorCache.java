@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.kmeans;
+
+import org.apache.hama.commons.math.DenseDoubleVector;
+import org.apache.hama.commons.math.DoubleVector;
+
+/**
+ * Stores vectors of a fixed dimension row-major in one contiguous double[]
+ * instead of one object per vector.
+ */
+public final class FlatDoubleVectorCache {
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private double[] m_values;
+  private final int m_dimension;
+  private int m_size;
+
+  public FlatDoubleVectorCache(int dimension) {
+    this(dimension, DEFAULT_CAPACITY);
+  }
+
+  public FlatDoubleVectorCache(int dimension, int initialCapacity) {
+    if (dimension <= 0) {
+      throw new IllegalArgumentException("Dimension must be positive: "
+          + dimension);
+    }
+    this.m_dimension = dimension;
+    this.m_values = new double[Math.max(initialCapacity, 1) * dimension];
+    this.m_size = 0;
+  }
+
+  public void add(DoubleVector vector) {
+    if (vector.getDimension() != m_dimension) {
+      throw new IllegalArgumentException("Vector dimension "
+          + vector.getDimension() + " does not match cache dimension "
+          + m_dimension);
+    }
+    ensureCapacity(m_size + 1);
+    int offset = m_size * m_dimension;
+    for (int i = 0; i < m_dimension; i++) {
+      m_values[offset + i] = vector.get(i);
+    }
+    m_size++;
+  }
+
+  public void add(double[] vector) {
+    if (vector.length != m_dimension) {
+      throw new IllegalArgumentException("Vector dimension " + vector.length
+          + " does not match cache dimension " + m_dimension);
+    }
+    ensureCapacity(m_size + 1);
+    System.arraycopy(vector, 0, m_values, m_size * m_dimension, m_dimension);
+    m_size++;
+  }
+
+  private void ensureCapacity(int rows) {
+    if (rows * m_dimension > m_values.length) {
+      int newRows = Math.max(rows, (m_values.length / m_dimension) * 2);
+      double[] newValues = new double[newRows * m_dimension];
+      System.arraycopy(m_values, 0, newValues, 0, m_size * m_dimension);
+      m_values = newValues;
+    }
+  }
+
+  /**
+   * Drops all rows from the given row on.
+   */
+  public void truncate(int size) {
+    if (size < 0 || size > m_size) {
+      throw new IndexOutOfBoundsException("Size " + size + " of " + m_size);
+    }
+    m_size = size;
+  }
+
+  /**
+   * Releases unused capacity after the input has been read completely.
+   */
+  public void trimToSize() {
+    if (m_size * m_dimension < m_values.length) {
+      double[] newValues = new double[m_size * m_dimension];
+      System.arraycopy(m_values, 0, newValues, 0, newValues.length);
+      m_values = newValues;
+    }
+  }
+
+  public int getSize() {
+    return m_size;
+  }
+
+  public boolean isEmpty() {
+    return m_size == 0;
+  }
+
+  public int getDimension() {
+    return m_dimension;
+  }
+
+  /**
+   * Returns the backing array, row i starts at i * getDimension().
+   */
+  public double[] getValues() {
+    return m_values;
+  }
+
+  public double get(int row, int col) {
+    return m_values[row * m_dimension + col];
+  }
+
+  public DoubleVector getVector(int row) {
+    double[] vector = new double[m_dimension];
+    System.arraycopy(m_values, row * m_dimension, vector, 0, m_dimension);
+    return new DenseDoubleVector(vector);
+  }
+
+}
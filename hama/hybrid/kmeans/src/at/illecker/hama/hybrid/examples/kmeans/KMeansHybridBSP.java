@@ -16,11 +16,20 @@
  */
 package at.illecker.hama.hybrid.examples.kmeans;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,6 +48,8 @@ import org.apache.hadoop.io.Writable;
 import org.apache.hama.HamaConfiguration;
 import org.apache.hama.bsp.BSPJob;
 import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.BSPPeerImpl;
+import org.apache.hama.bsp.Counters;
 import org.apache.hama.bsp.FileOutputFormat;
 import org.apache.hama.bsp.SequenceFileInputFormat;
 import org.apache.hama.bsp.SequenceFileOutputFormat;
@@ -50,9 +61,13 @@ import org.apache.hama.commons.math.DoubleVector;
 import org.trifort.rootbeer.runtime.Context;
 import org.trifort.rootbeer.runtime.Rootbeer;
 import org.trifort.rootbeer.runtime.StatsRow;
-import org.trifort.rootbeer.runtime.ThreadConfig;
 import org.trifort.rootbeer.runtime.util.Stopwatch;
 
+import at.illecker.hama.hybrid.examples.util.broadcast.TreeBroadcast;
+import at.illecker.hama.hybrid.examples.util.emulator.KernelRunner;
+import at.illecker.hama.hybrid.examples.util.io.VectorBlockFile;
+import at.illecker.hama.hybrid.examples.util.io.VectorBlockInputFormat;
+
 import com.google.common.base.Preconditions;
 
 public class KMeansHybridBSP
@@ -67,6 +82,53 @@ public class KMeansHybridBSP
   public static final String CONF_N = "kmeans.hybrid.n";
   public static final String CONF_CENTER_IN_PATH = "kmeans.hybrid.center.in.path";
   public static final String CONF_CENTER_OUT_PATH = "kmeans.hybrid.center.out.path";
+  // the input points are VectorBlockFiles instead of SequenceFiles
+  public static final String CONF_BLOCK_INPUT = "kmeans.hybrid.input.block";
+  // only peer 0 reads the centers and broadcasts them to all other peers
+  public static final String CONF_BROADCAST_CENTERS = "kmeans.hybrid.center.broadcast";
+  public static final String CONF_FLAT_CACHE = "kmeans.hybrid.cache.flat";
+  // keep the flat cache in a memory mapped local file instead of the heap
+  public static final String CONF_DISK_CACHE = "kmeans.hybrid.cache.disk";
+  // directory of the disk cache files, default java.io.tmpdir
+  public static final String CONF_DISK_CACHE_DIR = "kmeans.hybrid.cache.disk.dir";
+  // bytes of the disk cache read per block
+  public static final int DISK_CACHE_BLOCK_SIZE = 1 << 20;
+  // keep the flat cache as float or int8 instead of double: none, float, int8
+  public static final String CONF_QUANTIZATION = "kmeans.hybrid.cache.quantization";
+  // bytes of decoded points per block, small enough for the CPU cache
+  public static final int QUANTIZED_BLOCK_SIZE = 1 << 16;
+  // triangle inequality pruning of the nearest center search (flat cache)
+  public static final String CONF_PRUNING = "kmeans.hybrid.pruning";
+  // exact nearest center search by a tree over the centers: kdtree, rptree
+  public static final String CONF_CENTER_INDEX = "kmeans.hybrid.center.index";
+  // CenterMessage encoding: binary (default), float or text (legacy)
+  public static final String CONF_MESSAGE_ENCODING = "kmeans.hybrid.message.encoding";
+  // number of threads used by each CPU task to assign the cached points
+  public static final String CONF_THREADS = "kmeans.hybrid.threads";
+  // more chunks than threads balance the work if the pruning skips points
+  public static final int CHUNKS_PER_THREAD = 4;
+  // reduce center i on peer (i mod numPeers) instead of on all peers
+  public static final String CONF_REDUCE_CENTERS = "kmeans.hybrid.reduce.centers";
+  // points per peer and superstep of the mini-batch mode, 0 = Lloyd
+  public static final String CONF_MINI_BATCH_SIZE = "kmeans.hybrid.minibatch.size";
+  // a center has moved if the L1 norm of its shift exceeds epsilon
+  public static final String CONF_CONVERGENCE_EPSILON = "kmeans.hybrid.convergence.epsilon";
+  // log centers moved, total shift and bytes sent of each iteration
+  public static final String CONF_TELEMETRY = "kmeans.hybrid.telemetry";
+  // run KMeansParallelSeedingBSP to replace the initial centers
+  public static final String CONF_SEEDING = "kmeans.hybrid.seeding";
+  // measure the assignment time of this many iterations, then move points
+  // between the CPU and GPU tasks to balance it, 0 = off
+  public static final String CONF_REBALANCE_ITERATIONS = "kmeans.hybrid.rebalance.iterations";
+  // points are only moved if the slowest peer gets faster by this fraction
+  public static final double REBALANCE_MIN_GAIN = 0.05;
+
+  // totals of all iterations, the shift and the time waited at the barriers
+  // of all peers are counted in units of 1e-6
+  public enum KMeansCounter {
+    ITERATIONS, CENTERS_MOVED, TOTAL_SHIFT_MICROS, BYTES_SENT,
+    BARRIER_WAIT_MICROS, POINTS_MIGRATED
+  }
 
   private static final Path CONF_TMP_DIR = new Path(
       "output/hama/hybrid/examples/kmeans/hybrid-" + System.currentTimeMillis());
@@ -89,18 +151,68 @@ public class KMeansHybridBSP
 
   // a task local copy of our cluster centers
   private DoubleVector[] m_centers_cpu = null;
+  private boolean m_broadcastCenters;
   private double[][] m_centers_gpu = null;
+  // encoding of the messages sent by this task
+  private CenterMessage.Encoding m_encoding;
 
   // simple cache to speed up computation, because the algorithm is disk based
   // normally we want to rely on OS caching, but if not, we can cache in heap
   private List<DoubleVector> m_cache = new ArrayList<DoubleVector>();
+  // alternative cache storing all vectors row-major in one double[]
+  private boolean m_useFlatCache;
+  private FlatDoubleVectorCache m_flatCache = null;
+  // disk based variant of the flat cache, scanned in blocks of rows
+  private boolean m_useDiskCache;
+  private MappedDoubleVectorCache m_diskCache = null;
+  // reduced precision variant of the flat cache
+  private QuantizedVectorCache.Type m_quantization;
+  private QuantizedVectorCache m_quantizedCache = null;
+  // block of decoded points of the disk or the quantized cache
+  private double[] m_blockBuffer = null;
+  // preallocated buffers of the flat cache mode, reused in each superstep
+  private double[] m_centersFlat = null;
+  private double[] m_newCenterSums = null;
+  private int[] m_summationCounts = null;
+  // bounds of the accelerated nearest center search
+  private boolean m_usePruning;
+  private TriangleInequalityPruning m_pruning = null;
+  // tree over the centers for large k, rebuilt in each superstep
+  private CenterIndex.Type m_centerIndexType;
+  private CenterIndex m_centerIndex = null;
+  // intra task parallel assignment of the flat cache
+  private int m_threads;
+  private ExecutorService m_executor = null;
+  private AssignmentChunk[] m_chunks = null;
+  // send partial sums to the owner of a center, which broadcasts the result
+  private boolean m_reduceCenters;
+  // mini-batch mode, number of points each center has seen so far
+  private int m_miniBatchSize;
+  private long[] m_miniBatchCenterCounts = null;
+  // convergence tolerance and statistics of the current iteration
+  private double m_epsilon;
+  private boolean m_telemetry;
+  private double m_totalShift = 0;
+  private long m_bytesSent = 0;
+  // nearest center of each cached point in the last assignment, which is
+  // still valid for the output if no center moved afterwards
+  private int[] m_labels = null;
+  private boolean m_labelsValid = false;
   // numbers of maximum iterations to do
+  private int m_rebalanceIterations;
+  // assignment time of the iterations measured for the rebalancing
+  private long m_assignNanos = 0;
+  // time spent in peer.sync() of the current iteration and of all
+  private long m_barrierWaitNanos = 0;
+  private long m_totalBarrierWaitNanos = 0;
+
   private int m_maxIterations;
 
   private Configuration m_conf;
 
   private int m_gridSize;
   private int m_blockSize;
+  private boolean m_hexMessages;
 
   /********************************* CPU *********************************/
   @Override
@@ -112,6 +224,88 @@ public class KMeansHybridBSP
     this.m_timeMeasurement = m_conf.getBoolean(CONF_TIME, false);
     this.m_isDebuggingEnabled = m_conf.getBoolean(CONF_DEBUG, false);
     this.m_maxIterations = m_conf.getInt(CONF_MAX_ITERATIONS, -1);
+    this.m_useFlatCache = m_conf.getBoolean(CONF_FLAT_CACHE, false);
+    this.m_useDiskCache = m_conf.getBoolean(CONF_DISK_CACHE, false);
+    if (m_useDiskCache && !m_useFlatCache) {
+      // the disk cache is read into flat buffers
+      LOG.info("Enable " + CONF_FLAT_CACHE + " required by "
+          + CONF_DISK_CACHE);
+      m_useFlatCache = true;
+    }
+    this.m_quantization = QuantizedVectorCache.parseType(m_conf
+        .get(CONF_QUANTIZATION));
+    if (m_quantization != null && m_useDiskCache) {
+      LOG.info("Disable " + CONF_QUANTIZATION + ", the " + CONF_DISK_CACHE
+          + " stores doubles");
+      m_quantization = null;
+    }
+    if (m_quantization != null && !m_useFlatCache) {
+      // the quantized cache replaces the flat cache
+      LOG.info("Enable " + CONF_FLAT_CACHE + " required by "
+          + CONF_QUANTIZATION);
+      m_useFlatCache = true;
+    }
+    this.m_usePruning = m_conf.getBoolean(CONF_PRUNING, false);
+    if (m_usePruning && !m_useFlatCache) {
+      // the bounds are kept per point index of the flat cache
+      LOG.info("Enable " + CONF_FLAT_CACHE + " required by " + CONF_PRUNING);
+      m_useFlatCache = true;
+    }
+    this.m_centerIndexType = CenterIndex.parseType(m_conf
+        .get(CONF_CENTER_INDEX));
+    if (m_centerIndexType != null && !m_useFlatCache) {
+      // the index is built from the flat centers
+      LOG.info("Enable " + CONF_FLAT_CACHE + " required by "
+          + CONF_CENTER_INDEX);
+      m_useFlatCache = true;
+    }
+    this.m_threads = m_conf.getInt(CONF_THREADS, 1);
+    if (m_threads > 1 && !m_useFlatCache) {
+      // the points are split into index ranges of the flat cache
+      LOG.info("Enable " + CONF_FLAT_CACHE + " required by " + CONF_THREADS);
+      m_useFlatCache = true;
+    }
+    this.m_reduceCenters = m_conf.getBoolean(CONF_REDUCE_CENTERS, false);
+    this.m_epsilon = m_conf.getFloat(CONF_CONVERGENCE_EPSILON, 0.0f);
+    this.m_telemetry = m_conf.getBoolean(CONF_TELEMETRY, false);
+    this.m_miniBatchSize = m_conf.getInt(CONF_MINI_BATCH_SIZE, 0);
+    if (m_miniBatchSize > 0) {
+      Preconditions.checkArgument(m_maxIterations > 0, CONF_MINI_BATCH_SIZE
+          + " requires " + CONF_MAX_ITERATIONS);
+      if (m_useFlatCache || m_threads > 1) {
+        // the batches are streamed from the input and never cached
+        LOG.info("Disable " + CONF_FLAT_CACHE + ", " + CONF_DISK_CACHE + ", "
+            + CONF_QUANTIZATION + ", " + CONF_PRUNING + ", "
+            + CONF_CENTER_INDEX + " and " + CONF_THREADS
+            + " in mini-batch mode");
+        m_useFlatCache = false;
+        m_useDiskCache = false;
+        m_quantization = null;
+        m_centerIndexType = null;
+        m_usePruning = false;
+        m_threads = 1;
+      }
+    }
+    this.m_rebalanceIterations = m_conf.getInt(CONF_REBALANCE_ITERATIONS, 0);
+    if (m_rebalanceIterations > 0) {
+      // the first iteration also reads the input
+      Preconditions.checkArgument(m_rebalanceIterations >= 2,
+          CONF_REBALANCE_ITERATIONS + " has to be at least 2");
+      if (m_useDiskCache || m_quantization != null || m_miniBatchSize > 0) {
+        // the points are moved as exact doubles of the flat cache
+        LOG.info("Disable " + CONF_REBALANCE_ITERATIONS + " with "
+            + CONF_DISK_CACHE + ", " + CONF_QUANTIZATION + " or "
+            + CONF_MINI_BATCH_SIZE);
+        m_rebalanceIterations = 0;
+      } else if (!m_useFlatCache) {
+        LOG.info("Enable " + CONF_FLAT_CACHE + " required by "
+            + CONF_REBALANCE_ITERATIONS);
+        m_useFlatCache = true;
+      }
+    }
+    this.m_encoding = CenterMessage.parseEncoding(m_conf
+        .get(CONF_MESSAGE_ENCODING));
+    this.m_broadcastCenters = m_conf.getBoolean(CONF_BROADCAST_CENTERS, false);
 
     // Init logging
     if (m_isDebuggingEnabled) {
@@ -132,7 +326,24 @@ public class KMeansHybridBSP
       startTime = System.currentTimeMillis();
     }
 
-    // Init center vectors
+    // Init center vectors, the other peers receive them in the first
+    // superstep if they are broadcast
+    if (!m_broadcastCenters || peer.getPeerIndex() == 0) {
+      this.m_centers_cpu = readCenters();
+    }
+
+    long stopTime = 0;
+    if (m_timeMeasurement) {
+      stopTime = System.currentTimeMillis();
+      LOG.info("# setupTime: " + ((stopTime - startTime) / 1000.0) + " sec");
+      if (m_isDebuggingEnabled) {
+        m_logger.writeChars("PiEstimatorHybrid,setupTime: "
+            + ((stopTime - startTime) / 1000.0) + " sec\n");
+      }
+    }
+  }
+
+  private DoubleVector[] readCenters() throws IOException {
     Path centroids = new Path(m_conf.get(CONF_CENTER_IN_PATH));
     FileSystem fs = FileSystem.get(m_conf);
 
@@ -157,15 +368,34 @@ public class KMeansHybridBSP
     Preconditions.checkArgument(centers.size() > 0,
         "Centers file must contain at least a single center!");
 
-    this.m_centers_cpu = centers.toArray(new DoubleVector[centers.size()]);
+    return centers.toArray(new DoubleVector[centers.size()]);
+  }
 
-    long stopTime = 0;
-    if (m_timeMeasurement) {
-      stopTime = System.currentTimeMillis();
-      LOG.info("# setupTime: " + ((stopTime - startTime) / 1000.0) + " sec");
-      if (m_isDebuggingEnabled) {
-        m_logger.writeChars("PiEstimatorHybrid,setupTime: "
-            + ((stopTime - startTime) / 1000.0) + " sec\n");
+  /**
+   * Spreads the centers read by peer 0 to all other peers, see TreeBroadcast.
+   */
+  private void broadcastCenters(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    List<CenterMessage> chunks = null;
+    if (peer.getPeerIndex() == 0) {
+      chunks = new ArrayList<CenterMessage>(m_centers_cpu.length);
+      for (int i = 0; i < m_centers_cpu.length; i++) {
+        // the initial centers have to be exact
+        chunks.add(new CenterMessage(i, 0, m_centers_cpu[i],
+            getExactEncoding()));
+      }
+    }
+    // the inner peers of the tree forward the chunks as hex
+    chunks = TreeBroadcast.broadcast(peer, 0, chunks);
+
+    if (peer.getPeerIndex() != 0) {
+      Preconditions.checkArgument(chunks.size() > 0,
+          "Centers file must contain at least a single center!");
+      this.m_centers_cpu = new DoubleVector[chunks.size()];
+      for (CenterMessage msg : chunks) {
+        m_centers_cpu[msg.getCenterIndex()] = msg.getData();
       }
     }
   }
@@ -181,22 +411,39 @@ public class KMeansHybridBSP
       startTime = System.currentTimeMillis();
     }
 
+    if (m_broadcastCenters) {
+      broadcastCenters(peer);
+    }
+
     long converged;
+    int iterations = 0;
     while (true) {
+      final long assignTime = System.nanoTime();
       assignCenters(peer);
+      if (iterations > 0) {
+        m_assignNanos += System.nanoTime() - assignTime;
+      }
 
       long syncTime = 0;
       if (m_timeMeasurement) {
         syncTime = System.currentTimeMillis();
       }
 
-      peer.sync();
+      sync(peer);
+
+      if (m_reduceCenters) {
+        // second superstep: the owners broadcast their reduced centers
+        reduceOwnedCenters(peer, m_epsilon);
+        sync(peer);
+      }
 
       if (m_timeMeasurement) {
         totalSyncTime += System.currentTimeMillis() - syncTime;
       }
 
-      converged = updateCenters(peer);
+      converged = updateCenters(peer, m_epsilon);
+      iterations++;
+      recordIteration(peer, iterations, converged);
 
       // Logging
       if (m_isDebuggingEnabled) {
@@ -204,18 +451,38 @@ public class KMeansHybridBSP
         m_logger.flush();
       }
 
-      peer.reopenInput();
+      // mini-batches continue where the previous one stopped
+      if (m_miniBatchSize <= 0) {
+        peer.reopenInput();
+      }
 
       if (converged == 0) {
         break;
       }
-      if ((m_maxIterations > 0) && (m_maxIterations < peer.getSuperstepCount())) {
+      if ((m_maxIterations > 0) && (m_maxIterations < iterations)) {
         break;
       }
+      if (iterations == m_rebalanceIterations) {
+        rebalance(peer);
+      }
     }
 
+    m_labelsValid = (converged == 0);
+    if (m_quantizedCache != null) {
+      reaccumulateCentersAndWrite(peer);
+    }
     recalculateAssignmentsAndWrite(peer);
 
+    if (m_executor != null) {
+      m_executor.shutdown();
+    }
+    if (m_diskCache != null) {
+      m_diskCache.close();
+    }
+    LOG.info("Peer " + peer.getPeerName() + " waited "
+        + (m_totalBarrierWaitNanos / 1000000) + " ms at the barriers of "
+        + iterations + " iterations");
+
     long stopTime = System.currentTimeMillis();
     if (m_timeMeasurement) {
       LOG.info("# bspGpuTime: " + ((stopTime - startTime) / 1000.0) + " sec");
@@ -237,7 +504,16 @@ public class KMeansHybridBSP
 
   private void assignCenters(
       BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer)
-      throws IOException {
+      throws IOException, InterruptedException {
+
+    if (m_useFlatCache) {
+      assignCentersFlat(peer);
+      return;
+    }
+    if (m_miniBatchSize > 0) {
+      assignCentersMiniBatch(peer);
+      return;
+    }
 
     // each task has all the centers, if a center has been updated it
     // needs to be broadcasted.
@@ -252,35 +528,68 @@ public class KMeansHybridBSP
         DoubleVector deepCopy = key.getVector().deepCopy();
         m_cache.add(deepCopy);
         // but do the assignment directly
-        assignCentersInternal(newCenterArray, summationCount, deepCopy);
+        setLabel(m_cache.size() - 1,
+            assignCentersInternal(newCenterArray, summationCount, deepCopy));
       }
     } else {
       // now we can iterate in memory and check against the centers
-      for (DoubleVector v : m_cache) {
-        assignCentersInternal(newCenterArray, summationCount, v);
+      for (int i = 0; i < m_cache.size(); i++) {
+        m_labels[i] = assignCentersInternal(newCenterArray, summationCount,
+            m_cache.get(i));
       }
     }
 
     // now send messages about the local updates to each other peer
     for (int i = 0; i < newCenterArray.length; i++) {
       if (newCenterArray[i] != null) {
-        for (String peerName : peer.getAllPeerNames()) {
-          peer.send(peerName, new CenterMessage(i, summationCount[i],
-              newCenterArray[i]));
-          // Logging
-          // if (m_isDebuggingEnabled) {
-          // m_logger.writeChars("assignCenters,sent,peerName=" + peerName
-          // + ",CenterMessage=" + i + "," + summationCount[i] + ","
-          // + Arrays.toString(newCenterArray[i].toArray()) + "\n");
-          // m_logger.flush();
-          // }
-        }
+        sendCenterMessage(peer, new CenterMessage(i, summationCount[i],
+            newCenterArray[i], m_encoding));
       }
     }
 
   }
 
-  private void assignCentersInternal(final DoubleVector[] newCenterArray,
+  // sends a partial sum to all peers or only to the owner of the center
+  private void sendCenterMessage(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer,
+      CenterMessage msg) throws IOException {
+    if (m_reduceCenters) {
+      peer.send(peer.getPeerName(msg.getCenterIndex() % peer.getNumPeers()),
+          msg);
+      m_bytesSent += msg.getEncodedSize();
+    } else {
+      m_bytesSent += (long) msg.getEncodedSize() * peer.getNumPeers();
+      for (String peerName : peer.getAllPeerNames()) {
+        peer.send(peerName, msg);
+        // Logging
+        // if (m_isDebuggingEnabled) {
+        // m_logger.writeChars("assignCenters,sent,peerName=" + peerName
+        // + ",CenterMessage=" + msg.getCenterIndex() + ","
+        // + msg.getIncrementCounter() + ","
+        // + Arrays.toString(msg.getData().toArray()) + "\n");
+        // m_logger.flush();
+        // }
+      }
+    }
+  }
+
+  // the encoding of messages whose values have to be exact
+  private CenterMessage.Encoding getExactEncoding() {
+    return (m_encoding == CenterMessage.Encoding.FLOAT) ? CenterMessage.Encoding.DOUBLE
+        : m_encoding;
+  }
+
+  // the labels of the cache grow while the input is read the first time
+  private void setLabel(int pointIndex, int center) {
+    if (m_labels == null) {
+      m_labels = new int[FlatDoubleVectorCache.DEFAULT_CAPACITY];
+    } else if (pointIndex >= m_labels.length) {
+      m_labels = Arrays.copyOf(m_labels, 2 * m_labels.length);
+    }
+    m_labels[pointIndex] = center;
+  }
+
+  private int assignCentersInternal(final DoubleVector[] newCenterArray,
       final int[] summationCount, final DoubleVector key) throws IOException {
 
     final int lowestDistantCenter = getNearestCenter(key);
@@ -294,6 +603,7 @@ public class KMeansHybridBSP
           .addUnsafe(key);
     }
     summationCount[lowestDistantCenter]++;
+    return lowestDistantCenter;
   }
 
   private int getNearestCenter(DoubleVector key) throws IOException {
@@ -328,46 +638,400 @@ public class KMeansHybridBSP
   }
 
   private double measureEuclidianDistance(DoubleVector vec1, DoubleVector vec2) {
-    return Math.sqrt(vec2.subtractUnsafe(vec1).pow(2).sum());
+    // same as Math.sqrt(vec2.subtractUnsafe(vec1).pow(2).sum())
+    // but without allocating temporary vectors
+    double sum = 0;
+    int length = vec1.getLength();
+    for (int i = 0; i < length; i++) {
+      double diff = vec2.get(i) - vec1.get(i);
+      // multiplication is faster than Math.pow() for ^2.
+      sum += (diff * diff);
+    }
+    return Math.sqrt(sum);
   }
 
-  private long updateCenters(
+  // assigns the next batch of the input, starts over at the end of the input
+  private void assignCentersMiniBatch(
       BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer)
       throws IOException {
 
-    // this is the update step
-    DoubleVector[] msgCenters = new DoubleVector[m_centers_cpu.length];
-    int[] incrementSum = new int[m_centers_cpu.length];
+    final int centerCount = m_centers_cpu.length;
+    final int dimension = m_centers_cpu[0].getDimension();
+    if (m_newCenterSums == null) {
+      m_newCenterSums = new double[centerCount * dimension];
+      m_summationCounts = new int[centerCount];
+    }
+    Arrays.fill(m_newCenterSums, 0);
+    Arrays.fill(m_summationCounts, 0);
 
-    CenterMessage msg;
-    // basically just summing incoming vectors
-    while ((msg = peer.getCurrentMessage()) != null) {
+    final PipesVectorWritable key = new PipesVectorWritable();
+    final NullWritable value = NullWritable.get();
+    boolean reopened = false;
+    int batchCount = 0;
+    while (batchCount < m_miniBatchSize) {
+      if (!peer.readNext(key, value)) {
+        // the input is smaller than the batch, use each point only once
+        if (reopened) {
+          break;
+        }
+        peer.reopenInput();
+        reopened = true;
+        continue;
+      }
+      final DoubleVector point = key.getVector();
+      final int lowestDistantCenter = getNearestCenter(point);
+      final int sumOffset = lowestDistantCenter * dimension;
+      for (int j = 0; j < dimension; j++) {
+        m_newCenterSums[sumOffset + j] += point.get(j);
+      }
+      m_summationCounts[lowestDistantCenter]++;
+      batchCount++;
+    }
 
-      // Logging
-      if (m_isDebuggingEnabled) {
-        m_logger.writeChars("updateCenters,receive,CenterMessage="
-            + msg.getCenterIndex() + "," + msg.getIncrementCounter() + ","
-            + Arrays.toString(msg.getData().toArray()) + "\n");
-        m_logger.flush();
+    // send only the centers which got points of this batch
+    sendCenterSums(peer, dimension);
+  }
+
+  // sends the partial sums of all centers which got points
+  private void sendCenterSums(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer,
+      int dimension) throws IOException {
+    for (int i = 0; i < m_summationCounts.length; i++) {
+      if (m_summationCounts[i] > 0) {
+        double[] newCenter = new double[dimension];
+        System.arraycopy(m_newCenterSums, i * dimension, newCenter, 0,
+            dimension);
+        sendCenterMessage(peer, new CenterMessage(i, m_summationCounts[i],
+            new DenseDoubleVector(newCenter), m_encoding));
       }
+    }
+  }
 
-      DoubleVector oldCenter = msgCenters[msg.getCenterIndex()];
-      DoubleVector newCenter = msg.getData();
-      incrementSum[msg.getCenterIndex()] += msg.getIncrementCounter();
+  private void assignCentersFlat(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer)
+      throws IOException, InterruptedException {
 
-      if (oldCenter == null) {
-        msgCenters[msg.getCenterIndex()] = newCenter;
+    final int centerCount = m_centers_cpu.length;
+
+    // if our cache is empty, we have to read it from disk first
+    if (m_flatCache == null && m_diskCache == null
+        && m_quantizedCache == null) {
+      final int dimension = m_centers_cpu[0].getDimension();
+      if (m_useDiskCache) {
+        readDiskCache(peer, dimension);
+      } else if (m_quantization != null) {
+        m_quantizedCache = new QuantizedVectorCache(m_quantization, dimension);
+        final PipesVectorWritable key = new PipesVectorWritable();
+        final NullWritable value = NullWritable.get();
+        while (peer.readNext(key, value)) {
+          m_quantizedCache.add(key.getVector());
+        }
+        m_quantizedCache.trimToSize();
+        m_blockBuffer = createBlockBuffer(dimension);
+        LOG.info("Cached " + m_quantizedCache.getSize() + " points as "
+            + m_quantization + " using "
+            + ((long) m_quantizedCache.getSize() * m_quantizedCache
+                .getRowBytes()) + " bytes");
       } else {
-        msgCenters[msg.getCenterIndex()] = oldCenter.addUnsafe(newCenter);
+        m_flatCache = new FlatDoubleVectorCache(dimension);
+        final PipesVectorWritable key = new PipesVectorWritable();
+        final NullWritable value = NullWritable.get();
+        while (peer.readNext(key, value)) {
+          m_flatCache.add(key.getVector());
+        }
+        m_flatCache.trimToSize();
+      }
+      final int pointCount = getCachedPointCount();
+
+      m_centersFlat = new double[centerCount * dimension];
+      m_newCenterSums = new double[centerCount * dimension];
+      m_summationCounts = new int[centerCount];
+      m_labels = new int[pointCount];
+
+      if (m_centerIndexType != null) {
+        m_centerIndex = new CenterIndex(m_centerIndexType, centerCount,
+            dimension, peer.getPeerIndex());
+      }
+      if (m_usePruning) {
+        m_pruning = new TriangleInequalityPruning(pointCount, centerCount,
+            dimension);
+        m_pruning.setCenterIndex(m_centerIndex);
+      }
+
+      if (m_threads > 1) {
+        createAssignmentChunks(pointCount, centerCount, dimension);
       }
     }
-    // divide by how often we globally summed vectors
+
+    final int dimension = m_centers_cpu[0].getDimension();
+
+    copyCentersToFlat();
+    Arrays.fill(m_newCenterSums, 0);
+    Arrays.fill(m_summationCounts, 0);
+
+    if (m_chunks != null) {
+      assignChunks();
+    } else {
+      // iterate over the cache and sum up the points per nearest center
+      assignCachedRange(0, getCachedPointCount(), m_newCenterSums,
+          m_summationCounts, m_blockBuffer);
+    }
+
+    // now send messages about the local updates to each other peer
+    sendCenterSums(peer, dimension);
+  }
+
+  // writes the input into a local file, which is mapped for the iterations
+  private void readDiskCache(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer,
+      int dimension) throws IOException {
+    String dir = m_conf.get(CONF_DISK_CACHE_DIR,
+        System.getProperty("java.io.tmpdir"));
+    File file = File.createTempFile("kmeans_" + peer.getTaskId() + "_",
+        ".cache", new File(dir));
+    m_diskCache = new MappedDoubleVectorCache(file, dimension);
+    final PipesVectorWritable key = new PipesVectorWritable();
+    final NullWritable value = NullWritable.get();
+    while (peer.readNext(key, value)) {
+      m_diskCache.add(key.getVector());
+    }
+    m_diskCache.finish();
+    m_blockBuffer = createBlockBuffer(dimension);
+
+    LOG.info("Cached " + m_diskCache.getSize() + " points in " + file);
+  }
+
+  private double[] createBlockBuffer(int dimension) {
+    int blockSize = (m_quantizedCache != null) ? QUANTIZED_BLOCK_SIZE
+        : DISK_CACHE_BLOCK_SIZE;
+    int rows = Math.max(1, blockSize / (8 * dimension));
+    return new double[rows * dimension];
+  }
+
+  private int getCachedPointCount() {
+    if (m_diskCache != null) {
+      return m_diskCache.getSize();
+    }
+    return (m_quantizedCache != null) ? m_quantizedCache.getSize()
+        : m_flatCache.getSize();
+  }
+
+  // the disk and the quantized cache are decoded block-wise into buffer, the
+  // flat cache is used directly
+  private void assignCachedRange(final int start, final int end,
+      final double[] newCenterSums, final int[] summationCounts,
+      final double[] buffer) {
+    final int dimension = m_centers_cpu[0].getDimension();
+    if (m_diskCache == null && m_quantizedCache == null) {
+      assignRange(m_flatCache.getValues(), 0, start, end, dimension,
+          newCenterSums, summationCounts);
+      return;
+    }
+    final int blockRows = buffer.length / dimension;
+    for (int blockStart = start; blockStart < end; blockStart += blockRows) {
+      final int blockEnd = Math.min(end, blockStart + blockRows);
+      if (m_diskCache != null) {
+        m_diskCache.read(blockStart, blockEnd - blockStart, buffer);
+      } else {
+        m_quantizedCache.read(blockStart, blockEnd - blockStart, buffer);
+      }
+      assignRange(buffer, blockStart, blockStart, blockEnd, dimension,
+          newCenterSums, summationCounts);
+    }
+  }
+
+  // points[0] holds the point with index firstPoint
+  private void assignRange(final double[] points, final int firstPoint,
+      final int start, final int end, final int dimension,
+      final double[] newCenterSums, final int[] summationCounts) {
+    for (int i = start; i < end; i++) {
+      final int pointOffset = (i - firstPoint) * dimension;
+      final int lowestDistantCenter = getNearestCenter(i, points,
+          pointOffset, dimension);
+      m_labels[i] = lowestDistantCenter;
+      final int sumOffset = lowestDistantCenter * dimension;
+      for (int j = 0; j < dimension; j++) {
+        newCenterSums[sumOffset + j] += points[pointOffset + j];
+      }
+      summationCounts[lowestDistantCenter]++;
+    }
+  }
+
+  private void createAssignmentChunks(int pointCount, int centerCount,
+      int dimension) {
+    int chunkCount = Math.max(1,
+        Math.min(pointCount, m_threads * CHUNKS_PER_THREAD));
+    m_chunks = new AssignmentChunk[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      int start = (int) (((long) pointCount * i) / chunkCount);
+      int end = (int) (((long) pointCount * (i + 1)) / chunkCount);
+      m_chunks[i] = new AssignmentChunk(start, end, centerCount, dimension);
+    }
+
+    if (m_executor == null) {
+      m_executor = Executors.newFixedThreadPool(m_threads, new ThreadFactory() {
+        private int m_threadCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "KMeansHybridBSP-assign-"
+              + (m_threadCount++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    LOG.info("Assign " + pointCount + " points in " + chunkCount
+        + " chunks using " + m_threads + " threads");
+  }
+
+  private void assignChunks() throws IOException, InterruptedException {
+    List<Future<AssignmentChunk>> futures = new ArrayList<Future<AssignmentChunk>>(
+        m_chunks.length);
+    for (AssignmentChunk chunk : m_chunks) {
+      futures.add(m_executor.submit(chunk));
+    }
+
+    // merge the chunks in a fixed order, independent of their completion
+    final int dimension = m_centers_cpu[0].getDimension();
+    for (Future<AssignmentChunk> future : futures) {
+      AssignmentChunk chunk;
+      try {
+        chunk = future.get();
+      } catch (ExecutionException e) {
+        throw new IOException("Assignment of chunk failed!", e.getCause());
+      }
+      for (int i = 0; i < m_summationCounts.length; i++) {
+        if (chunk.m_summationCounts[i] > 0) {
+          m_summationCounts[i] += chunk.m_summationCounts[i];
+          final int offset = i * dimension;
+          for (int j = 0; j < dimension; j++) {
+            m_newCenterSums[offset + j] += chunk.m_newCenterSums[offset + j];
+          }
+        }
+      }
+    }
+  }
+
+  // a range of the flat cache with its own sum and count buffers
+  private final class AssignmentChunk implements Callable<AssignmentChunk> {
+    private final int m_start;
+    private final int m_end;
+    private final double[] m_newCenterSums;
+    private final int[] m_summationCounts;
+    private final double[] m_buffer;
+
+    public AssignmentChunk(int start, int end, int centerCount, int dimension) {
+      this.m_start = start;
+      this.m_end = end;
+      this.m_newCenterSums = new double[centerCount * dimension];
+      this.m_summationCounts = new int[centerCount];
+      this.m_buffer = (m_diskCache != null || m_quantizedCache != null)
+          ? createBlockBuffer(dimension) : null;
+    }
+
+    @Override
+    public AssignmentChunk call() {
+      Arrays.fill(m_newCenterSums, 0);
+      Arrays.fill(m_summationCounts, 0);
+      assignCachedRange(m_start, m_end, m_newCenterSums, m_summationCounts,
+          m_buffer);
+      return this;
+    }
+  }
+
+  // copy the current centers into the preallocated flat centers array
+  private void copyCentersToFlat() {
+    final int dimension = m_centers_cpu[0].getDimension();
+    for (int i = 0; i < m_centers_cpu.length; i++) {
+      final DoubleVector center = m_centers_cpu[i];
+      final int offset = i * dimension;
+      for (int j = 0; j < dimension; j++) {
+        m_centersFlat[offset + j] = center.get(j);
+      }
+    }
+    if (m_centerIndex != null) {
+      m_centerIndex.build(m_centersFlat);
+    }
+    if (m_pruning != null) {
+      m_pruning.updateCenters(m_centersFlat);
+    }
+  }
+
+  private int getNearestCenter(final int pointIndex, final double[] points,
+      final int pointOffset, final int dimension) {
+    if (m_pruning != null) {
+      return m_pruning.getNearestCenter(pointIndex, points, pointOffset);
+    }
+    if (m_centerIndex != null) {
+      return m_centerIndex.getNearestCenter(points, pointOffset);
+    }
+    return getNearestCenter(points, pointOffset, dimension);
+  }
+
+  private int getNearestCenter(final double[] points, final int pointOffset,
+      final int dimension) {
+    int lowestDistantCenter = 0;
+    double lowestDistance = Double.MAX_VALUE;
+
+    for (int i = 0; i < m_centers_cpu.length; i++) {
+      final int centerOffset = i * dimension;
+      // measure Euclidean Distance
+      double sum = 0;
+      for (int j = 0; j < dimension; j++) {
+        double diff = points[pointOffset + j] - m_centersFlat[centerOffset + j];
+        // multiplication is faster than Math.pow() for ^2.
+        sum += (diff * diff);
+      }
+      final double estimatedDistance = Math.sqrt(sum);
+
+      // check if we have a can assign a new center, because we
+      // got a lower distance
+      if (estimatedDistance < lowestDistance) {
+        lowestDistance = estimatedDistance;
+        lowestDistantCenter = i;
+      }
+    }
+    return lowestDistantCenter;
+  }
+
+  // the owner of a center reduces the partial sums and broadcasts the
+  // center if it moved more than epsilon, which is received as a sum of one
+  // in updateCenters
+  private void reduceOwnedCenters(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer,
+      double epsilon) throws IOException {
+
+    int[] incrementSum = new int[m_centers_cpu.length];
+    DoubleVector[] msgCenters = receiveCenters(peer, incrementSum);
+    if (m_miniBatchSize > 0) {
+      // only the owner keeps the per-center counts
+      applyMiniBatchUpdate(msgCenters, incrementSum);
+    }
     for (int i = 0; i < msgCenters.length; i++) {
-      // and only if we really have an update for c
-      if (msgCenters[i] != null) {
-        msgCenters[i] = msgCenters[i].divide(incrementSum[i]);
+      // the other peers keep their copy of centers which did not move
+      if ((msgCenters[i] != null)
+          && (m_centers_cpu[i].subtractUnsafe(msgCenters[i]).abs().sum() > epsilon)) {
+        CenterMessage msg = new CenterMessage(i, 1, msgCenters[i],
+            m_encoding);
+        m_bytesSent += (long) msg.getEncodedSize() * peer.getNumPeers();
+        for (String peerName : peer.getAllPeerNames()) {
+          peer.send(peerName, msg);
+        }
       }
     }
+  }
+
+  private long updateCenters(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer,
+      double epsilon) throws IOException {
+
+    int[] incrementSum = new int[m_centers_cpu.length];
+    DoubleVector[] msgCenters = receiveCenters(peer, incrementSum);
+    if ((m_miniBatchSize > 0) && !m_reduceCenters) {
+      applyMiniBatchUpdate(msgCenters, incrementSum);
+    }
 
     // finally check for convergence by the absolute difference
     long convergedCounter = 0L;
@@ -390,9 +1054,10 @@ public class KMeansHybridBSP
         // m_logger.flush();
         // }
 
-        if (calculateError > 0.0d) {
+        if (calculateError > epsilon) {
           m_centers_cpu[i] = msgCenters[i];
           convergedCounter++;
+          m_totalShift += calculateError;
 
           // Logging
           if (m_isDebuggingEnabled) {
@@ -407,15 +1072,415 @@ public class KMeansHybridBSP
     return convergedCounter;
   }
 
+  private void recordIteration(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer,
+      int iteration, long centersMoved) throws IOException {
+
+    // every peer sees the same centers, so only the bytes are summed up
+    if (peer.getPeerIndex() == 0) {
+      peer.incrementCounter(KMeansCounter.ITERATIONS, 1);
+      peer.incrementCounter(KMeansCounter.CENTERS_MOVED, centersMoved);
+      peer.incrementCounter(KMeansCounter.TOTAL_SHIFT_MICROS,
+          Math.round(m_totalShift * 1e6));
+    }
+    peer.incrementCounter(KMeansCounter.BYTES_SENT, m_bytesSent);
+    peer.incrementCounter(KMeansCounter.BARRIER_WAIT_MICROS,
+        m_barrierWaitNanos / 1000);
+
+    if (m_telemetry) {
+      LOG.info("Iteration " + iteration + ": centersMoved=" + centersMoved
+          + " totalShift=" + m_totalShift + " bytesSent=" + m_bytesSent
+          + " barrierWaitMs=" + (m_barrierWaitNanos / 1000000.0));
+    }
+    if (m_isDebuggingEnabled) {
+      m_logger.writeChars("bsp,iteration: " + iteration + ",centersMoved: "
+          + centersMoved + ",totalShift: " + m_totalShift + ",bytesSent: "
+          + m_bytesSent + ",barrierWaitMs: " + (m_barrierWaitNanos / 1000000.0)
+          + "\n");
+      m_logger.flush();
+    }
+
+    m_totalShift = 0;
+    m_bytesSent = 0;
+    m_totalBarrierWaitNanos += m_barrierWaitNanos;
+    m_barrierWaitNanos = 0;
+  }
+
+  // peer.sync() which records the time until all peers reached the barrier
+  // and the messages are delivered
+  private void sync(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+    final long start = System.nanoTime();
+    peer.sync();
+    m_barrierWaitNanos += System.nanoTime() - start;
+  }
+
+  /**
+   * Moves cached points from slow to fast peers and rebuilds the per point
+   * state of the assignment for the new points.
+   */
+  private void rebalance(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    if (rebalancePoints(peer, m_flatCache, m_assignNanos) == null) {
+      return;
+    }
+
+    final int centerCount = m_centers_cpu.length;
+    final int dimension = m_centers_cpu[0].getDimension();
+    m_labels = new int[m_flatCache.getSize()];
+    if (m_pruning != null) {
+      m_pruning = new TriangleInequalityPruning(m_flatCache.getSize(),
+          centerCount, dimension);
+      m_pruning.setCenterIndex(m_centerIndex);
+    }
+    if (m_threads > 1) {
+      createAssignmentChunks(m_flatCache.getSize(), centerCount, dimension);
+    }
+  }
+
+  /**
+   * Moves points from slow to fast peers, so that all peers need about the
+   * same time for the assignment. CPU tasks move the points of their flat
+   * cache, GPU tasks the input of their kernel. The first superstep exchanges
+   * the point counts and the assignment times of the measured iterations.
+   * Every peer computes the same target counts from them and the peers with
+   * too many points send their last points in a second superstep.
+   * 
+   * @return the target point count of each peer or null if the points were
+   *         not moved
+   */
+  private int[] rebalancePoints(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer,
+      FlatDoubleVectorCache points, long assignNanos) throws IOException,
+      SyncException, InterruptedException {
+
+    final int numPeers = peer.getNumPeers();
+    final int peerIndex = peer.getPeerIndex();
+    final int pointCount = points.getSize();
+
+    // every peer uses the received values, including its own
+    CenterMessage stats = CenterMessage.stats(peerIndex, pointCount,
+        assignNanos);
+    for (String peerName : peer.getAllPeerNames()) {
+      peer.send(peerName, stats);
+    }
+    sync(peer);
+
+    final int[] counts = new int[numPeers];
+    final double[] times = new double[numPeers];
+    CenterMessage msg;
+    while ((msg = peer.getCurrentMessage()) != null) {
+      counts[msg.getPeerIndex()] = msg.getPointCount();
+      times[msg.getPeerIndex()] = msg.getAssignNanos();
+    }
+    final int[] targets = getBalancedCounts(counts, times);
+    if (targets == null) {
+      LOG.info("Assignment time is balanced: " + Arrays.toString(times));
+      return null;
+    }
+
+    // surplus and deficit peers are matched in peer order, a surplus
+    // peer sends its points from row targets[s] on
+    final int[] deficits = new int[numPeers];
+    for (int i = 0; i < numPeers; i++) {
+      deficits[i] = Math.max(0, targets[i] - counts[i]);
+    }
+    int receiver = 0;
+    long migrated = 0;
+    for (int sender = 0; sender < numPeers; sender++) {
+      int row = targets[sender];
+      while (row < counts[sender]) {
+        while (deficits[receiver] == 0) {
+          receiver++;
+        }
+        final int rows = Math.min(counts[sender] - row, deficits[receiver]);
+        if (sender == peerIndex) {
+          final String peerName = peer.getPeerName(receiver);
+          for (int i = row; i < row + rows; i++) {
+            CenterMessage point = CenterMessage.point(sender, i,
+                points.getVector(i));
+            m_bytesSent += point.getEncodedSize();
+            peer.send(peerName, point);
+          }
+        }
+        deficits[receiver] -= rows;
+        row += rows;
+        migrated += rows;
+      }
+    }
+    sync(peer);
+
+    // append the points ordered by sender and row
+    final List<CenterMessage> received = new ArrayList<CenterMessage>();
+    while ((msg = peer.getCurrentMessage()) != null) {
+      received.add(msg);
+    }
+    Collections.sort(received, new Comparator<CenterMessage>() {
+      @Override
+      public int compare(CenterMessage o1, CenterMessage o2) {
+        if (o1.getPeerIndex() != o2.getPeerIndex()) {
+          return (o1.getPeerIndex() < o2.getPeerIndex()) ? -1 : 1;
+        }
+        return (o1.getRow() < o2.getRow()) ? -1
+            : ((o1.getRow() == o2.getRow()) ? 0 : 1);
+      }
+    });
+    points.truncate(Math.min(pointCount, targets[peerIndex]));
+    for (CenterMessage point : received) {
+      points.add(point.getPoint());
+    }
+    if (peerIndex == 0) {
+      peer.incrementCounter(KMeansCounter.POINTS_MIGRATED, migrated);
+    }
+    LOG.info("Rebalanced peer " + peer.getPeerName() + " from "
+        + pointCount + " to " + points.getSize() + " points, " + migrated
+        + " points moved in total");
+    return targets;
+  }
+
+  /**
+   * Distributes the points proportional to the measured throughput of the
+   * peers. Peers without measurement get the mean throughput.
+   * 
+   * @return the target point count of each peer or null if the slowest peer
+   *         would gain less than REBALANCE_MIN_GAIN
+   */
+  static int[] getBalancedCounts(int[] counts, double[] times) {
+    final int numPeers = counts.length;
+    final double[] rates = new double[numPeers];
+    long total = 0;
+    double rateSum = 0;
+    int measured = 0;
+    for (int i = 0; i < numPeers; i++) {
+      total += counts[i];
+      if (counts[i] > 0 && times[i] > 0) {
+        rates[i] = counts[i] / times[i];
+        rateSum += rates[i];
+        measured++;
+      }
+    }
+    if (measured == 0) {
+      return null;
+    }
+    final double meanRate = rateSum / measured;
+    for (int i = 0; i < numPeers; i++) {
+      if (rates[i] == 0) {
+        rates[i] = meanRate;
+        rateSum += meanRate;
+      }
+    }
+
+    // round down and hand out the rest by the largest remainder
+    final int[] targets = new int[numPeers];
+    final double[] remainders = new double[numPeers];
+    long assigned = 0;
+    for (int i = 0; i < numPeers; i++) {
+      final double exact = total * rates[i] / rateSum;
+      targets[i] = (int) Math.floor(exact);
+      remainders[i] = exact - targets[i];
+      assigned += targets[i];
+    }
+    while (assigned < total) {
+      int largest = 0;
+      for (int i = 1; i < numPeers; i++) {
+        if (remainders[i] > remainders[largest]) {
+          largest = i;
+        }
+      }
+      targets[largest]++;
+      remainders[largest] = -1;
+      assigned++;
+    }
+
+    double before = 0;
+    double after = 0;
+    for (int i = 0; i < numPeers; i++) {
+      before = Math.max(before, counts[i] / rates[i]);
+      after = Math.max(after, targets[i] / rates[i]);
+    }
+    return (after < before * (1 - REBALANCE_MIN_GAIN)) ? targets : null;
+  }
+
+  private DoubleVector[] receiveCenters(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer,
+      int[] incrementSum) throws IOException {
+
+    // this is the update step
+    DoubleVector[] msgCenters = new DoubleVector[m_centers_cpu.length];
+
+    CenterMessage msg;
+    // basically just summing incoming vectors
+    while ((msg = peer.getCurrentMessage()) != null) {
+
+      // Logging
+      if (m_isDebuggingEnabled) {
+        m_logger.writeChars("updateCenters,receive,CenterMessage="
+            + msg.getCenterIndex() + "," + msg.getIncrementCounter() + ","
+            + Arrays.toString(msg.getData().toArray()) + "\n");
+        m_logger.flush();
+      }
+
+      DoubleVector oldCenter = msgCenters[msg.getCenterIndex()];
+      DoubleVector newCenter = msg.getData();
+      incrementSum[msg.getCenterIndex()] += msg.getIncrementCounter();
+
+      if (oldCenter == null) {
+        msgCenters[msg.getCenterIndex()] = newCenter;
+      } else {
+        msgCenters[msg.getCenterIndex()] = oldCenter.addUnsafe(newCenter);
+      }
+    }
+    // divide by how often we globally summed vectors
+    for (int i = 0; i < msgCenters.length; i++) {
+      // and only if we really have an update for c
+      if (msgCenters[i] != null) {
+        msgCenters[i] = msgCenters[i].divide(incrementSum[i]);
+      }
+    }
+    return msgCenters;
+  }
+
+  // moves each center towards the mean of its batch points with the per
+  // center learning rate batchCount / totalCount
+  private void applyMiniBatchUpdate(DoubleVector[] batchMeans,
+      int[] batchCounts) {
+    if (m_miniBatchCenterCounts == null) {
+      m_miniBatchCenterCounts = new long[m_centers_cpu.length];
+    }
+    for (int i = 0; i < batchMeans.length; i++) {
+      if (batchMeans[i] != null) {
+        m_miniBatchCenterCounts[i] += batchCounts[i];
+        double learningRate = batchCounts[i]
+            / (double) m_miniBatchCenterCounts[i];
+        batchMeans[i] = m_centers_cpu[i].addUnsafe(batchMeans[i]
+            .subtractUnsafe(m_centers_cpu[i]).multiply(learningRate));
+      }
+    }
+  }
+
+  /**
+   * The quantized cache only approximates the points, therefore the final
+   * centers are re-accumulated in double precision from the input, which is
+   * read once more. The assignments are written in the same pass.
+   */
+  private void reaccumulateCentersAndWrite(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    final int dimension = m_centers_cpu[0].getDimension();
+    // the labels of the last iteration belong to the previous centers
+    if (!m_labelsValid) {
+      copyCentersToFlat();
+    }
+    Arrays.fill(m_newCenterSums, 0);
+    Arrays.fill(m_summationCounts, 0);
+
+    final IntWritable keyWrite = new IntWritable();
+    final PipesVectorWritable key = new PipesVectorWritable();
+    final NullWritable value = NullWritable.get();
+    final double[] point = new double[dimension];
+    int pointIndex = 0;
+    while (peer.readNext(key, value)) {
+      final DoubleVector vector = key.getVector();
+      for (int j = 0; j < dimension; j++) {
+        point[j] = vector.get(j);
+      }
+      if (!m_labelsValid) {
+        m_labels[pointIndex] = (m_centerIndex != null) ? m_centerIndex
+            .getNearestCenter(point, 0) : getNearestCenter(point, 0, dimension);
+      }
+      final int center = m_labels[pointIndex];
+      final int sumOffset = center * dimension;
+      for (int j = 0; j < dimension; j++) {
+        m_newCenterSums[sumOffset + j] += point[j];
+      }
+      m_summationCounts[center]++;
+
+      keyWrite.set(center);
+      peer.write(keyWrite, key);
+      pointIndex++;
+    }
+    m_labelsValid = true;
+
+    sendCenterSums(peer, dimension);
+    sync(peer);
+    // the exact centers replace the approximated ones regardless of epsilon
+    if (m_reduceCenters) {
+      reduceOwnedCenters(peer, 0.0d);
+      sync(peer);
+    }
+    updateCenters(peer, 0.0d);
+    peer.incrementCounter(KMeansCounter.BYTES_SENT, m_bytesSent);
+    m_bytesSent = 0;
+  }
+
   private void recalculateAssignmentsAndWrite(
       BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer)
       throws IOException {
 
     IntWritable keyWrite = new IntWritable();
-    for (DoubleVector v : m_cache) {
-      final int lowestDistantCenter = getNearestCenter(v);
-      keyWrite.set(lowestDistantCenter);
-      peer.write(keyWrite, new PipesVectorWritable(v));
+    // reused for all records, the writer serializes them immediately
+    PipesVectorWritable valueWrite = new PipesVectorWritable();
+    // no center moved since the last assignment, so skip the distance pass
+    final boolean reuseLabels = m_labelsValid && (m_labels != null);
+    if (reuseLabels) {
+      LOG.info("Write the assignments of the last iteration");
+    } else if (m_useFlatCache) {
+      copyCentersToFlat();
+    }
+
+    if (m_diskCache != null) {
+      final int dimension = m_diskCache.getDimension();
+      final int blockRows = m_blockBuffer.length / dimension;
+      final double[] point = new double[dimension];
+      valueWrite.set(new DenseDoubleVector(point));
+      final int pointCount = m_diskCache.getSize();
+      for (int blockStart = 0; blockStart < pointCount;
+          blockStart += blockRows) {
+        final int rows = Math.min(blockRows, pointCount - blockStart);
+        m_diskCache.read(blockStart, rows, m_blockBuffer);
+        for (int i = 0; i < rows; i++) {
+          keyWrite.set(reuseLabels ? m_labels[blockStart + i]
+              : getNearestCenter(blockStart + i, m_blockBuffer, i * dimension,
+                  dimension));
+          System.arraycopy(m_blockBuffer, i * dimension, point, 0, dimension);
+          peer.write(keyWrite, valueWrite);
+        }
+      }
+    } else if (m_quantizedCache != null) {
+      // already written by reaccumulateCentersAndWrite
+    } else if (m_useFlatCache) {
+      if (m_flatCache != null) {
+        final int dimension = m_flatCache.getDimension();
+        final double[] points = m_flatCache.getValues();
+        final double[] point = new double[dimension];
+        valueWrite.set(new DenseDoubleVector(point));
+        for (int i = 0; i < m_flatCache.getSize(); i++) {
+          keyWrite.set(reuseLabels ? m_labels[i] : getNearestCenter(i, points,
+              i * dimension, dimension));
+          System.arraycopy(points, i * dimension, point, 0, dimension);
+          peer.write(keyWrite, valueWrite);
+        }
+      }
+    } else if (m_miniBatchSize > 0) {
+      // nothing is cached, so assign the whole input once
+      peer.reopenInput();
+      final PipesVectorWritable key = new PipesVectorWritable();
+      final NullWritable value = NullWritable.get();
+      while (peer.readNext(key, value)) {
+        keyWrite.set(getNearestCenter(key.getVector()));
+        peer.write(keyWrite, key);
+      }
+    } else {
+      for (int i = 0; i < m_cache.size(); i++) {
+        final DoubleVector v = m_cache.get(i);
+        keyWrite.set(reuseLabels ? m_labels[i] : getNearestCenter(v));
+        valueWrite.set(v);
+        peer.write(keyWrite, valueWrite);
+      }
     }
 
     // just on the first task write the centers to filesystem to prevent
@@ -449,6 +1514,44 @@ public class KMeansHybridBSP
     this.m_maxIterations = m_conf.getInt(CONF_MAX_ITERATIONS, -1);
     this.m_blockSize = Integer.parseInt(this.m_conf.get(CONF_BLOCKSIZE));
     this.m_gridSize = Integer.parseInt(this.m_conf.get(CONF_GRIDSIZE));
+    this.m_epsilon = m_conf.getFloat(CONF_CONVERGENCE_EPSILON, 0.0f);
+
+    // the kernel exchanges the partial sums of all centers with all peers
+    if (m_conf.getBoolean(CONF_REDUCE_CENTERS, false)) {
+      throw new IOException(CONF_REDUCE_CENTERS
+          + " is not supported by GPU tasks!");
+    }
+    if (m_conf.getInt(CONF_MINI_BATCH_SIZE, 0) > 0) {
+      throw new IOException(CONF_MINI_BATCH_SIZE
+          + " is not supported by GPU tasks!");
+    }
+    // the kernel counts the supersteps of the broadcast as iterations
+    if (m_conf.getBoolean(CONF_BROADCAST_CENTERS, false)) {
+      throw new IOException(CONF_BROADCAST_CENTERS
+          + " is not supported by GPU tasks!");
+    }
+    // the kernel is stopped for the rebalancing and restarted with the new
+    // points, the CPU tasks disable the rebalancing with the disk cache
+    this.m_rebalanceIterations = m_conf.getInt(CONF_REBALANCE_ITERATIONS, 0);
+    if (m_rebalanceIterations > 0) {
+      Preconditions.checkArgument(m_rebalanceIterations >= 2,
+          CONF_REBALANCE_ITERATIONS + " has to be at least 2");
+      if (m_conf.getBoolean(CONF_DISK_CACHE, false)) {
+        m_rebalanceIterations = 0;
+      }
+    }
+    // the CPU tasks re-accumulate the centers in additional supersteps
+    if ((QuantizedVectorCache.parseType(m_conf.get(CONF_QUANTIZATION)) != null)
+        && !m_conf.getBoolean(CONF_DISK_CACHE, false)) {
+      throw new IOException(CONF_QUANTIZATION
+          + " is not supported by GPU tasks!");
+    }
+
+    // The GPU kernel can only exchange strings, therefore it uses the hex
+    // encoding instead of raw bytes unless the text encoding is requested.
+    // The messages of the kernel keep the encoding they are read with.
+    this.m_hexMessages = (CenterMessage.parseEncoding(m_conf
+        .get(CONF_MESSAGE_ENCODING)) != CenterMessage.Encoding.TEXT);
 
     // Init logging
     if (m_isDebuggingEnabled) {
@@ -549,22 +1652,69 @@ public class KMeansHybridBSP
           + "\n");
     }
 
+    // the CPU tasks rebalance after the measured iterations, the kernel
+    // stops there and is restarted with the new points
+    final int maxIterations = m_conf.getInt(CONF_MAX_ITERATIONS, 0);
+    final boolean rebalance = (m_rebalanceIterations > 0)
+        && (m_rebalanceIterations <= maxIterations);
+    final long startSuperstep = peer.getSuperstepCount();
+
     KMeansHybridKernel kernel = new KMeansHybridKernel(inputsArr,
-        m_centers_gpu, m_conf.getInt(CONF_MAX_ITERATIONS, 0),
-        peer.getAllPeerNames());
+        m_centers_gpu, rebalance ? (m_rebalanceIterations - 1)
+            : maxIterations, peer.getAllPeerNames(), m_hexMessages, m_epsilon);
 
     // Run GPU Kernels
-    Context context = rootbeer.createDefaultContext();
     Stopwatch watch = new Stopwatch();
     watch.start();
-    rootbeer.run(kernel, new ThreadConfig(m_blockSize, m_gridSize, m_blockSize
-        * m_gridSize), context);
+    final long kernelStart = System.nanoTime();
+    final long syncMillis = getSyncMillis(peer);
+    Context context = KernelRunner.run(peer, rootbeer, kernel, m_blockSize,
+        m_gridSize, true);
+
+    if (rebalance && (kernel.m_converged != 0)
+        && (peer.getSuperstepCount() - startSuperstep == m_rebalanceIterations)) {
+      // The time in sync is not part of the assignment time. The CPU tasks
+      // measure all but the first iteration, the kernel time also contains
+      // the transfer and a final assignment.
+      final long busyNanos = System.nanoTime() - kernelStart
+          - ((getSyncMillis(peer) - syncMillis) * 1000000L);
+      final long assignNanos = Math.max(0L, busyNanos)
+          * (m_rebalanceIterations - 1) / m_rebalanceIterations;
+
+      final FlatDoubleVectorCache points = new FlatDoubleVectorCache(
+          inputsArr[0].length, inputsArr.length);
+      for (double[] input : inputsArr) {
+        points.add(input);
+      }
+      final long rebalanceSuperstep = peer.getSuperstepCount();
+      final int[] targets = rebalancePoints(peer, points, assignNanos);
+      if (targets != null) {
+        inputsArr = new double[points.getSize()][];
+        for (int i = 0; i < inputsArr.length; i++) {
+          inputsArr[i] = points.getVector(i).toArray();
+        }
+        long total = 0;
+        for (int target : targets) {
+          total += target;
+        }
+        LOG.info("Rebalanced GPU peer " + peer.getPeerName() + ", use "
+            + CONF_GPU_PERCENTAGE + "=" + ((100 * points.getSize()) / total)
+            + " to start the next run balanced");
+      }
+
+      // the kernel counts the supersteps of the rebalancing as iterations
+      kernel = new KMeansHybridKernel(inputsArr, kernel.m_centers,
+          maxIterations + (int) (peer.getSuperstepCount() - rebalanceSuperstep),
+          peer.getAllPeerNames(), m_hexMessages, m_epsilon);
+      context = KernelRunner.run(peer, rootbeer, kernel, m_blockSize,
+          m_gridSize, true);
+    }
     watch.stop();
 
     // Output inputs with corresponding new center id
-    for (int i = 0; i < inputs.size(); i++) {
+    for (int i = 0; i < kernel.m_inputs.length; i++) {
       peer.write(new IntWritable(kernel.m_input_centers[i]),
-          new PipesVectorWritable(inputs.get(i)));
+          new PipesVectorWritable(new DenseDoubleVector(kernel.m_inputs[i])));
     }
 
     // Output new Centers only on first task
@@ -597,7 +1747,8 @@ public class KMeansHybridBSP
 
     // Logging
     if (m_isDebuggingEnabled) {
-      List<StatsRow> stats = context.getStats();
+      List<StatsRow> stats = (context != null) ? context.getStats()
+          : new ArrayList<StatsRow>();
       for (StatsRow row : stats) {
         m_logger.writeChars("  StatsRow:\n");
         m_logger.writeChars("    serial time: " + row.getSerializationTime()
@@ -615,6 +1766,14 @@ public class KMeansHybridBSP
     }
   }
 
+  // time the peer waited at the barriers so far
+  private static long getSyncMillis(
+      BSPPeer<PipesVectorWritable, NullWritable, IntWritable, PipesVectorWritable, CenterMessage> peer) {
+    Counters.Counter counter = peer
+        .getCounter(BSPPeerImpl.PeerCounter.TIME_IN_SYNC_MS);
+    return (counter != null) ? counter.getCounter() : 0L;
+  }
+
   public static BSPJob createKMeansHybridBSPConf(Path inPath, Path outPath)
       throws IOException {
     return createKMeansHybridBSPConf(new HamaConfiguration(), inPath, outPath);
@@ -631,10 +1790,7 @@ public class KMeansHybridBSP
     // help Hama to locale the jar to be distributed
     job.setJarByClass(KMeansHybridBSP.class);
 
-    job.setInputFormat(SequenceFileInputFormat.class);
-    job.setInputKeyClass(PipesVectorWritable.class);
-    job.setInputValueClass(NullWritable.class);
-    job.setInputPath(inPath);
+    setInputFormat(job, inPath);
 
     job.setOutputFormat(SequenceFileOutputFormat.class);
     job.setOutputKeyClass(IntWritable.class);
@@ -648,6 +1804,21 @@ public class KMeansHybridBSP
     return job;
   }
 
+  /**
+   * Sets the input of the points, a SequenceFile or a VectorBlockFile of
+   * PipesVectorWritable keys and NullWritable values.
+   */
+  static void setInputFormat(BSPJob job, Path inPath) {
+    if (job.getConfiguration().getBoolean(CONF_BLOCK_INPUT, false)) {
+      job.setInputFormat(VectorBlockInputFormat.class);
+    } else {
+      job.setInputFormat(SequenceFileInputFormat.class);
+    }
+    job.setInputKeyClass(PipesVectorWritable.class);
+    job.setInputValueClass(NullWritable.class);
+    job.setInputPath(inPath);
+  }
+
   public static void main(String[] args) throws Exception {
 
     // Defaults
@@ -766,6 +1937,19 @@ public class KMeansHybridBSP
           GPUPercentage);
     }
 
+    // replace the initial centers by k-means|| seeding
+    if (conf.getBoolean(CONF_SEEDING, false)) {
+      BSPJob seedingJob = KMeansParallelSeedingBSP
+          .createKMeansParallelSeedingBSPConf(conf, CONF_INPUT_DIR, k);
+      long startTime = System.currentTimeMillis();
+      if (!seedingJob.waitForCompletion(true)) {
+        LOG.error("Seeding job failed!");
+        return;
+      }
+      LOG.info("Seeding Job Finished in "
+          + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+    }
+
     BSPJob job = createKMeansHybridBSPConf(conf, CONF_INPUT_DIR,
         CONF_OUTPUT_DIR);
 
@@ -826,12 +2010,19 @@ public class KMeansHybridBSP
 
     // long interval = totalNumberOfPoints / numBspTask;
     long centers = 0;
+    final boolean blockInput = conf.getBoolean(CONF_BLOCK_INPUT, false);
 
     for (int part = 0; part < numBspTask; part++) {
-      Path partIn = new Path(in, "part" + part + ".seq");
-      final SequenceFile.Writer dataWriter = SequenceFile.createWriter(fs,
-          conf, partIn, PipesVectorWritable.class, NullWritable.class,
-          CompressionType.NONE);
+      SequenceFile.Writer dataWriter = null;
+      VectorBlockFile.Writer blockWriter = null;
+      if (blockInput) {
+        blockWriter = new VectorBlockFile.Writer(fs, conf, new Path(in, "part"
+            + part + ".vbf"), false, null);
+      } else {
+        dataWriter = SequenceFile.createWriter(fs, conf, new Path(in, "part"
+            + part + ".seq"), PipesVectorWritable.class, NullWritable.class,
+            CompressionType.NONE);
+      }
 
       long interval = 0;
       if (part > cpuTaskNum) {
@@ -859,7 +2050,11 @@ public class KMeansHybridBSP
             new DenseDoubleVector(arr));
 
         // LOG.info("input[" + i + "]: " + Arrays.toString(arr));
-        dataWriter.append(vector, nullValue);
+        if (blockWriter != null) {
+          blockWriter.append(arr);
+        } else {
+          dataWriter.append(vector, nullValue);
+        }
 
         if (k > centers) {
           // LOG.info("center[" + i + "]: " + Arrays.toString(arr));
@@ -870,7 +2065,11 @@ public class KMeansHybridBSP
         }
 
       }
-      dataWriter.close();
+      if (blockWriter != null) {
+        blockWriter.close();
+      } else {
+        dataWriter.close();
+      }
     }
 
   }
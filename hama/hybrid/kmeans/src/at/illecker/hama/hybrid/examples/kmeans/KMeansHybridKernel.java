@@ -23,20 +23,35 @@ import org.trifort.rootbeer.runtime.RootbeerGpu;
 public class KMeansHybridKernel implements Kernel {
 
   private long m_superstepCount;
-  private long m_converged;
+  public long m_converged; // output, centers moved in the last iteration
 
   public double[][] m_inputs; // input
   public double[][] m_centers; // input and output
   public int m_maxIterations; // input
   public String[] m_allPeerNames; // input
+  public boolean m_hexMessages; // input
+  public double m_epsilon; // input
   public int[] m_input_centers; // output
 
   public KMeansHybridKernel(double[][] inputs, double[][] centers,
       int maxIterations, String[] allPeerNames) {
+    this(inputs, centers, maxIterations, allPeerNames, false);
+  }
+
+  public KMeansHybridKernel(double[][] inputs, double[][] centers,
+      int maxIterations, String[] allPeerNames, boolean hexMessages) {
+    this(inputs, centers, maxIterations, allPeerNames, hexMessages, 0.0d);
+  }
+
+  public KMeansHybridKernel(double[][] inputs, double[][] centers,
+      int maxIterations, String[] allPeerNames, boolean hexMessages,
+      double epsilon) {
     m_inputs = inputs;
     m_centers = centers;
     m_maxIterations = maxIterations;
     m_allPeerNames = allPeerNames;
+    m_hexMessages = hexMessages;
+    m_epsilon = epsilon;
     m_input_centers = new int[inputs.length];
   }
 
@@ -141,6 +156,10 @@ public class KMeansHybridKernel implements Kernel {
       // while (inputHasMore == true)
       while (RootbeerGpu.getSharedBoolean(sharedMemoryInputHasMoreBoolean)) {
 
+        // Sync all threads within a block
+        // inputHasMore was read by all threads before thread 0 updates it
+        RootbeerGpu.syncthreads();
+
         // Thread 0 of each block
         // Setup inputs for thread block
         if (thread_idxx == 0) {
@@ -339,26 +358,48 @@ public class KMeansHybridKernel implements Kernel {
 
           if (summationCount > 0) {
 
-            // centerIndex:incrementCounter:VectorValue1,VectorValue2,VectorValue3
             String message = "";
-            message += Integer.toString(i);
-            message += ":";
-            message += Integer.toString(summationCount);
-            message += ":";
+            if (m_hexMessages) {
+              // #centerIndex incrementCounter VectorValue1 VectorValue2...
+              // as fixed width hex digits (8, 8 and 16 for each value)
+              char[] chars = new char[17 + (centerDim * 16)];
+              chars[0] = '#';
+              toHex(chars, 1, i, 8);
+              toHex(chars, 9, summationCount, 8);
 
-            // centerDim = m_newCenters[i].length
-            for (int j = 0; j < centerDim; j++) {
+              for (int j = 0; j < centerDim; j++) {
 
-              int newCenterIndex = sharedMemoryNewCentersStartPos
-                  + (((i * centerDim) + j) * 8);
+                int newCenterIndex = sharedMemoryNewCentersStartPos
+                    + (((i * centerDim) + j) * 8);
+
+                // newCenters[i][j]
+                toHex(chars, 17 + (j * 16), Double
+                    .doubleToRawLongBits(RootbeerGpu
+                        .getSharedDouble(newCenterIndex)), 16);
+              }
+              message = new String(chars);
+
+            } else {
+              // centerIndex:incrementCounter:VectorValue1,VectorValue2,VectorValue3
+              message += Integer.toString(i);
+              message += ":";
+              message += Integer.toString(summationCount);
+              message += ":";
+
+              // centerDim = m_newCenters[i].length
+              for (int j = 0; j < centerDim; j++) {
 
-              // newCenters[i][j]
-              message += Double.toString(RootbeerGpu
-                  .getSharedDouble(newCenterIndex));
+                int newCenterIndex = sharedMemoryNewCentersStartPos
+                    + (((i * centerDim) + j) * 8);
 
-              // add ", " if not last element
-              if (j < centerDim - 1) {
-                message += ", ";
+                // newCenters[i][j]
+                message += Double.toString(RootbeerGpu
+                    .getSharedDouble(newCenterIndex));
+
+                // add ", " if not last element
+                if (j < centerDim - 1) {
+                  message += ", ";
+                }
               }
             }
 
@@ -405,20 +446,39 @@ public class KMeansHybridKernel implements Kernel {
         int msgCount = HamaPeer.getNumCurrentMessages();
         for (int i = 0; i < msgCount; i++) {
 
-          // centerIndex:incrementCounter:VectorValue1,VectorValue2,VectorValue3
           String message = HamaPeer.getCurrentStringMessage();
-          System.out.println(message);
-
-          // parse message
-          String[] values = message.split(":", 3);
-          int centerIndex = Integer.parseInt(values[0]);
-          int incrementCounter = Integer.parseInt(values[1]);
-
-          String[] vectorStr = values[2].split(",");
-          int len = vectorStr.length;
-          double[] messageVector = new double[len];
-          for (int j = 0; j < len; j++) {
-            messageVector[j] = Double.parseDouble(vectorStr[j]);
+          // System.out.println(message);
+
+          int centerIndex = 0;
+          int incrementCounter = 0;
+          double[] messageVector = null;
+
+          if (message.charAt(0) == '#') {
+            // parse hex message
+            // #centerIndex incrementCounter VectorValue1 VectorValue2...
+            centerIndex = (int) fromHex(message, 1, 8);
+            incrementCounter = (int) fromHex(message, 9, 8);
+
+            int len = (message.length() - 17) / 16;
+            messageVector = new double[len];
+            for (int j = 0; j < len; j++) {
+              messageVector[j] = Double.longBitsToDouble(fromHex(message,
+                  17 + (j * 16), 16));
+            }
+
+          } else {
+            // parse message
+            // centerIndex:incrementCounter:VectorValue1,VectorValue2,VectorValue3
+            String[] values = message.split(":", 3);
+            centerIndex = Integer.parseInt(values[0]);
+            incrementCounter = Integer.parseInt(values[1]);
+
+            String[] vectorStr = values[2].split(",");
+            int len = vectorStr.length;
+            messageVector = new double[len];
+            for (int j = 0; j < len; j++) {
+              messageVector[j] = Double.parseDouble(vectorStr[j]);
+            }
           }
 
           // msgIncrementSum[centerIndex]
@@ -516,8 +576,9 @@ public class KMeansHybridKernel implements Kernel {
             // System.out.print("calculateError: ");
             // System.out.println(calculateError);
 
-            // Update center if calculateError > 0
-            if (calculateError > 0.0d) {
+            // Update center if calculateError > epsilon, the same check
+            // as the CPU peers use
+            if (calculateError > m_epsilon) {
 
               // m_centers[i] = msgCenters[i];
               for (int j = 0; j < centerDim; j++) {
@@ -582,6 +643,10 @@ public class KMeansHybridKernel implements Kernel {
     // loop until input is empty
     while (RootbeerGpu.getSharedBoolean(sharedMemoryInputHasMoreBoolean)) {
 
+      // Sync all threads within a block
+      // inputHasMore was read by all threads before thread 0 updates it
+      RootbeerGpu.syncthreads();
+
       // Thread 0 of each block
       // Setup inputs for thread block
       if (thread_idxx == 0) {
@@ -689,6 +754,33 @@ public class KMeansHybridKernel implements Kernel {
     }
   }
 
+  private void toHex(char[] chars, int offset, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      int digit = (int) (value & 0xF);
+      if (digit < 10) {
+        chars[offset + i] = (char) ('0' + digit);
+      } else {
+        chars[offset + i] = (char) ('a' + digit - 10);
+      }
+      value = value >>> 4;
+    }
+  }
+
+  private long fromHex(String str, int offset, int digits) {
+    long value = 0;
+    for (int i = offset; i < offset + digits; i++) {
+      char c = str.charAt(i);
+      int digit = 0;
+      if (c >= 'a') {
+        digit = c - 'a' + 10;
+      } else {
+        digit = c - '0';
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
   private int divup(int x, int y) {
     if (x % y != 0) {
       return ((x + y - 1) / y); // round up
@@ -701,6 +793,6 @@ public class KMeansHybridKernel implements Kernel {
     // Dummy constructor invocation
     // to keep kernel constructor in
     // rootbeer transformation
-    new KMeansHybridKernel(null, null, 0, null);
+    new KMeansHybridKernel(null, null, 0, null, false, 0);
   }
 }
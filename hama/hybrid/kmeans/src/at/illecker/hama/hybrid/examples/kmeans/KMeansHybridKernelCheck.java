@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.kmeans;
+
+import java.util.Random;
+
+import at.illecker.hama.hybrid.examples.util.emulator.KernelEmulator;
+import at.illecker.hama.hybrid.examples.util.emulator.LocalHamaPeerBackend;
+
+/**
+ * Checks the KMeansHybridKernel against a sequential k-means on the CPU. The
+ * kernel is run by the KernelEmulator on random input, with the same
+ * iteration and epsilon semantics the final centers and assignments have to
+ * match. Exits with status 1 on a mismatch.
+ */
+public class KMeansHybridKernelCheck {
+  // relative tolerance of the centers, the kernel sums in a different order
+  public static final double TOLERANCE = 1e-9;
+
+  public static void main(String[] args) {
+
+    // Defaults
+    int blockSize = 32;
+    int gridSize = 4;
+    int n = 2000; // input vectors
+    int k = 8; // start vectors
+    int vectorDimension = 4;
+    int maxIteration = 10;
+    double epsilon = 0.0d;
+    boolean hexMessages = false;
+    long seed = 32L;
+
+    if (args.length > 0) {
+      if (args.length == 9) {
+        blockSize = Integer.parseInt(args[0]);
+        gridSize = Integer.parseInt(args[1]);
+        n = Integer.parseInt(args[2]);
+        k = Integer.parseInt(args[3]);
+        vectorDimension = Integer.parseInt(args[4]);
+        maxIteration = Integer.parseInt(args[5]);
+        epsilon = Double.parseDouble(args[6]);
+        hexMessages = Boolean.parseBoolean(args[7]);
+        seed = Long.parseLong(args[8]);
+
+      } else {
+        System.out.println("Wrong argument size!");
+        System.out.println("    Argument1=blockSize (" + blockSize + ")");
+        System.out.println("    Argument2=gridSize (" + gridSize + ")");
+        System.out.println("    Argument3=n | Number of input vectors (" + n
+            + ")");
+        System.out.println("    Argument4=k | Number of start vectors (" + k
+            + ")");
+        System.out
+            .println("    Argument5=vectorDimension | Dimension of each vector ("
+                + vectorDimension + ")");
+        System.out
+            .println("    Argument6=maxIterations | Number of maximal iterations ("
+                + maxIteration + ")");
+        System.out.println("    Argument7=epsilon | Convergence epsilon ("
+            + epsilon + ")");
+        System.out
+            .println("    Argument8=hexMessages (true|false=default)");
+        System.out.println("    Argument9=seed (" + seed + ")");
+        return;
+      }
+    }
+
+    // Generate input, k gaussian clusters
+    Random rand = new Random(seed);
+    double[][] means = new double[k][vectorDimension];
+    for (int i = 0; i < k; i++) {
+      for (int j = 0; j < vectorDimension; j++) {
+        means[i][j] = rand.nextDouble() * 100;
+      }
+    }
+    double[][] inputs = new double[n][vectorDimension];
+    for (int i = 0; i < n; i++) {
+      double[] mean = means[rand.nextInt(k)];
+      for (int j = 0; j < vectorDimension; j++) {
+        inputs[i][j] = mean[j] + rand.nextGaussian() * 5;
+      }
+    }
+    // the first k inputs are the start centers
+    double[][] kernelCenters = new double[k][];
+    double[][] expectedCenters = new double[k][];
+    for (int i = 0; i < k; i++) {
+      kernelCenters[i] = inputs[i].clone();
+      expectedCenters[i] = inputs[i].clone();
+    }
+
+    // Run kernel
+    LocalHamaPeerBackend backend = new LocalHamaPeerBackend();
+    KMeansHybridKernel kernel = new KMeansHybridKernel(inputs,
+        kernelCenters, maxIteration, backend.getAllPeerNames(), hexMessages,
+        epsilon);
+    KernelEmulator emulator = new KernelEmulator(blockSize, gridSize);
+    emulator.setHamaPeerBackend(backend);
+    emulator.run(kernel);
+
+    // Run sequential k-means
+    int[] expectedAssignments = kmeans(inputs, expectedCenters, maxIteration,
+        epsilon);
+
+    // Compare
+    int mismatches = 0;
+    for (int i = 0; i < k; i++) {
+      for (int j = 0; j < vectorDimension; j++) {
+        double expected = expectedCenters[i][j];
+        double actual = kernel.m_centers[i][j];
+        if (Math.abs(expected - actual) > TOLERANCE
+            * Math.max(1.0d, Math.abs(expected))) {
+          System.out.println("Center " + i + "[" + j + "] expected: "
+              + expected + " actual: " + actual);
+          mismatches++;
+        }
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      if (expectedAssignments[i] != kernel.m_input_centers[i]) {
+        System.out.println("Input " + i + " expected center: "
+            + expectedAssignments[i] + " actual: "
+            + kernel.m_input_centers[i]);
+        mismatches++;
+      }
+    }
+
+    System.out.println("KMeansHybridKernel blockSize: " + blockSize
+        + " gridSize: " + gridSize + " n: " + n + " k: " + k
+        + " iterations: " + backend.getSuperstepCount() + " mismatches: "
+        + mismatches);
+    if (mismatches > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Sequential k-means with the loop of the kernel, the centers are updated
+   * in place.
+   * 
+   * @return the center of each input
+   */
+  static int[] kmeans(double[][] inputs, double[][] centers,
+      int maxIterations, double epsilon) {
+    int[] assignments = new int[inputs.length];
+    if (maxIterations <= 0) {
+      return assignments;
+    }
+    final int k = centers.length;
+    final int dim = centers[0].length;
+    long iterations = 0;
+    long converged;
+    do {
+      double[][] sums = new double[k][dim];
+      int[] counts = new int[k];
+      for (int i = 0; i < inputs.length; i++) {
+        int center = nearest(inputs[i], centers);
+        counts[center]++;
+        for (int j = 0; j < dim; j++) {
+          sums[center][j] += inputs[i][j];
+        }
+      }
+
+      converged = 0;
+      for (int i = 0; i < k; i++) {
+        if (counts[i] > 0) {
+          double error = 0;
+          for (int j = 0; j < dim; j++) {
+            sums[i][j] /= counts[i];
+            error += Math.abs(centers[i][j] - sums[i][j]);
+          }
+          if (error > epsilon) {
+            centers[i] = sums[i];
+            converged++;
+          }
+        }
+      }
+      // the kernel compares the superstep count after the sync
+      iterations++;
+    } while ((converged != 0) && (iterations <= maxIterations));
+
+    for (int i = 0; i < inputs.length; i++) {
+      assignments[i] = nearest(inputs[i], centers);
+    }
+    return assignments;
+  }
+
+  private static int nearest(double[] input, double[][] centers) {
+    int nearest = 0;
+    double nearestDistance = Double.MAX_VALUE;
+    for (int i = 0; i < centers.length; i++) {
+      double sum = 0;
+      for (int j = 0; j < input.length; j++) {
+        double diff = input[j] - centers[i][j];
+        sum += diff * diff;
+      }
+      double distance = Math.sqrt(sum);
+      if (distance < nearestDistance) {
+        nearestDistance = distance;
+        nearest = i;
+      }
+    }
+    return nearest;
+  }
+}
@@ -0,0 +1,407 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.kmeans;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hama.HamaConfiguration;
+import org.apache.hama.bsp.BSP;
+import org.apache.hama.bsp.BSPJob;
+import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.NullOutputFormat;
+import org.apache.hama.bsp.sync.SyncException;
+import org.apache.hama.commons.io.PipesVectorWritable;
+import org.apache.hama.commons.math.DenseDoubleVector;
+import org.apache.hama.commons.math.DoubleVector;
+
+/**
+ * Scalable k-means++ (k-means||) initialization of Bahmani et al.
+ *
+ * Each round every peer samples its points with probability l * d^2(x, C) /
+ * phi(C) as new candidates, where phi is the global cost of the current
+ * candidates. Afterwards each candidate is weighted by the number of points
+ * closest to it and the first peer reduces the weighted candidates to k centers
+ * (weighted k-means++ followed by weighted Lloyd iterations). The centers are
+ * written to KMeansHybridBSP.CONF_CENTER_IN_PATH.
+ */
+public class KMeansParallelSeedingBSP
+    extends
+    BSP<PipesVectorWritable, NullWritable, NullWritable, NullWritable, CenterMessage> {
+
+  private static final Log LOG = LogFactory
+      .getLog(KMeansParallelSeedingBSP.class);
+
+  public static final String CONF_K = "kmeans.hybrid.seeding.k";
+  // expected number of candidates sampled per round, default 2 * k
+  public static final String CONF_OVERSAMPLING = "kmeans.hybrid.seeding.oversampling";
+  public static final String CONF_ROUNDS = "kmeans.hybrid.seeding.rounds";
+  public static final String CONF_SEED = "kmeans.hybrid.seeding.seed";
+
+  public static final int DEFAULT_ROUNDS = 5;
+  public static final int MAX_REDUCE_ITERATIONS = 100;
+
+  private Configuration m_conf;
+  private int m_k;
+  private double m_oversampling;
+  private int m_rounds;
+  private Random m_random;
+  // encoding of the messages sent by this task
+  private CenterMessage.Encoding m_encoding;
+
+  // points of the local input split
+  private FlatDoubleVectorCache m_points = null;
+  // squared distance and index of the closest candidate of each point
+  private double[] m_minDistances = null;
+  private int[] m_nearestCandidates = null;
+
+  private List<DoubleVector> m_candidates = new ArrayList<DoubleVector>();
+
+  @Override
+  public void setup(
+      BSPPeer<PipesVectorWritable, NullWritable, NullWritable, NullWritable, CenterMessage> peer)
+      throws IOException {
+
+    this.m_conf = peer.getConfiguration();
+    this.m_k = m_conf.getInt(CONF_K, 0);
+    if (m_k <= 0) {
+      throw new IOException(CONF_K + " is not set!");
+    }
+    this.m_oversampling = m_conf.getFloat(CONF_OVERSAMPLING, 2.0f * m_k);
+    this.m_rounds = m_conf.getInt(CONF_ROUNDS, DEFAULT_ROUNDS);
+    this.m_random = new Random(m_conf.getLong(CONF_SEED,
+        System.currentTimeMillis()) + peer.getPeerIndex());
+
+    this.m_encoding = CenterMessage.parseEncoding(m_conf
+        .get(KMeansHybridBSP.CONF_MESSAGE_ENCODING));
+  }
+
+  @Override
+  public void bsp(
+      BSPPeer<PipesVectorWritable, NullWritable, NullWritable, NullWritable, CenterMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    final String masterTask = peer.getPeerName(0);
+
+    // read the local input split
+    final PipesVectorWritable key = new PipesVectorWritable();
+    final NullWritable value = NullWritable.get();
+    while (peer.readNext(key, value)) {
+      if (m_points == null) {
+        m_points = new FlatDoubleVectorCache(key.getVector().getDimension());
+      }
+      m_points.add(key.getVector());
+    }
+    final int pointCount = (m_points != null) ? m_points.getSize() : 0;
+    if (m_points != null) {
+      m_points.trimToSize();
+    }
+    m_minDistances = new double[pointCount];
+    Arrays.fill(m_minDistances, Double.MAX_VALUE);
+    m_nearestCandidates = new int[pointCount];
+
+    // first candidate: each peer proposes one point, weighted by its count
+    if (pointCount > 0) {
+      peer.send(masterTask, new CenterMessage(peer.getPeerIndex(), pointCount,
+          m_points.getVector(m_random.nextInt(pointCount)), m_encoding));
+    }
+    peer.sync();
+
+    if (peer.getPeerName().equals(masterTask)) {
+      List<CenterMessage> proposals = getSortedMessages(peer);
+      long totalCount = 0;
+      for (CenterMessage msg : proposals) {
+        totalCount += msg.getIncrementCounter();
+      }
+      if (totalCount == 0) {
+        throw new IOException("Input does not contain any vectors!");
+      }
+      long selected = (long) (m_random.nextDouble() * totalCount);
+      for (CenterMessage msg : proposals) {
+        selected -= msg.getIncrementCounter();
+        if (selected < 0) {
+          // a received message would be forwarded as hex
+          CenterMessage selectedMsg = new CenterMessage(msg.getCenterIndex(),
+              msg.getIncrementCounter(), msg.getData(), m_encoding);
+          for (String peerName : peer.getAllPeerNames()) {
+            peer.send(peerName, selectedMsg);
+          }
+          break;
+        }
+      }
+    }
+    peer.sync();
+
+    addCandidates(getSortedMessages(peer));
+
+    for (int round = 0; round < m_rounds; round++) {
+
+      // global cost of the current candidates
+      double localCost = 0;
+      for (int i = 0; i < pointCount; i++) {
+        localCost += m_minDistances[i];
+      }
+      for (String peerName : peer.getAllPeerNames()) {
+        peer.send(peerName, scalarMessage(peer.getPeerIndex(), localCost));
+      }
+      peer.sync();
+
+      double cost = 0;
+      CenterMessage msg;
+      while ((msg = peer.getCurrentMessage()) != null) {
+        cost += msg.getData().get(0);
+      }
+      if (cost <= 0) {
+        // each point is a candidate already
+        break;
+      }
+
+      // oversample the points proportional to their cost
+      int sampled = 0;
+      for (int i = 0; i < pointCount; i++) {
+        if (m_random.nextDouble() < m_oversampling * m_minDistances[i] / cost) {
+          CenterMessage candidate = new CenterMessage(peer.getPeerIndex(),
+              sampled++, m_points.getVector(i), m_encoding);
+          for (String peerName : peer.getAllPeerNames()) {
+            peer.send(peerName, candidate);
+          }
+        }
+      }
+      peer.sync();
+
+      addCandidates(getSortedMessages(peer));
+    }
+
+    // weight the candidates by the number of points closest to them
+    int[] localWeights = new int[m_candidates.size()];
+    for (int i = 0; i < pointCount; i++) {
+      localWeights[m_nearestCandidates[i]]++;
+    }
+    for (int i = 0; i < localWeights.length; i++) {
+      if (localWeights[i] > 0) {
+        peer.send(masterTask, scalarMessage(i, localWeights[i]));
+      }
+    }
+    peer.sync();
+
+    if (peer.getPeerName().equals(masterTask)) {
+      double[] weights = new double[m_candidates.size()];
+      CenterMessage msg;
+      while ((msg = peer.getCurrentMessage()) != null) {
+        weights[msg.getCenterIndex()] += msg.getData().get(0);
+      }
+      LOG.info("Reduce " + m_candidates.size() + " candidates to " + m_k
+          + " centers");
+      writeCenters(reduceCandidates(weights));
+    }
+  }
+
+  private CenterMessage scalarMessage(int index, double value) {
+    return new CenterMessage(index, 0, new DenseDoubleVector(
+        new double[] { value }), m_encoding);
+  }
+
+  // all peers have to agree on the order of the candidates
+  private static List<CenterMessage> getSortedMessages(
+      BSPPeer<PipesVectorWritable, NullWritable, NullWritable, NullWritable, CenterMessage> peer)
+      throws IOException {
+    List<CenterMessage> messages = new ArrayList<CenterMessage>();
+    CenterMessage msg;
+    while ((msg = peer.getCurrentMessage()) != null) {
+      messages.add(msg);
+    }
+    Collections.sort(messages, new Comparator<CenterMessage>() {
+      @Override
+      public int compare(CenterMessage o1, CenterMessage o2) {
+        if (o1.getCenterIndex() != o2.getCenterIndex()) {
+          return (o1.getCenterIndex() < o2.getCenterIndex()) ? -1 : 1;
+        }
+        return (o1.getIncrementCounter() < o2.getIncrementCounter()) ? -1
+            : ((o1.getIncrementCounter() == o2.getIncrementCounter()) ? 0 : 1);
+      }
+    });
+    return messages;
+  }
+
+  // appends new candidates and updates the closest candidate of each point
+  private void addCandidates(List<CenterMessage> messages) {
+    for (CenterMessage msg : messages) {
+      final int candidateIndex = m_candidates.size();
+      final double[] candidate = msg.getData().toArray();
+      m_candidates.add(msg.getData());
+
+      for (int i = 0; i < m_minDistances.length; i++) {
+        double distance = squaredDistance(m_points.getValues(),
+            i * m_points.getDimension(), candidate);
+        if (distance < m_minDistances[i]) {
+          m_minDistances[i] = distance;
+          m_nearestCandidates[i] = candidateIndex;
+        }
+      }
+    }
+  }
+
+  // weighted k-means++ on the candidates followed by weighted Lloyd
+  private DoubleVector[] reduceCandidates(double[] weights) {
+    final int candidateCount = m_candidates.size();
+    if (candidateCount <= m_k) {
+      LOG.warn("Only " + candidateCount + " candidates for " + m_k
+          + " centers, use all candidates");
+      return m_candidates.toArray(new DoubleVector[candidateCount]);
+    }
+    final int dimension = m_candidates.get(0).getDimension();
+    double[][] candidates = new double[candidateCount][];
+    for (int i = 0; i < candidateCount; i++) {
+      candidates[i] = m_candidates.get(i).toArray();
+    }
+
+    double[][] centers = new double[m_k][];
+    double[] minDistances = new double[candidateCount];
+    Arrays.fill(minDistances, Double.MAX_VALUE);
+    for (int c = 0; c < m_k; c++) {
+      double total = 0;
+      for (int i = 0; i < candidateCount; i++) {
+        total += weights[i] * ((c == 0) ? 1 : minDistances[i]);
+      }
+      double selected = m_random.nextDouble() * total;
+      int index = candidateCount - 1;
+      for (int i = 0; i < candidateCount; i++) {
+        selected -= weights[i] * ((c == 0) ? 1 : minDistances[i]);
+        if (selected < 0) {
+          index = i;
+          break;
+        }
+      }
+      centers[c] = candidates[index].clone();
+      for (int i = 0; i < candidateCount; i++) {
+        minDistances[i] = Math.min(minDistances[i],
+            squaredDistance(candidates[i], 0, centers[c]));
+      }
+    }
+
+    int[] assignments = new int[candidateCount];
+    Arrays.fill(assignments, -1);
+    for (int iteration = 0; iteration < MAX_REDUCE_ITERATIONS; iteration++) {
+      boolean changed = false;
+      for (int i = 0; i < candidateCount; i++) {
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < m_k; c++) {
+          double distance = squaredDistance(candidates[i], 0, centers[c]);
+          if (distance < nearestDistance) {
+            nearestDistance = distance;
+            nearest = c;
+          }
+        }
+        if (assignments[i] != nearest) {
+          assignments[i] = nearest;
+          changed = true;
+        }
+      }
+      if (!changed) {
+        break;
+      }
+
+      double[][] sums = new double[m_k][dimension];
+      double[] totalWeights = new double[m_k];
+      for (int i = 0; i < candidateCount; i++) {
+        totalWeights[assignments[i]] += weights[i];
+        for (int j = 0; j < dimension; j++) {
+          sums[assignments[i]][j] += weights[i] * candidates[i][j];
+        }
+      }
+      // keep the previous center if no weighted candidate is left
+      for (int c = 0; c < m_k; c++) {
+        if (totalWeights[c] > 0) {
+          for (int j = 0; j < dimension; j++) {
+            centers[c][j] = sums[c][j] / totalWeights[c];
+          }
+        }
+      }
+    }
+
+    DoubleVector[] result = new DoubleVector[m_k];
+    for (int c = 0; c < m_k; c++) {
+      result[c] = new DenseDoubleVector(centers[c]);
+    }
+    return result;
+  }
+
+  private void writeCenters(DoubleVector[] centers) throws IOException {
+    Path centerIn = new Path(m_conf.get(KMeansHybridBSP.CONF_CENTER_IN_PATH));
+    FileSystem fs = FileSystem.get(m_conf);
+    if (fs.exists(centerIn)) {
+      fs.delete(centerIn, true);
+    }
+    final SequenceFile.Writer centerWriter = SequenceFile.createWriter(fs,
+        m_conf, centerIn, PipesVectorWritable.class, NullWritable.class,
+        CompressionType.NONE);
+    final NullWritable value = NullWritable.get();
+    for (DoubleVector center : centers) {
+      centerWriter.append(new PipesVectorWritable(center), value);
+    }
+    centerWriter.close();
+  }
+
+  private static double squaredDistance(double[] points, int offset,
+      double[] center) {
+    double sum = 0;
+    for (int j = 0; j < center.length; j++) {
+      double diff = points[offset + j] - center[j];
+      sum += (diff * diff);
+    }
+    return sum;
+  }
+
+  public static BSPJob createKMeansParallelSeedingBSPConf(Configuration conf,
+      Path inPath, int k) throws IOException {
+
+    BSPJob job = new BSPJob(new HamaConfiguration(conf),
+        KMeansParallelSeedingBSP.class);
+    // Set the job name
+    job.setJobName("KMeans|| Seeding");
+    // set the BSP class which shall be executed
+    job.setBspClass(KMeansParallelSeedingBSP.class);
+    // help Hama to locale the jar to be distributed
+    job.setJarByClass(KMeansParallelSeedingBSP.class);
+
+    KMeansHybridBSP.setInputFormat(job, inPath);
+
+    // the centers are written to CONF_CENTER_IN_PATH by the first peer
+    job.setOutputFormat(NullOutputFormat.class);
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(NullWritable.class);
+
+    job.setMessageClass(CenterMessage.class);
+    job.getConfiguration().setInt(CONF_K, k);
+
+    return job;
+  }
+}
@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.kmeans;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hama.commons.math.DenseDoubleVector;
+import org.apache.hama.commons.math.DoubleVector;
+
+/**
+ * Stores vectors of a fixed dimension row-major in a local file instead of
+ * the heap. The rows are appended once, after finish() the file is mapped
+ * read-only and scanned in blocks of rows.
+ *
+ * Reading is thread safe. Each read touches the pages of the following block
+ * in a background thread, so a sequential scan does not wait for the disk.
+ */
+public final class MappedDoubleVectorCache implements Closeable {
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+  // a MappedByteBuffer is int addressed, larger files use several segments
+  private static final int SEGMENT_SIZE = 1 << 30;
+  private static final int PAGE_SIZE = 4096;
+
+  private final File m_file;
+  private final int m_dimension;
+  private final int m_rowBytes;
+  private int m_size = 0;
+
+  private RandomAccessFile m_randomAccessFile;
+  private FileChannel m_channel;
+  private ByteBuffer m_writeBuffer;
+
+  private MappedByteBuffer[] m_segments = null;
+  private int m_rowsPerSegment;
+  private ThreadPoolExecutor m_readAhead = null;
+  private volatile int m_touched;
+
+  public MappedDoubleVectorCache(File file, int dimension) throws IOException {
+    if (dimension <= 0) {
+      throw new IllegalArgumentException("Dimension must be positive: "
+          + dimension);
+    }
+    this.m_file = file;
+    this.m_dimension = dimension;
+    this.m_rowBytes = dimension * 8;
+    this.m_randomAccessFile = new RandomAccessFile(file, "rw");
+    this.m_randomAccessFile.setLength(0);
+    this.m_channel = m_randomAccessFile.getChannel();
+    this.m_writeBuffer = ByteBuffer.allocateDirect(
+        Math.max(WRITE_BUFFER_SIZE, m_rowBytes)).order(ByteOrder.nativeOrder());
+  }
+
+  public void add(DoubleVector vector) throws IOException {
+    if (vector.getDimension() != m_dimension) {
+      throw new IllegalArgumentException("Vector dimension "
+          + vector.getDimension() + " does not match cache dimension "
+          + m_dimension);
+    }
+    if (m_writeBuffer == null) {
+      throw new IllegalStateException("Cache is already finished!");
+    }
+    if (m_writeBuffer.remaining() < m_rowBytes) {
+      flushWriteBuffer();
+    }
+    for (int i = 0; i < m_dimension; i++) {
+      m_writeBuffer.putDouble(vector.get(i));
+    }
+    m_size++;
+  }
+
+  private void flushWriteBuffer() throws IOException {
+    m_writeBuffer.flip();
+    while (m_writeBuffer.hasRemaining()) {
+      m_channel.write(m_writeBuffer);
+    }
+    m_writeBuffer.clear();
+  }
+
+  /**
+   * Writes the remaining rows and maps the file for reading.
+   */
+  public void finish() throws IOException {
+    flushWriteBuffer();
+    m_writeBuffer = null;
+
+    m_rowsPerSegment = Math.max(1, SEGMENT_SIZE / m_rowBytes);
+    int segmentCount = (m_size + m_rowsPerSegment - 1) / m_rowsPerSegment;
+    m_segments = new MappedByteBuffer[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      long firstRow = (long) i * m_rowsPerSegment;
+      long rows = Math.min(m_rowsPerSegment, m_size - firstRow);
+      m_segments[i] = m_channel.map(FileChannel.MapMode.READ_ONLY, firstRow
+          * m_rowBytes, rows * m_rowBytes);
+    }
+
+    // stale read-ahead requests are dropped if the scan is faster
+    m_readAhead = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(4), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MappedDoubleVectorCache-"
+                + m_file.getName());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.DiscardOldestPolicy());
+  }
+
+  /**
+   * Copies count rows starting at row into buffer, row i of the block starts
+   * at buffer[i * getDimension()].
+   */
+  public void read(int row, int count, double[] buffer) {
+    if (m_segments == null) {
+      throw new IllegalStateException("Cache is not finished!");
+    }
+    if (row < 0 || count < 0 || row + count > m_size) {
+      throw new IndexOutOfBoundsException("Rows " + row + " to "
+          + (row + count) + " of " + m_size);
+    }
+    int offset = 0;
+    int current = row;
+    int remaining = count;
+    while (remaining > 0) {
+      final int segmentRow = current % m_rowsPerSegment;
+      final int rows = Math.min(remaining, m_rowsPerSegment - segmentRow);
+      // duplicate to read with an own position, which is not thread safe
+      ByteBuffer bytes = m_segments[current / m_rowsPerSegment].duplicate();
+      bytes.order(ByteOrder.nativeOrder());
+      bytes.position(segmentRow * m_rowBytes);
+      bytes.asDoubleBuffer().get(buffer, offset, rows * m_dimension);
+      offset += rows * m_dimension;
+      current += rows;
+      remaining -= rows;
+    }
+    readAhead(row + count, count);
+  }
+
+  private void readAhead(final int row, final int count) {
+    if (row >= m_size || count == 0) {
+      return;
+    }
+    m_readAhead.execute(new Runnable() {
+      @Override
+      public void run() {
+        touch(row, Math.min(m_size, row + count));
+      }
+    });
+  }
+
+  // reading one byte per page lets the OS load the page
+  private void touch(int start, int end) {
+    int sum = 0;
+    int current = start;
+    while (current < end) {
+      final MappedByteBuffer segment = m_segments[current / m_rowsPerSegment];
+      final int segmentRow = current % m_rowsPerSegment;
+      final int rows = Math.min(end - current, m_rowsPerSegment - segmentRow);
+      final int to = (segmentRow + rows) * m_rowBytes;
+      for (int i = segmentRow * m_rowBytes; i < to; i += PAGE_SIZE) {
+        sum += segment.get(i);
+      }
+      current += rows;
+    }
+    m_touched = sum;
+  }
+
+  public DoubleVector getVector(int row) {
+    double[] vector = new double[m_dimension];
+    read(row, 1, vector);
+    return new DenseDoubleVector(vector);
+  }
+
+  public int getSize() {
+    return m_size;
+  }
+
+  public boolean isEmpty() {
+    return m_size == 0;
+  }
+
+  public int getDimension() {
+    return m_dimension;
+  }
+
+  /**
+   * Closes and deletes the file, the mapping is released by the GC.
+   */
+  @Override
+  public void close() throws IOException {
+    if (m_readAhead != null) {
+      m_readAhead.shutdownNow();
+      m_readAhead = null;
+    }
+    m_segments = null;
+    m_writeBuffer = null;
+    if (m_randomAccessFile != null) {
+      m_randomAccessFile.close();
+      m_randomAccessFile = null;
+      m_channel = null;
+    }
+    if (!m_file.delete()) {
+      m_file.deleteOnExit();
+    }
+  }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.kmeans;
+
+import org.apache.hama.commons.math.DoubleVector;
+
+/**
+ * Stores vectors of a fixed dimension row-major with reduced precision, so
+ * a scan over the points reads 2 (FLOAT) or 8 (INT8) times fewer bytes than
+ * the FlatDoubleVectorCache.
+ *
+ * FLOAT rounds each value to float32. INT8 quantizes each row linearly
+ * between its minimum and maximum into 256 steps, the minimum and the step
+ * are stored per row as float32. The rows are decoded into double[] blocks.
+ */
+public final class QuantizedVectorCache {
+  public enum Type {
+    FLOAT, INT8
+  }
+
+  public static final int DEFAULT_CAPACITY = 1024;
+  private static final int INT8_STEPS = 255;
+
+  private final Type m_type;
+  private final int m_dimension;
+  private int m_size;
+
+  private float[] m_floats = null;
+  // unsigned codes of INT8, value = minimum + code * step
+  private byte[] m_codes = null;
+  private float[] m_minimums = null;
+  private float[] m_steps = null;
+
+  public QuantizedVectorCache(Type type, int dimension) {
+    if (dimension <= 0) {
+      throw new IllegalArgumentException("Dimension must be positive: "
+          + dimension);
+    }
+    this.m_type = type;
+    this.m_dimension = dimension;
+    this.m_size = 0;
+    if (type == Type.FLOAT) {
+      this.m_floats = new float[DEFAULT_CAPACITY * dimension];
+    } else {
+      this.m_codes = new byte[DEFAULT_CAPACITY * dimension];
+      this.m_minimums = new float[DEFAULT_CAPACITY];
+      this.m_steps = new float[DEFAULT_CAPACITY];
+    }
+  }
+
+  /**
+   * @return the quantization or null for "none" or null
+   */
+  public static Type parseType(String value) {
+    if (value == null || value.equalsIgnoreCase("none")) {
+      return null;
+    } else if (value.equalsIgnoreCase("float")) {
+      return Type.FLOAT;
+    } else if (value.equalsIgnoreCase("int8")) {
+      return Type.INT8;
+    }
+    throw new IllegalArgumentException("Unknown quantization: " + value);
+  }
+
+  public void add(DoubleVector vector) {
+    if (vector.getDimension() != m_dimension) {
+      throw new IllegalArgumentException("Vector dimension "
+          + vector.getDimension() + " does not match cache dimension "
+          + m_dimension);
+    }
+    ensureCapacity(m_size + 1);
+    final int offset = m_size * m_dimension;
+    if (m_type == Type.FLOAT) {
+      for (int j = 0; j < m_dimension; j++) {
+        m_floats[offset + j] = (float) vector.get(j);
+      }
+    } else {
+      double min = Double.MAX_VALUE;
+      double max = -Double.MAX_VALUE;
+      for (int j = 0; j < m_dimension; j++) {
+        min = Math.min(min, vector.get(j));
+        max = Math.max(max, vector.get(j));
+      }
+      // quantize against the stored float32 values, which are decoded
+      final float minimum = (float) min;
+      final float step = (float) ((max - minimum) / INT8_STEPS);
+      m_minimums[m_size] = minimum;
+      m_steps[m_size] = step;
+      for (int j = 0; j < m_dimension; j++) {
+        long code = (step > 0) ? Math.round((vector.get(j) - minimum) / step)
+            : 0;
+        code = Math.max(0, Math.min(INT8_STEPS, code));
+        m_codes[offset + j] = (byte) code;
+      }
+    }
+    m_size++;
+  }
+
+  private void ensureCapacity(int rows) {
+    final int capacity = (m_type == Type.FLOAT) ? m_floats.length
+        / m_dimension : m_minimums.length;
+    if (rows > capacity) {
+      resize(Math.max(rows, capacity * 2));
+    }
+  }
+
+  private void resize(int rows) {
+    if (m_type == Type.FLOAT) {
+      float[] floats = new float[rows * m_dimension];
+      System.arraycopy(m_floats, 0, floats, 0, m_size * m_dimension);
+      m_floats = floats;
+    } else {
+      byte[] codes = new byte[rows * m_dimension];
+      System.arraycopy(m_codes, 0, codes, 0, m_size * m_dimension);
+      m_codes = codes;
+      float[] minimums = new float[rows];
+      System.arraycopy(m_minimums, 0, minimums, 0, m_size);
+      m_minimums = minimums;
+      float[] steps = new float[rows];
+      System.arraycopy(m_steps, 0, steps, 0, m_size);
+      m_steps = steps;
+    }
+  }
+
+  /**
+   * Releases unused capacity after the input has been read completely.
+   */
+  public void trimToSize() {
+    final int capacity = (m_type == Type.FLOAT) ? m_floats.length
+        / m_dimension : m_minimums.length;
+    if (m_size < capacity) {
+      resize(m_size);
+    }
+  }
+
+  /**
+   * Decodes count rows starting at row into buffer, row i of the block
+   * starts at buffer[i * getDimension()].
+   */
+  public void read(int row, int count, double[] buffer) {
+    if (row < 0 || count < 0 || row + count > m_size) {
+      throw new IndexOutOfBoundsException("Rows " + row + " to "
+          + (row + count) + " of " + m_size);
+    }
+    final int length = count * m_dimension;
+    final int offset = row * m_dimension;
+    if (m_type == Type.FLOAT) {
+      for (int i = 0; i < length; i++) {
+        buffer[i] = m_floats[offset + i];
+      }
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      final double minimum = m_minimums[row + i];
+      final double step = m_steps[row + i];
+      final int rowOffset = i * m_dimension;
+      for (int j = 0; j < m_dimension; j++) {
+        buffer[rowOffset + j] = minimum
+            + (m_codes[offset + rowOffset + j] & 0xFF) * step;
+      }
+    }
+  }
+
+  public Type getType() {
+    return m_type;
+  }
+
+  public int getSize() {
+    return m_size;
+  }
+
+  public boolean isEmpty() {
+    return m_size == 0;
+  }
+
+  public int getDimension() {
+    return m_dimension;
+  }
+
+  /**
+   * @return the bytes used per row
+   */
+  public int getRowBytes() {
+    return (m_type == Type.FLOAT) ? 4 * m_dimension : m_dimension + 8;
+  }
+
+}
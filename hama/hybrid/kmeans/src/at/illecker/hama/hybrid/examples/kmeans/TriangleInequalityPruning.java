@@ -0,0 +1,246 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.kmeans;
+
+/**
+ * Nearest center search with triangle inequality pruning (Hamerly's
+ * algorithm). Each point keeps an upper bound on the distance to its assigned
+ * center and a lower bound on the distance to all other centers. Both bounds
+ * are moved by the center drift after each update, so a point is only
+ * compared against all centers again, if its bounds overlap. A full scan
+ * additionally skips centers by their distance to the best center found so
+ * far (Elkan's first lemma), or uses a CenterIndex if one is set.
+ *
+ * Pruning only skips centers which are strictly farther away than the
+ * returned one, therefore the result is the same as the brute force search
+ * (lowest index wins on ties).
+ *
+ * Points are identified by their index, which must be stable between
+ * supersteps. Different points may be searched concurrently.
+ */
+public final class TriangleInequalityPruning {
+
+  // relative safety margin for floating point rounding of the bounds
+  private static final double BOUND_TOLERANCE = 1e-10;
+
+  private final int m_pointCount;
+  private final int m_centerCount;
+  private final int m_dimension;
+
+  // per point bounds and assignments
+  private final double[] m_upperBounds;
+  private final double[] m_lowerBounds;
+  private final int[] m_assignments;
+  private final boolean[] m_initialized;
+
+  // centers of the current and of the previous superstep, row-major
+  private final double[] m_centers;
+  private final double[] m_previousCenters;
+  private boolean m_hasPreviousCenters = false;
+
+  // movement of each center since the last superstep
+  private final double[] m_centerDrift;
+  private double m_maxDrift;
+  private int m_maxDriftCenter;
+  private double m_secondMaxDrift;
+
+  // center to center distances and half distance to the closest other center
+  private final double[] m_centerDistances;
+  private final double[] m_halfMinCenterDistances;
+
+  // replaces the full scan, built from the same centers in each superstep
+  private CenterIndex m_centerIndex = null;
+
+  public TriangleInequalityPruning(int pointCount, int centerCount,
+      int dimension) {
+    this.m_pointCount = pointCount;
+    this.m_centerCount = centerCount;
+    this.m_dimension = dimension;
+
+    this.m_upperBounds = new double[pointCount];
+    this.m_lowerBounds = new double[pointCount];
+    this.m_assignments = new int[pointCount];
+    this.m_initialized = new boolean[pointCount];
+
+    this.m_centers = new double[centerCount * dimension];
+    this.m_previousCenters = new double[centerCount * dimension];
+    this.m_centerDrift = new double[centerCount];
+    this.m_centerDistances = new double[centerCount * centerCount];
+    this.m_halfMinCenterDistances = new double[centerCount];
+  }
+
+  public int getPointCount() {
+    return m_pointCount;
+  }
+
+  public void setCenterIndex(CenterIndex centerIndex) {
+    this.m_centerIndex = centerIndex;
+  }
+
+  /**
+   * Has to be called once per superstep before any getNearestCenter call.
+   *
+   * @param centers the current centers, row-major
+   */
+  public void updateCenters(double[] centers) {
+    System.arraycopy(m_centers, 0, m_previousCenters, 0, m_centers.length);
+    System.arraycopy(centers, 0, m_centers, 0, m_centers.length);
+
+    // center drift since the last superstep
+    m_maxDrift = 0;
+    m_secondMaxDrift = 0;
+    m_maxDriftCenter = -1;
+    for (int i = 0; i < m_centerCount; i++) {
+      double drift = 0;
+      if (m_hasPreviousCenters) {
+        drift = distance(m_centers, i * m_dimension, m_previousCenters, i
+            * m_dimension);
+      }
+      m_centerDrift[i] = drift;
+      if (drift > m_maxDrift) {
+        m_secondMaxDrift = m_maxDrift;
+        m_maxDrift = drift;
+        m_maxDriftCenter = i;
+      } else if (drift > m_secondMaxDrift) {
+        m_secondMaxDrift = drift;
+      }
+    }
+    m_hasPreviousCenters = true;
+
+    // center to center distances
+    for (int i = 0; i < m_centerCount; i++) {
+      m_centerDistances[i * m_centerCount + i] = 0;
+      for (int j = i + 1; j < m_centerCount; j++) {
+        double dist = distance(m_centers, i * m_dimension, m_centers, j
+            * m_dimension);
+        m_centerDistances[i * m_centerCount + j] = dist;
+        m_centerDistances[j * m_centerCount + i] = dist;
+      }
+    }
+    for (int i = 0; i < m_centerCount; i++) {
+      double minDist = Double.MAX_VALUE;
+      for (int j = 0; j < m_centerCount; j++) {
+        if (i != j && m_centerDistances[i * m_centerCount + j] < minDist) {
+          minDist = m_centerDistances[i * m_centerCount + j];
+        }
+      }
+      m_halfMinCenterDistances[i] = minDist / 2;
+    }
+  }
+
+  public int getNearestCenter(int pointIndex, double[] points, int pointOffset) {
+
+    if (!m_initialized[pointIndex]) {
+      m_initialized[pointIndex] = true;
+      return scanCenters(pointIndex, points, pointOffset);
+    }
+
+    // move the bounds by the center drift
+    int assigned = m_assignments[pointIndex];
+    double upper = m_upperBounds[pointIndex] + m_centerDrift[assigned];
+    double lower = m_lowerBounds[pointIndex]
+        - ((assigned == m_maxDriftCenter) ? m_secondMaxDrift : m_maxDrift);
+    m_lowerBounds[pointIndex] = lower;
+
+    double bound = Math.max(m_halfMinCenterDistances[assigned], lower);
+    if (isStrictlyBelow(upper, bound)) {
+      m_upperBounds[pointIndex] = upper;
+      return assigned;
+    }
+
+    // tighten the upper bound and test again
+    upper = distance(points, pointOffset, m_centers, assigned * m_dimension);
+    m_upperBounds[pointIndex] = upper;
+    if (isStrictlyBelow(upper, bound)) {
+      return assigned;
+    }
+
+    return scanCenters(pointIndex, points, pointOffset);
+  }
+
+  public int getAssignment(int pointIndex) {
+    return m_assignments[pointIndex];
+  }
+
+  private int scanCenters(int pointIndex, double[] points, int pointOffset) {
+    if (m_centerIndex != null) {
+      // the exact second nearest distance is the tightest lower bound
+      final double[] distances = new double[2];
+      final int nearestCenter = m_centerIndex.getNearestCenters(points,
+          pointOffset, distances);
+      m_assignments[pointIndex] = nearestCenter;
+      m_upperBounds[pointIndex] = distances[0];
+      m_lowerBounds[pointIndex] = distances[1];
+      return nearestCenter;
+    }
+
+    int lowestDistantCenter = 0;
+    double lowestDistance = Double.MAX_VALUE;
+    double secondLowestDistance = Double.MAX_VALUE;
+
+    for (int i = 0; i < m_centerCount; i++) {
+
+      // d(x, c_i) >= d(c_best, c_i) - d(x, c_best)
+      if (i > 0) {
+        double centerDistance = m_centerDistances[lowestDistantCenter
+            * m_centerCount + i];
+        if (isStrictlyBelow(2 * lowestDistance, centerDistance)) {
+          double lowerBound = centerDistance - lowestDistance;
+          if (lowerBound < secondLowestDistance) {
+            secondLowestDistance = lowerBound;
+          }
+          continue;
+        }
+      }
+
+      double estimatedDistance = distance(points, pointOffset, m_centers, i
+          * m_dimension);
+
+      // check if we have a can assign a new center, because we
+      // got a lower distance
+      if (estimatedDistance < lowestDistance) {
+        secondLowestDistance = lowestDistance;
+        lowestDistance = estimatedDistance;
+        lowestDistantCenter = i;
+      } else if (estimatedDistance < secondLowestDistance) {
+        secondLowestDistance = estimatedDistance;
+      }
+    }
+
+    m_assignments[pointIndex] = lowestDistantCenter;
+    m_upperBounds[pointIndex] = lowestDistance;
+    m_lowerBounds[pointIndex] = secondLowestDistance;
+    return lowestDistantCenter;
+  }
+
+  private static boolean isStrictlyBelow(double value, double bound) {
+    return value < bound - (BOUND_TOLERANCE * Math.abs(bound));
+  }
+
+  private double distance(double[] vec1, int offset1, double[] vec2,
+      int offset2) {
+    // measure Euclidean Distance
+    double sum = 0;
+    for (int j = 0; j < m_dimension; j++) {
+      double diff = vec1[offset1 + j] - vec2[offset2 + j];
+      // multiplication is faster than Math.pow() for ^2.
+      sum += (diff * diff);
+    }
+    return Math.sqrt(sum);
+  }
+
+}
@@ -50,11 +50,12 @@ import org.apache.hama.commons.util.KeyValuePair;
 import org.trifort.rootbeer.runtime.Context;
 import org.trifort.rootbeer.runtime.Rootbeer;
 import org.trifort.rootbeer.runtime.StatsRow;
-import org.trifort.rootbeer.runtime.ThreadConfig;
 import org.trifort.rootbeer.runtime.util.Stopwatch;
 
 import at.illecker.hama.hybrid.examples.matrixmultiplication.util.DistributedRowMatrix;
 import at.illecker.hama.hybrid.examples.matrixmultiplication.util.MatrixRowMessage;
+import at.illecker.hama.hybrid.examples.util.broadcast.TreeBroadcast;
+import at.illecker.hama.hybrid.examples.util.emulator.KernelRunner;
 
 public class MatrixMultiplicationHybridBSP
     extends
@@ -65,6 +66,8 @@ public class MatrixMultiplicationHybridBSP
 
   public static final String CONF_DEBUG = "matrixmultiplication.hybrid.debug";
   public static final String CONF_MATRIX_MULT_B_PATH = "matrixmultiplication.hybrid.B.path";
+  // only peer 0 reads matrix B and broadcasts it to all other peers
+  public static final String CONF_MATRIX_MULT_B_BROADCAST = "matrixmultiplication.hybrid.B.broadcast";
 
   public static final String CONF_BLOCKSIZE = "matrixmultiplication.hybrid.blockSize";
   public static final String CONF_GRIDSIZE = "matrixmultiplication.hybrid.gridSize";
@@ -88,6 +91,7 @@ public class MatrixMultiplicationHybridBSP
   private boolean m_isDebuggingEnabled;
   private FSDataOutputStream m_logger;
   private String m_masterTask;
+  private boolean m_broadcastB;
 
   private int m_gridSize;
   private int m_blockSize;
@@ -125,7 +129,15 @@ public class MatrixMultiplicationHybridBSP
       }
     }
 
-    // Load transposed Matrix B
+    // Load transposed Matrix B, the other peers receive it in the first
+    // superstep if it is broadcast
+    this.m_broadcastB = conf.getBoolean(CONF_MATRIX_MULT_B_BROADCAST, false);
+    if (!m_broadcastB || peer.getPeerIndex() == 0) {
+      readMatrixB(conf);
+    }
+  }
+
+  private void readMatrixB(Configuration conf) throws IOException {
     SequenceFile.Reader reader = new SequenceFile.Reader(FileSystem.get(conf),
         new Path(conf.get(CONF_MATRIX_MULT_B_PATH)), conf);
 
@@ -144,11 +156,41 @@ public class MatrixMultiplicationHybridBSP
     reader.close();
   }
 
+  /**
+   * Spreads the columns of B read by peer 0 to all other peers, see
+   * TreeBroadcast.
+   */
+  private void broadcastMatrixB(
+      BSPPeer<IntWritable, PipesVectorWritable, IntWritable, PipesVectorWritable, MatrixRowMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    List<MatrixRowMessage> chunks = null;
+    if (peer.getPeerIndex() == 0) {
+      chunks = new ArrayList<MatrixRowMessage>(m_bColumns.size());
+      for (KeyValuePair<Integer, DoubleVector> bColumn : m_bColumns) {
+        chunks.add(new MatrixRowMessage(bColumn.getKey(), bColumn.getValue()));
+      }
+    }
+
+    chunks = TreeBroadcast.broadcast(peer, 0, chunks);
+
+    if (peer.getPeerIndex() != 0) {
+      for (MatrixRowMessage chunk : chunks) {
+        m_bColumns.add(new KeyValuePair<Integer, DoubleVector>(chunk
+            .getRowIndex(), chunk.getRowValues()));
+      }
+    }
+  }
+
   @Override
   public void bsp(
       BSPPeer<IntWritable, PipesVectorWritable, IntWritable, PipesVectorWritable, MatrixRowMessage> peer)
       throws IOException, SyncException, InterruptedException {
 
+    if (m_broadcastB) {
+      broadcastMatrixB(peer);
+    }
+
     IntWritable aKey = new IntWritable();
     PipesVectorWritable aVector = new PipesVectorWritable();
     // while for each row of matrix A
@@ -228,6 +270,12 @@ public class MatrixMultiplicationHybridBSP
     this.m_gridSize = Integer.parseInt(peer.getConfiguration().get(
         CONF_GRIDSIZE));
 
+    // the kernel reads matrix B itself
+    if (conf.getBoolean(CONF_MATRIX_MULT_B_BROADCAST, false)) {
+      throw new IOException(CONF_MATRIX_MULT_B_BROADCAST
+          + " is not supported by GPU tasks!");
+    }
+
     // Init logging
     if (m_isDebuggingEnabled) {
       try {
@@ -261,15 +309,15 @@ public class MatrixMultiplicationHybridBSP
         peer.getConfiguration().get(CONF_MATRIX_MULT_B_PATH));
 
     // Run GPU Kernels
-    Context context = rootbeer.createDefaultContext();
     Stopwatch watch = new Stopwatch();
     watch.start();
     // 1 Kernel within 1 Block
     // new ThreadConfig(m_blockSize, m_gridSize, m_blockSize * m_gridSize);
-    rootbeer.run(kernel, new ThreadConfig(1, 1, 1), context);
+    Context context = KernelRunner.run(peer, rootbeer, kernel, 1, 1, false);
     watch.stop();
 
-    List<StatsRow> stats = context.getStats();
+    List<StatsRow> stats = (context != null) ? context.getStats()
+        : new ArrayList<StatsRow>();
     for (StatsRow row : stats) {
       m_logger.writeChars("  StatsRow:\n");
       m_logger.writeChars("    serial time: " + row.getSerializationTime()
@@ -48,9 +48,10 @@ import org.apache.hama.commons.util.KeyValuePair;
 import org.trifort.rootbeer.runtime.Context;
 import org.trifort.rootbeer.runtime.Rootbeer;
 import org.trifort.rootbeer.runtime.StatsRow;
-import org.trifort.rootbeer.runtime.ThreadConfig;
 import org.trifort.rootbeer.runtime.util.Stopwatch;
 
+import at.illecker.hama.hybrid.examples.util.emulator.KernelRunner;
+
 public class MatrixMultiplicationHybridBSP
     extends
     HybridBSP<IntWritable, VectorWritable, IntWritable, VectorWritable, MatrixRowMessage> {
@@ -290,16 +291,15 @@ public class MatrixMultiplicationHybridBSP
         m_tileWidth, subMatricesPerThread);
 
     // Run GPU kernel
-    Context context = rootbeer.createDefaultContext();
     Stopwatch watch = new Stopwatch();
-    context.init((long) 1024 * 1024 * 1024); // 1GB
     watch.start();
-    rootbeer.run(kernel, new ThreadConfig(blockSize, gridSize, blockSize
-        * gridSize), context);
+    Context context = KernelRunner.run(peer, rootbeer, kernel, blockSize,
+        gridSize, false, (long) 1024 * 1024 * 1024); // 1GB
     watch.stop();
 
     if (m_isDebuggingEnabled) {
-      List<StatsRow> stats = context.getStats();
+      List<StatsRow> stats = (context != null) ? context.getStats()
+          : new ArrayList<StatsRow>();
       for (StatsRow row : stats) {
         m_logger.writeChars("  StatsRow:\n");
         m_logger.writeChars("    serial time: " + row.getSerializationTime()
@@ -0,0 +1,552 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.onlinecf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hama.commons.io.PipesVectorWritable;
+import org.apache.hama.commons.math.DenseDoubleVector;
+import org.apache.hama.commons.math.DoubleVector;
+
+/**
+ * The trained OnlineCF model: the user and item ids sorted ascending and
+ * their factors as contiguous row-major blocks, the factors of row r start
+ * at r * getRank(). Ids are looked up by binary search.
+ *
+ * The binary model file holds the same layout and is memory-mapped, so it
+ * is served without parsing and copying:
+ *
+ * <pre>
+ * int magic, int version, int rank, int 0, long users, long items
+ * long[users] userIds, double[users * rank] userFactors
+ * long[items] itemIds, double[items * rank] itemFactors
+ * </pre>
+ *
+ * All values are big-endian. The model is read-only and safe to be used by
+ * several threads.
+ */
+public final class FactorModel {
+  // "OCFM"
+  public static final int MAGIC = 0x4F43464D;
+  public static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  // item rows scored per block, 20 KB of factors at rank 10
+  public static final int ITEM_BLOCK_SIZE = 256;
+
+  private final int m_rank;
+  private final LongBuffer m_userIds;
+  private final DoubleBuffer m_userFactors;
+  private final LongBuffer m_itemIds;
+  private final DoubleBuffer m_itemFactors;
+
+  private FactorModel(int rank, LongBuffer userIds, DoubleBuffer userFactors,
+      LongBuffer itemIds, DoubleBuffer itemFactors) {
+    this.m_rank = rank;
+    this.m_userIds = userIds;
+    this.m_userFactors = userFactors;
+    this.m_itemIds = itemIds;
+    this.m_itemFactors = itemFactors;
+  }
+
+  // **********************************************************************
+  // binary model file
+  // **********************************************************************
+
+  /**
+   * @return true if the file starts like a binary model file
+   */
+  public static boolean isModelFile(File file) {
+    if (!file.isFile() || file.length() < HEADER_SIZE) {
+      return false;
+    }
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        byte[] magic = new byte[4];
+        return in.read(magic) == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Maps a binary model file.
+   *
+   * @param lazy if false all pages are loaded into memory at once, otherwise
+   *          they are read on their first access
+   */
+  public static FactorModel map(File file, boolean lazy) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          HEADER_SIZE);
+      if (header.getInt() != MAGIC) {
+        throw new IOException(file + " is not a model file!");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported model version " + version + " of "
+            + file);
+      }
+      int rank = header.getInt();
+      header.getInt();
+      long users = header.getLong();
+      long items = header.getLong();
+      if (HEADER_SIZE + 8 * (users + items) * (1 + rank) != channel.size()) {
+        throw new IOException(file + " is truncated!");
+      }
+
+      // the sections are mapped one by one, each may take up to 2 GB
+      long offset = HEADER_SIZE;
+      LongBuffer userIds = map(channel, offset, users, lazy).asLongBuffer();
+      offset += 8 * users;
+      DoubleBuffer userFactors = map(channel, offset, users * rank, lazy)
+          .asDoubleBuffer();
+      offset += 8 * users * rank;
+      LongBuffer itemIds = map(channel, offset, items, lazy).asLongBuffer();
+      offset += 8 * items;
+      DoubleBuffer itemFactors = map(channel, offset, items * rank, lazy)
+          .asDoubleBuffer();
+
+      // the mappings stay valid after the channel is closed
+      return new FactorModel(rank, userIds, userFactors, itemIds, itemFactors);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, long offset,
+      long values, boolean lazy) throws IOException {
+    if (8 * values > Integer.MAX_VALUE) {
+      throw new IOException("Model section of " + values
+          + " values is too large to be mapped!");
+    }
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+        offset, 8 * values);
+    if (!lazy) {
+      buffer.load();
+    }
+    return buffer;
+  }
+
+  /**
+   * Writes the model as binary model file.
+   */
+  public void write(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(m_rank);
+      out.writeInt(0);
+      out.writeLong(getUserCount());
+      out.writeLong(getItemCount());
+      for (int i = 0; i < m_userIds.limit(); i++) {
+        out.writeLong(m_userIds.get(i));
+      }
+      for (int i = 0; i < m_userFactors.limit(); i++) {
+        out.writeDouble(m_userFactors.get(i));
+      }
+      for (int i = 0; i < m_itemIds.limit(); i++) {
+        out.writeLong(m_itemIds.get(i));
+      }
+      for (int i = 0; i < m_itemFactors.limit(); i++) {
+        out.writeDouble(m_itemFactors.get(i));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  // **********************************************************************
+  // SequenceFile model
+  // **********************************************************************
+
+  /**
+   * Reads the SequenceFile output of the training jobs (u<userId> or
+   * i<itemId> -> factors), the part files are read in parallel. Duplicated
+   * ids keep the factors of the last part file.
+   *
+   * @param path a part file or the output directory
+   */
+  public static FactorModel read(final Configuration conf, Path path,
+      int threads) throws IOException, InterruptedException {
+    final FileSystem fs = path.getFileSystem(conf);
+    List<Path> files = new ArrayList<Path>();
+    if (fs.isFile(path)) {
+      files.add(path);
+    } else {
+      // one listing instead of probing part-00000 to part-99999
+      FileStatus[] statuses = fs.listStatus(path);
+      if (statuses != null) {
+        for (FileStatus status : statuses) {
+          if (!status.isDir() && status.getPath().getName().startsWith("part-")) {
+            files.add(status.getPath());
+          }
+        }
+      }
+    }
+    // part files in order
+    Collections.sort(files, new Comparator<Path>() {
+      @Override
+      public int compare(Path p1, Path p2) {
+        return p1.getName().compareTo(p2.getName());
+      }
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(threads, files.size())), new ThreadFactory() {
+          private int m_threadCount = 0;
+
+          @Override
+          public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FactorModel-read-"
+                + (m_threadCount++));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    List<Future<Part[]>> futures = new ArrayList<Future<Part[]>>(
+        files.size());
+    for (final Path file : files) {
+      futures.add(executor.submit(new Callable<Part[]>() {
+        @Override
+        public Part[] call() throws IOException {
+          return readPart(fs, file, conf);
+        }
+      }));
+    }
+
+    // merge the parts in order of the part files
+    Part users = new Part();
+    Part items = new Part();
+    try {
+      for (Future<Part[]> future : futures) {
+        Part[] parts = future.get();
+        users.append(parts[0]);
+        items.append(parts[1]);
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("Reading model " + path + " failed!",
+          e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+
+    int rank = (users.m_rank != 0) ? users.m_rank : items.m_rank;
+    if (users.m_rank != 0 && items.m_rank != 0 && users.m_rank != items.m_rank) {
+      throw new IOException("Item rank " + items.m_rank
+          + " does not match user rank " + users.m_rank);
+    }
+    long[] userIds = users.getSortedIds();
+    long[] itemIds = items.getSortedIds();
+    return new FactorModel(rank, LongBuffer.wrap(userIds),
+        DoubleBuffer.wrap(users.getFactors(userIds, rank)),
+        LongBuffer.wrap(itemIds), DoubleBuffer.wrap(items.getFactors(itemIds,
+            rank)));
+  }
+
+  // the user or item rows of one or more part files
+  private static final class Part {
+    private int m_rank = 0;
+    private int m_size = 0;
+    private long[] m_ids = new long[16];
+    private double[] m_factors = new double[0];
+
+    void add(long id, DoubleVector vector) throws IOException {
+      if (m_rank == 0) {
+        m_rank = vector.getDimension();
+        m_factors = new double[m_ids.length * m_rank];
+      } else if (vector.getDimension() != m_rank) {
+        throw new IOException("Vector dimension " + vector.getDimension()
+            + " does not match rank " + m_rank);
+      }
+      if (m_size == m_ids.length) {
+        m_ids = Arrays.copyOf(m_ids, 2 * m_size);
+        m_factors = Arrays.copyOf(m_factors, 2 * m_size * m_rank);
+      }
+      m_ids[m_size] = id;
+      for (int i = 0; i < m_rank; i++) {
+        m_factors[m_size * m_rank + i] = vector.get(i);
+      }
+      m_size++;
+    }
+
+    void append(Part part) throws IOException {
+      if (part.m_size == 0) {
+        return;
+      }
+      if (m_rank == 0) {
+        m_rank = part.m_rank;
+      } else if (part.m_rank != m_rank) {
+        throw new IOException("Vector dimension " + part.m_rank
+            + " does not match rank " + m_rank);
+      }
+      m_ids = Arrays.copyOf(m_ids, m_size + part.m_size);
+      System.arraycopy(part.m_ids, 0, m_ids, m_size, part.m_size);
+      m_factors = Arrays.copyOf(m_factors, (m_size + part.m_size) * m_rank);
+      System.arraycopy(part.m_factors, 0, m_factors, m_size * m_rank,
+          part.m_size * m_rank);
+      m_size += part.m_size;
+    }
+
+    long[] getSortedIds() {
+      long[] ids = Arrays.copyOf(m_ids, m_size);
+      Arrays.sort(ids);
+      // remove duplicates
+      int unique = 0;
+      for (int i = 0; i < ids.length; i++) {
+        if (unique == 0 || ids[i] != ids[unique - 1]) {
+          ids[unique++] = ids[i];
+        }
+      }
+      return Arrays.copyOf(ids, unique);
+    }
+
+    double[] getFactors(long[] sortedIds, int rank) {
+      double[] factors = new double[sortedIds.length * rank];
+      // later rows overwrite earlier rows of the same id
+      for (int i = 0; i < m_size; i++) {
+        int row = Arrays.binarySearch(sortedIds, m_ids[i]);
+        System.arraycopy(m_factors, i * rank, factors, row * rank, rank);
+      }
+      return factors;
+    }
+  }
+
+  // the users and the items of the part file
+  private static Part[] readPart(FileSystem fs, Path file, Configuration conf)
+      throws IOException {
+    Part users = new Part();
+    Part items = new Part();
+
+    SequenceFile.Reader reader = new SequenceFile.Reader(fs, file, conf);
+    try {
+      Text key = new Text();
+      PipesVectorWritable value = new PipesVectorWritable();
+      while (reader.next(key, value)) {
+        if (key.getLength() == 0) {
+          continue;
+        }
+        byte type = key.getBytes()[0];
+        if (type == OnlineCF.DFLT_MODEL_USER_DELIM.charAt(0)) {
+          users.add(parseId(key), value.getVector());
+        } else if (type == OnlineCF.DFLT_MODEL_ITEM_DELIM.charAt(0)) {
+          items.add(parseId(key), value.getVector());
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return new Part[] { users, items };
+  }
+
+  // the id after the type character, 0 if it is no number
+  private static long parseId(Text key) {
+    byte[] bytes = key.getBytes();
+    int length = key.getLength();
+    boolean negative = length > 1 && bytes[1] == '-';
+    int start = negative ? 2 : 1;
+    if (start >= length) {
+      return 0;
+    }
+    long id = 0;
+    for (int i = start; i < length; i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return 0;
+      }
+      id = id * 10 + digit;
+    }
+    return negative ? -id : id;
+  }
+
+  // **********************************************************************
+  // access
+  // **********************************************************************
+
+  public int getRank() {
+    return m_rank;
+  }
+
+  public int getUserCount() {
+    return m_userIds.limit();
+  }
+
+  public int getItemCount() {
+    return m_itemIds.limit();
+  }
+
+  /**
+   * @return the row of the user or -1
+   */
+  public int indexOfUser(long userId) {
+    return indexOf(m_userIds, userId);
+  }
+
+  /**
+   * @return the row of the item or -1
+   */
+  public int indexOfItem(long itemId) {
+    return indexOf(m_itemIds, itemId);
+  }
+
+  private static int indexOf(LongBuffer ids, long id) {
+    int low = 0;
+    int high = ids.limit() - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final long midId = ids.get(mid);
+      if (midId < id) {
+        low = mid + 1;
+      } else if (midId > id) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  public long getUserId(int row) {
+    return m_userIds.get(row);
+  }
+
+  public long getItemId(int row) {
+    return m_itemIds.get(row);
+  }
+
+  public DoubleVector getUserVector(int row) {
+    return getVector(m_userFactors, row);
+  }
+
+  public DoubleVector getItemVector(int row) {
+    return getVector(m_itemFactors, row);
+  }
+
+  private DoubleVector getVector(DoubleBuffer factors, int row) {
+    double[] vector = new double[m_rank];
+    final int offset = row * m_rank;
+    for (int i = 0; i < m_rank; i++) {
+      vector[i] = factors.get(offset + i);
+    }
+    return new DenseDoubleVector(vector);
+  }
+
+  /**
+   * @return the factors of all users, row-major, only absolute gets are
+   *         safe to be used by several threads
+   */
+  public DoubleBuffer getUserFactors() {
+    return m_userFactors;
+  }
+
+  /**
+   * @return the factors of all items, row-major, only absolute gets are
+   *         safe to be used by several threads
+   */
+  public DoubleBuffer getItemFactors() {
+    return m_itemFactors;
+  }
+
+  /**
+   * @return the inner product of the user and the item factors
+   */
+  public double estimate(int userRow, int itemRow) {
+    final int userOffset = userRow * m_rank;
+    final int itemOffset = itemRow * m_rank;
+    double score = 0;
+    for (int i = 0; i < m_rank; i++) {
+      score += m_userFactors.get(userOffset + i)
+          * m_itemFactors.get(itemOffset + i);
+    }
+    return score;
+  }
+
+  /**
+   * Scores the item rows [start, end) against the user factors and offers
+   * them to the heap. The item factors are read in blocks of
+   * ITEM_BLOCK_SIZE rows, directly from the array of an in-memory model or
+   * by one bulk copy per block from a mapped model.
+   */
+  public void scoreItems(double[] user, int start, int end, TopNHeap heap) {
+    final int rank = m_rank;
+    // own position for the bulk gets
+    DoubleBuffer items = m_itemFactors.duplicate();
+    double[] block = null;
+    int base = 0;
+    if (items.hasArray()) {
+      block = items.array();
+      base = items.arrayOffset();
+    } else {
+      block = new double[ITEM_BLOCK_SIZE * rank];
+    }
+
+    for (int blockStart = start; blockStart < end; blockStart += ITEM_BLOCK_SIZE) {
+      final int blockEnd = Math.min(blockStart + ITEM_BLOCK_SIZE, end);
+      int offset = 0;
+      if (items.hasArray()) {
+        offset = base + blockStart * rank;
+      } else {
+        items.position(blockStart * rank);
+        items.get(block, 0, (blockEnd - blockStart) * rank);
+      }
+      for (int row = blockStart; row < blockEnd; row++) {
+        double score = 0;
+        for (int i = 0; i < rank; i++) {
+          score += user[i] * block[offset + i];
+        }
+        heap.offer(row, score);
+        offset += rank;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.onlinecf;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hama.commons.math.DenseDoubleVector;
+import org.apache.hama.commons.math.DoubleVector;
+
+/**
+ * Factors of users or items. Each id is mapped once to a dense row, the
+ * factors of row r are stored in getFactors()[r * rank, (r + 1) * rank) and
+ * are updated in place. The rows keep the insertion order of the ids.
+ *
+ * The id to row mapping is an open addressing hash table of primitive longs,
+ * so a lookup neither boxes the id nor allocates.
+ */
+public final class FactorStore {
+  public static final int DEFAULT_CAPACITY = 1024;
+  private static final int EMPTY = -1;
+
+  private final int m_rank;
+  private int m_size;
+  private long[] m_ids;
+  private double[] m_factors;
+
+  // hash table of row indices, EMPTY marks a free slot
+  private int[] m_table;
+  private int m_mask;
+
+  public FactorStore(int rank) {
+    if (rank <= 0) {
+      throw new IllegalArgumentException("Rank must be positive: " + rank);
+    }
+    this.m_rank = rank;
+    this.m_size = 0;
+    this.m_ids = new long[DEFAULT_CAPACITY];
+    this.m_factors = new double[DEFAULT_CAPACITY * rank];
+    this.m_table = new int[2 * DEFAULT_CAPACITY];
+    Arrays.fill(m_table, EMPTY);
+    this.m_mask = m_table.length - 1;
+  }
+
+  private static int hash(long id) {
+    long h = id * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @return the row of the id or -1
+   */
+  public int indexOf(long id) {
+    int slot = hash(id) & m_mask;
+    while (true) {
+      final int row = m_table[slot];
+      if (row == EMPTY) {
+        return -1;
+      }
+      if (m_ids[row] == id) {
+        return row;
+      }
+      slot = (slot + 1) & m_mask;
+    }
+  }
+
+  public boolean contains(long id) {
+    return indexOf(id) >= 0;
+  }
+
+  /**
+   * Adds the id with random factors in [0, 1) if it is not contained yet.
+   *
+   * @return the row of the id
+   */
+  public int add(long id, Random rand) {
+    int row = indexOf(id);
+    if (row >= 0) {
+      return row;
+    }
+    row = addRow(id);
+    final int offset = row * m_rank;
+    for (int i = 0; i < m_rank; i++) {
+      m_factors[offset + i] = rand.nextDouble();
+    }
+    return row;
+  }
+
+  /**
+   * Adds the id with zero factors if it is not contained yet.
+   *
+   * @return the row of the id
+   */
+  public int add(long id) {
+    int row = indexOf(id);
+    if (row >= 0) {
+      return row;
+    }
+    row = addRow(id);
+    Arrays.fill(m_factors, row * m_rank, (row + 1) * m_rank, 0);
+    return row;
+  }
+
+  /**
+   * Sets the factors of the id, the id is added if it is not contained yet.
+   *
+   * @return the row of the id
+   */
+  public int put(long id, DoubleVector vector) {
+    int row = indexOf(id);
+    if (row < 0) {
+      row = addRow(id);
+    }
+    set(row, vector);
+    return row;
+  }
+
+  private int addRow(long id) {
+    if (m_size == m_ids.length) {
+      m_ids = Arrays.copyOf(m_ids, 2 * m_size);
+      m_factors = Arrays.copyOf(m_factors, 2 * m_size * m_rank);
+    }
+    final int row = m_size++;
+    m_ids[row] = id;
+    // keep the load factor below 0.5
+    if (2 * m_size > m_table.length) {
+      rehash(2 * m_table.length);
+    } else {
+      insert(row);
+    }
+    return row;
+  }
+
+  private void insert(int row) {
+    int slot = hash(m_ids[row]) & m_mask;
+    while (m_table[slot] != EMPTY) {
+      slot = (slot + 1) & m_mask;
+    }
+    m_table[slot] = row;
+  }
+
+  private void rehash(int tableSize) {
+    m_table = new int[tableSize];
+    Arrays.fill(m_table, EMPTY);
+    m_mask = tableSize - 1;
+    for (int row = 0; row < m_size; row++) {
+      insert(row);
+    }
+  }
+
+  public void set(int row, DoubleVector vector) {
+    if (vector.getDimension() != m_rank) {
+      throw new IllegalArgumentException("Vector dimension "
+          + vector.getDimension() + " does not match rank " + m_rank);
+    }
+    final int offset = row * m_rank;
+    for (int i = 0; i < m_rank; i++) {
+      m_factors[offset + i] = vector.get(i);
+    }
+  }
+
+  /**
+   * @return a copy of the factors of the row
+   */
+  public DoubleVector getVector(int row) {
+    final int offset = row * m_rank;
+    return new DenseDoubleVector(Arrays.copyOfRange(m_factors, offset, offset
+        + m_rank));
+  }
+
+  public long getId(int row) {
+    return m_ids[row];
+  }
+
+  /**
+   * @return the factors of all rows, row-major, valid until the next add
+   */
+  public double[] getFactors() {
+    return m_factors;
+  }
+
+  public int getRank() {
+    return m_rank;
+  }
+
+  public int size() {
+    return m_size;
+  }
+
+}
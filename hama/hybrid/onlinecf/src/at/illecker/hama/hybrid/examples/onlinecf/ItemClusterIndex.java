@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.onlinecf;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Clustered (IVF) index for maximum inner product search over the item
+ * factors of a FactorModel.
+ *
+ * The items are grouped by k-means, the factors of each cluster are stored
+ * contiguously together with the centroid c and the radius r, the largest
+ * distance of an item of the cluster to c. For a user u every item x of the
+ * cluster satisfies u.x = u.c + u.(x - c) <= u.c + |u| r, so the clusters
+ * are scanned by descending bound and the search stops as soon as no
+ * remaining cluster can beat the n-th best score. Without a probe limit the
+ * result is exact, a probe limit makes it approximate.
+ */
+public final class ItemClusterIndex {
+  public static final int KMEANS_ITERATIONS = 10;
+  // items per cluster used to train the centroids
+  public static final int KMEANS_SAMPLES_PER_CLUSTER = 64;
+
+  private final int m_rank;
+  private final int m_clusters;
+  private final double[] m_centroids;
+  private final double[] m_radius;
+  // items of cluster c are at [m_starts[c], m_starts[c + 1])
+  private final int[] m_starts;
+  private final int[] m_rows;
+  private final double[] m_factors;
+
+  /**
+   * Builds the index, the centroids are trained on a sample of the items and
+   * then every item is assigned to its nearest centroid. The item factors are
+   * read in blocks of FactorModel.ITEM_BLOCK_SIZE rows, so a memory-mapped
+   * model is not copied besides the cluster ordered factors of the index.
+   */
+  public ItemClusterIndex(FactorModel model, int clusters, long seed) {
+    final int items = model.getItemCount();
+    if (clusters <= 0) {
+      throw new IllegalArgumentException("Cluster count must be positive: "
+          + clusters);
+    }
+    this.m_rank = model.getRank();
+    this.m_clusters = Math.min(clusters, items);
+
+    // own position for the bulk gets
+    final DoubleBuffer itemFactors = model.getItemFactors().duplicate();
+    Random rand = new Random(seed);
+
+    // train the centroids on a sample
+    int[] sample = sample(items, m_clusters * KMEANS_SAMPLES_PER_CLUSTER, rand);
+    double[] sampleFactors = new double[sample.length * m_rank];
+    for (int i = 0; i < sample.length; i++) {
+      itemFactors.position(sample[i] * m_rank);
+      itemFactors.get(sampleFactors, i * m_rank, m_rank);
+    }
+    m_centroids = new double[m_clusters * m_rank];
+    System.arraycopy(sampleFactors, 0, m_centroids, 0, m_clusters * m_rank);
+    int[] sampleClusters = new int[sample.length];
+    for (int iter = 0; iter < KMEANS_ITERATIONS; iter++) {
+      for (int i = 0; i < sample.length; i++) {
+        sampleClusters[i] = nearest(sampleFactors, i * m_rank);
+      }
+      updateCentroids(sampleFactors, sampleClusters, rand);
+    }
+
+    // assign all items
+    final int blockSize = FactorModel.ITEM_BLOCK_SIZE;
+    final double[] block = new double[blockSize * m_rank];
+    int[] itemClusters = new int[items];
+    m_starts = new int[m_clusters + 1];
+    m_radius = new double[m_clusters];
+    for (int blockStart = 0; blockStart < items; blockStart += blockSize) {
+      final int blockEnd = readBlock(itemFactors, blockStart, items, block);
+      for (int i = blockStart; i < blockEnd; i++) {
+        final int offset = (i - blockStart) * m_rank;
+        final int c = nearest(block, offset);
+        itemClusters[i] = c;
+        m_starts[c + 1]++;
+        m_radius[c] = Math.max(m_radius[c],
+            Math.sqrt(distance(block, offset, c)));
+      }
+    }
+    for (int c = 0; c < m_clusters; c++) {
+      m_starts[c + 1] += m_starts[c];
+    }
+
+    // copy the factors ordered by cluster
+    m_rows = new int[items];
+    m_factors = new double[items * m_rank];
+    int[] next = Arrays.copyOf(m_starts, m_clusters);
+    for (int blockStart = 0; blockStart < items; blockStart += blockSize) {
+      final int blockEnd = readBlock(itemFactors, blockStart, items, block);
+      for (int i = blockStart; i < blockEnd; i++) {
+        final int pos = next[itemClusters[i]]++;
+        m_rows[pos] = i;
+        System.arraycopy(block, (i - blockStart) * m_rank, m_factors, pos
+            * m_rank, m_rank);
+      }
+    }
+  }
+
+  // reads the rows from blockStart on into block, returns the end row
+  private int readBlock(DoubleBuffer itemFactors, int blockStart, int items,
+      double[] block) {
+    final int blockEnd = Math.min(blockStart + FactorModel.ITEM_BLOCK_SIZE,
+        items);
+    itemFactors.position(blockStart * m_rank);
+    itemFactors.get(block, 0, (blockEnd - blockStart) * m_rank);
+    return blockEnd;
+  }
+
+  // count distinct rows of [0, rows) in random order, all if count >= rows
+  private static int[] sample(int rows, int count, Random rand) {
+    int[] all = new int[rows];
+    for (int i = 0; i < rows; i++) {
+      all[i] = i;
+    }
+    final int size = Math.min(rows, count);
+    for (int i = 0; i < size; i++) {
+      final int j = i + rand.nextInt(rows - i);
+      final int tmp = all[i];
+      all[i] = all[j];
+      all[j] = tmp;
+    }
+    return Arrays.copyOf(all, size);
+  }
+
+  private double distance(double[] factors, int offset, int cluster) {
+    final int centroid = cluster * m_rank;
+    double distance = 0;
+    for (int i = 0; i < m_rank; i++) {
+      final double diff = factors[offset + i] - m_centroids[centroid + i];
+      distance += diff * diff;
+    }
+    return distance;
+  }
+
+  private int nearest(double[] factors, int offset) {
+    int nearest = 0;
+    double nearestDistance = Double.MAX_VALUE;
+    for (int c = 0; c < m_clusters; c++) {
+      final double distance = distance(factors, offset, c);
+      if (distance < nearestDistance) {
+        nearestDistance = distance;
+        nearest = c;
+      }
+    }
+    return nearest;
+  }
+
+  private void updateCentroids(double[] sampleFactors, int[] sampleClusters,
+      Random rand) {
+    final int samples = sampleClusters.length;
+    int[] counts = new int[m_clusters];
+    Arrays.fill(m_centroids, 0);
+    for (int i = 0; i < samples; i++) {
+      final int c = sampleClusters[i];
+      counts[c]++;
+      for (int k = 0; k < m_rank; k++) {
+        m_centroids[c * m_rank + k] += sampleFactors[i * m_rank + k];
+      }
+    }
+    for (int c = 0; c < m_clusters; c++) {
+      if (counts[c] == 0) {
+        // restart an empty cluster at a random sample
+        System.arraycopy(sampleFactors, rand.nextInt(samples) * m_rank,
+            m_centroids, c * m_rank, m_rank);
+      } else {
+        for (int k = 0; k < m_rank; k++) {
+          m_centroids[c * m_rank + k] /= counts[c];
+        }
+      }
+    }
+  }
+
+  public int getClusterCount() {
+    return m_clusters;
+  }
+
+  /**
+   * Searches the items with the highest inner product with the user factors.
+   *
+   * @param probes the maximum number of scanned clusters, 0 scans until no
+   *          better item can be found, which gives the exact result
+   * @param heap receives the item rows of the FactorModel
+   */
+  public void search(double[] user, int probes, TopNHeap heap) {
+    double userNorm = 0;
+    for (int i = 0; i < m_rank; i++) {
+      userNorm += user[i] * user[i];
+    }
+    userNorm = Math.sqrt(userNorm);
+
+    final double[] bounds = new double[m_clusters];
+    Integer[] order = new Integer[m_clusters];
+    for (int c = 0; c < m_clusters; c++) {
+      double score = 0;
+      for (int i = 0; i < m_rank; i++) {
+        score += user[i] * m_centroids[c * m_rank + i];
+      }
+      bounds[c] = score + userNorm * m_radius[c];
+      order[c] = c;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer c1, Integer c2) {
+        return Double.compare(bounds[c2], bounds[c1]);
+      }
+    });
+
+    final int maxProbes = (probes > 0) ? Math.min(probes, m_clusters)
+        : m_clusters;
+    int scanned = 0;
+    for (int i = 0; i < m_clusters && scanned < maxProbes; i++) {
+      final int c = order[i];
+      if (heap.isFull() && bounds[c] < heap.getMinScore()) {
+        break;
+      }
+      if (m_starts[c] == m_starts[c + 1]) {
+        continue;
+      }
+      for (int pos = m_starts[c]; pos < m_starts[c + 1]; pos++) {
+        final int offset = pos * m_rank;
+        double score = 0;
+        for (int k = 0; k < m_rank; k++) {
+          score += user[k] * m_factors[offset + k];
+        }
+        heap.offer(m_rows[pos], score);
+      }
+      scanned++;
+    }
+  }
+
+}
@@ -22,14 +22,39 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hama.commons.io.VectorWritable;
 import org.apache.hama.commons.math.DenseDoubleVector;
 import org.apache.hama.commons.math.DoubleVector;
 
 public final class ItemMessage extends VectorWritable {
   public final static String VALUE_DELIMITER = ",";
+
+  /**
+   * Wire encodings of an ItemMessage. readFields detects the encoding of
+   * each message, the encoding of a message only selects how it is written.
+   * 
+   * TEXT: "senderId,itemId,v1,v2,..." (legacy, parsed by the GPU kernel)
+   * 
+   * DOUBLE: marker byte, vint senderId, vlong itemId, vint length, raw
+   * doubles
+   * 
+   * FLOAT: same as DOUBLE but values are sent as float32
+   */
+  public enum Encoding {
+    TEXT, DOUBLE, FLOAT
+  }
+
+  // Text lengths are non-negative vints, which never start with these bytes
+  private static final byte MARKER_DOUBLE = -128;
+  private static final byte MARKER_FLOAT = -127;
+
   private int senderId;
   private long itemId;
+  // Encoding used by write. A received message is written as TEXT, because
+  // the pipes forwarder of a GPU task passes received messages by write to
+  // the kernel, which only parses the text encoding.
+  private Encoding encoding = Encoding.TEXT;
 
   public ItemMessage() {
     super();
@@ -42,9 +67,36 @@ public final class ItemMessage extends VectorWritable {
   }
 
   public ItemMessage(int senderId, long itemId, DoubleVector vector) {
+    this(senderId, itemId, vector, Encoding.TEXT);
+  }
+
+  public ItemMessage(int senderId, long itemId, DoubleVector vector,
+      Encoding encoding) {
     super(vector);
     this.senderId = senderId;
     this.itemId = itemId;
+    this.encoding = encoding;
+  }
+
+  public Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Parses the value of OnlineCFTrainHybridBSP.CONF_MESSAGE_ENCODING
+   * (binary|float|text).
+   */
+  public static Encoding parseEncoding(String value) {
+    if (value == null || value.equalsIgnoreCase("binary")
+        || value.equalsIgnoreCase("double")) {
+      return Encoding.DOUBLE;
+    } else if (value.equalsIgnoreCase("float")) {
+      return Encoding.FLOAT;
+    } else if (value.equalsIgnoreCase("text")) {
+      return Encoding.TEXT;
+    }
+    throw new IllegalArgumentException("Unknown ItemMessage encoding: "
+        + value);
   }
 
   public int getSenderId() {
@@ -74,22 +126,75 @@ public final class ItemMessage extends VectorWritable {
     super.set(itemMessage.getVector());
     this.senderId = itemMessage.getSenderId();
     this.itemId = itemMessage.getItemId();
+    this.encoding = Encoding.TEXT;
   }
 
   public static void writeItemMessage(ItemMessage itemMessage, DataOutput out)
       throws IOException {
-    String str = itemMessage.senderId + VALUE_DELIMITER + itemMessage.itemId
-        + VALUE_DELIMITER;
     DoubleVector vector = itemMessage.getVector();
-    for (int i = 0; i < vector.getLength(); i++) {
-      str += (i < vector.getLength() - 1) ? vector.get(i) + VALUE_DELIMITER
-          : vector.get(i);
+    if (itemMessage.encoding == Encoding.TEXT) {
+      StringBuilder str = new StringBuilder();
+      str.append(itemMessage.senderId).append(VALUE_DELIMITER)
+          .append(itemMessage.itemId).append(VALUE_DELIMITER);
+      for (int i = 0; i < vector.getLength(); i++) {
+        if (i > 0) {
+          str.append(VALUE_DELIMITER);
+        }
+        str.append(vector.get(i));
+      }
+      Text.writeString(out, str.toString());
+      return;
+    }
+
+    boolean asFloat = (itemMessage.encoding == Encoding.FLOAT);
+    out.writeByte(asFloat ? MARKER_FLOAT : MARKER_DOUBLE);
+    WritableUtils.writeVInt(out, itemMessage.senderId);
+    WritableUtils.writeVLong(out, itemMessage.itemId);
+    int len = vector.getLength();
+    WritableUtils.writeVInt(out, len);
+    for (int i = 0; i < len; i++) {
+      if (asFloat) {
+        out.writeFloat((float) vector.get(i));
+      } else {
+        out.writeDouble(vector.get(i));
+      }
     }
-    Text.writeString(out, str);
   }
 
   public static ItemMessage readItemMessage(DataInput in) throws IOException {
-    String str = Text.readString(in);
+    byte firstByte = in.readByte();
+
+    if (firstByte == MARKER_DOUBLE || firstByte == MARKER_FLOAT) {
+      int senderId = WritableUtils.readVInt(in);
+      long itemId = WritableUtils.readVLong(in);
+      int len = WritableUtils.readVInt(in);
+      double[] vector = new double[len];
+      if (firstByte == MARKER_DOUBLE) {
+        for (int i = 0; i < len; i++) {
+          vector[i] = in.readDouble();
+        }
+      } else {
+        for (int i = 0; i < len; i++) {
+          vector[i] = in.readFloat();
+        }
+      }
+      return new ItemMessage(senderId, itemId, new DenseDoubleVector(vector));
+    }
+
+    // Text.readString, the first byte of the vint length was already read
+    int length = firstByte;
+    int vintSize = WritableUtils.decodeVIntSize(firstByte);
+    if (vintSize > 1) {
+      long value = 0;
+      for (int i = 0; i < vintSize - 1; i++) {
+        value = (value << 8) | (in.readByte() & 0xFF);
+      }
+      length = (int) value;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes, 0, length);
+    String str = Text.decode(bytes);
+
     String[] values = str.split(VALUE_DELIMITER);
     int senderId = Integer.parseInt(values[0]);
     long itemId = Long.parseLong(values[1]);
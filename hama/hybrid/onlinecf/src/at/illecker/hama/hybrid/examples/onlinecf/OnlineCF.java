@@ -17,32 +17,32 @@
  */
 package at.illecker.hama.hybrid.examples.onlinecf;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.Text;
 import org.apache.hama.HamaConfiguration;
 import org.apache.hama.bsp.BSPJob;
-import org.apache.hama.commons.io.PipesVectorWritable;
-import org.apache.hama.commons.io.VectorWritable;
 import org.apache.hama.commons.math.DoubleVector;
 import org.apache.hama.commons.math.SquareVectorFunction;
 import org.apache.hama.commons.util.KeyValuePair;
 import org.apache.hama.ml.recommendation.Preference;
 import org.apache.hama.ml.recommendation.Recommender;
 import org.apache.hama.ml.recommendation.RecommenderIO;
-import org.apache.hama.ml.recommendation.cf.function.MeanAbsError;
-import org.apache.hama.ml.recommendation.cf.function.OnlineUpdate.InputStructure;
 
 public class OnlineCF implements Recommender, RecommenderIO {
 
@@ -52,6 +52,18 @@ public class OnlineCF implements Recommender, RecommenderIO {
   public static final String CONF_MATRIX_RANK = "ml.recommender.cf.rank";
   public static final String CONF_SKIP_COUNT = "ml.recommender.cf.skip.count";
   public static final String CONF_ONLINE_UPDATE_FUNCTION = "ml.recommender.cf.func.ou";
+  // training engine: sgd (default) or als
+  public static final String CONF_TRAINER = "ml.recommender.cf.trainer";
+  public static final String CONF_LAMBDA = "ml.recommender.cf.lambda";
+  // threads reading the part files of the model
+  public static final String CONF_LOAD_THREADS = "ml.recommender.cf.load.threads";
+  // threads scoring the items of getMostPreferredItems
+  public static final String CONF_TOPN_THREADS = "ml.recommender.cf.topn.threads";
+  // clustered item index of getMostPreferredItems, 0 scans all items
+  public static final String CONF_MIPS_CLUSTERS = "ml.recommender.cf.mips.clusters";
+  public static final String CONF_MIPS_PROBES = "ml.recommender.cf.mips.probes";
+  // seed of the k-means sample of the item index
+  public static final String CONF_MIPS_SEED = "ml.recommender.cf.mips.seed";
 
   public static final String CONF_INPUT_PATH = "ml.recommender.cf.input.path";
   public static final String CONF_OUTPUT_PATH = "ml.recommender.cf.output.path";
@@ -60,17 +72,27 @@ public class OnlineCF implements Recommender, RecommenderIO {
   public static final int DFLT_ITERATION_COUNT = 100;
   public static final int DFLT_MATRIX_RANK = 10;
   public static final int DFLT_SKIP_COUNT = 5;
+  public static final int DFLT_ALS_ITERATION_COUNT = 10;
+  public static final double DFLT_LAMBDA = 0.05;
+  public static final int DFLT_MIPS_CLUSTERS = 0;
+  public static final int DFLT_MIPS_PROBES = 0;
+  public static final long DFLT_MIPS_SEED = 32L;
+  // a thread scores at least this many items
+  public static final int MIN_ITEMS_PER_THREAD = 16384;
+
+  public static final String TRAINER_SGD = "sgd";
+  public static final String TRAINER_ALS = "als";
 
   public static final String DFLT_MODEL_USER_DELIM = "u";
   public static final String DFLT_MODEL_ITEM_DELIM = "i";
 
   HamaConfiguration conf = new HamaConfiguration();
 
-  // used only if model is loaded in memory
-  private HashMap<Long, PipesVectorWritable> m_modelUserFactorizedValues = new HashMap<Long, PipesVectorWritable>();
-  private HashMap<Long, PipesVectorWritable> m_modelItemFactorizedValues = new HashMap<Long, PipesVectorWritable>();
-  private String m_modelPath = null;
-  private boolean m_isLazyLoadModel = false;
+  // sorted ids and factors, in memory or memory-mapped
+  private FactorModel m_model = null;
+  // built at load if CONF_MIPS_CLUSTERS > 0
+  private ItemClusterIndex m_itemIndex = null;
+  private ExecutorService m_executor = null;
 
   /**
    * iteration count for matrix factorization
@@ -101,6 +123,38 @@ public class OnlineCF implements Recommender, RecommenderIO {
     conf.setInt(CONF_SKIP_COUNT, count);
   }
 
+  /**
+   * Training engine, TRAINER_SGD (OnlineCFTrainHybridBSP) or TRAINER_ALS
+   * (OnlineCFTrainALSBSP)
+   * 
+   * @param trainer - training engine
+   */
+  public void setTrainer(String trainer) {
+    conf.set(CONF_TRAINER, trainer);
+  }
+
+  /**
+   * Regularization of ALS, the factors of a user or item with n ratings are
+   * penalized by lambda * n
+   * 
+   * @param lambda - regularization
+   */
+  public void setLambda(double lambda) {
+    conf.setFloat(CONF_LAMBDA, (float) lambda);
+  }
+
+  /**
+   * Clustered item index of getMostPreferredItems, the index is built when
+   * the model is loaded
+   * 
+   * @param clusters - cluster count, 0 scans all items
+   * @param probes - maximum number of scanned clusters, 0 gives exact results
+   */
+  public void setMipsIndex(int clusters, int probes) {
+    conf.setInt(CONF_MIPS_CLUSTERS, clusters);
+    conf.setInt(CONF_MIPS_PROBES, probes);
+  }
+
   @Override
   public void setInputPreferences(String path) {
     conf.set(CONF_INPUT_PATH, path);
@@ -132,8 +186,19 @@ public class OnlineCF implements Recommender, RecommenderIO {
       String input = conf.get(CONF_INPUT_PATH, null);
       String output = conf.get(CONF_OUTPUT_PATH, null);
 
-      BSPJob job = OnlineCFTrainHybridBSP.createOnlineCFTrainHybridBSPConf(
-          new Path(input), new Path(output));
+      // the jobs set their defaults in a copy of the settings
+      Configuration jobConf = new HamaConfiguration(conf);
+      BSPJob job = null;
+      String trainer = conf.get(CONF_TRAINER, TRAINER_SGD);
+      if (trainer.equalsIgnoreCase(TRAINER_ALS)) {
+        job = OnlineCFTrainALSBSP.createOnlineCFTrainALSBSPConf(jobConf,
+            new Path(input), new Path(output));
+      } else if (trainer.equalsIgnoreCase(TRAINER_SGD)) {
+        job = OnlineCFTrainHybridBSP.createOnlineCFTrainHybridBSPConf(jobConf,
+            new Path(input), new Path(output));
+      } else {
+        throw new IllegalArgumentException("Unknown trainer: " + trainer);
+      }
 
       return job.waitForCompletion(true);
 
@@ -154,119 +219,188 @@ public class OnlineCF implements Recommender, RecommenderIO {
     return true;
   }
 
+  /**
+   * Loads the model, either the binary model file written by convertModel
+   * or the SequenceFile output of the training job.
+   * 
+   * The binary model file is memory-mapped, if lazy is true its pages are
+   * only read on their first access. The SequenceFile output is read into
+   * memory by CONF_LOAD_THREADS threads in both modes.
+   */
   @Override
   public boolean load(String path, boolean lazy) {
-    this.m_isLazyLoadModel = lazy;
-    this.m_modelPath = path;
-
-    if (lazy == false) {
-      Path dataPath = new Path(m_modelPath);
-      Configuration conf = new Configuration();
-      try {
-        FileSystem fs = dataPath.getFileSystem(conf);
-        LinkedList<Path> files = new LinkedList<Path>();
-
-        if (!fs.exists(dataPath)) {
-          this.m_isLazyLoadModel = false;
-          this.m_modelPath = null;
-          return false;
-        }
+    this.m_model = null;
+    this.m_itemIndex = null;
 
-        if (!fs.isFile(dataPath)) {
-          for (int i = 0; i < 100000; i++) {
-            Path partFile = new Path(m_modelPath + "/part-"
-                + String.valueOf(100000 + i).substring(1, 6));
-            if (fs.exists(partFile)) {
-              files.add(partFile);
-            } else {
-              break;
-            }
-          }
-        } else {
-          files.add(dataPath);
+    try {
+      long startTime = System.currentTimeMillis();
+      File file = new File(path);
+      if (FactorModel.isModelFile(file)) {
+        LOG.info("mapping model from " + path);
+        m_model = FactorModel.map(file, lazy);
+      } else {
+        Path dataPath = new Path(path);
+        if (!dataPath.getFileSystem(conf).exists(dataPath)) {
+          return false;
         }
-
         LOG.info("loading model from " + path);
-        for (Path file : files) {
-          SequenceFile.Reader reader = new SequenceFile.Reader(fs, file, conf);
-
-          Text key = new Text();
-          PipesVectorWritable value = new PipesVectorWritable();
-          String strKey = null;
-          Long actualKey = null;
-          String firstSymbol = null;
-
-          while (reader.next(key, value) != false) {
-            strKey = key.toString();
-            firstSymbol = strKey.substring(0, 1);
-            try {
-              actualKey = Long.valueOf(strKey.substring(1));
-            } catch (Exception e) {
-              actualKey = new Long(0);
-            }
-
-            if (firstSymbol.equals(OnlineCF.DFLT_MODEL_ITEM_DELIM)) {
-              // LOG.info("loaded itemId: " + actualKey + " itemVector: "
-              // + value.getVector());
-              m_modelItemFactorizedValues.put(actualKey,
-                  new PipesVectorWritable(value));
-            } else if (firstSymbol.equals(OnlineCF.DFLT_MODEL_USER_DELIM)) {
-              // LOG.info("loaded userId: " + actualKey + " userVector: "
-              // + value.getVector());
-              m_modelUserFactorizedValues.put(actualKey,
-                  new PipesVectorWritable(value));
-            } else {
-              // unknown
-              continue;
-            }
-          }
-          reader.close();
-        }
-
-        LOG.info("loaded: " + m_modelUserFactorizedValues.size() + " users, "
-            + m_modelItemFactorizedValues.size() + " items");
-        // for (Long user : m_modelUserFactorizedValues.keySet()) {
-        // LOG.info("userId: " + user + " userVector: "
-        // + m_modelUserFactorizedValues.get(user));
-        // }
-        // for (Long item : m_modelItemFactorizedValues.keySet()) {
-        // LOG.info("itemId: " + item + " itemVector: "
-        // + m_modelItemFactorizedValues.get(item));
-        // }
-
-      } catch (Exception e) {
-        e.printStackTrace();
-        this.m_isLazyLoadModel = false;
-        this.m_modelPath = null;
-        return false;
+        m_model = FactorModel.read(conf, dataPath, getLoadThreads());
+      }
+      LOG.info("loaded: " + m_model.getUserCount() + " users, "
+          + m_model.getItemCount() + " items in "
+          + (System.currentTimeMillis() - startTime) + " ms");
+
+      int clusters = conf.getInt(CONF_MIPS_CLUSTERS, DFLT_MIPS_CLUSTERS);
+      if (clusters > 0 && m_model.getItemCount() > 0) {
+        startTime = System.currentTimeMillis();
+        m_itemIndex = new ItemClusterIndex(m_model, clusters, conf.getLong(
+            CONF_MIPS_SEED, DFLT_MIPS_SEED));
+        LOG.info("indexed items in " + m_itemIndex.getClusterCount()
+            + " clusters in " + (System.currentTimeMillis() - startTime)
+            + " ms");
       }
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      return false;
     }
     return true;
   }
 
-  @Override
-  public double estimatePreference(long userId, long itemId) {
-    if (m_isLazyLoadModel == false) {
+  /**
+   * Converts the SequenceFile output of the training job into a binary model
+   * file, which can be loaded by mapping it.
+   * 
+   * @param modelPath - output of the training job
+   * @param binaryModelPath - local file of the binary model
+   */
+  public boolean convertModel(String modelPath, String binaryModelPath) {
+    try {
+      FactorModel model = FactorModel.read(conf, new Path(modelPath),
+          getLoadThreads());
+      model.write(new File(binaryModelPath));
+      LOG.info("converted: " + model.getUserCount() + " users, "
+          + model.getItemCount() + " items to " + binaryModelPath);
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+    return false;
+  }
 
-      InputStructure e = new InputStructure();
-      e.item = this.m_modelItemFactorizedValues.get(itemId);
-      e.user = this.m_modelUserFactorizedValues.get(userId);
-      if (e.item == null || e.user == null) {
-        return 0;
-      }
+  private int getLoadThreads() {
+    return conf.getInt(CONF_LOAD_THREADS, Runtime.getRuntime()
+        .availableProcessors());
+  }
 
-      return new MeanAbsError().predict(e);
+  @Override
+  public double estimatePreference(long userId, long itemId) {
+    if (m_model == null) {
+      return 0;
     }
-    return 0;
+    int userRow = m_model.indexOfUser(userId);
+    int itemRow = m_model.indexOfItem(itemId);
+    if (userRow < 0 || itemRow < 0) {
+      return 0;
+    }
+    // MeanAbsError.predict without user and item features
+    return m_model.estimate(userRow, itemRow);
   }
 
+  /**
+   * The items with the highest estimated preference of the user, ordered by
+   * descending preference. Items the user has already rated are included.
+   * 
+   * Without an item index the items are scored in blocks and split into
+   * ranges of CONF_TOPN_THREADS threads, each keeping its best items in a
+   * bounded heap.
+   */
   @Override
   public List<Preference<Long, Long>> getMostPreferredItems(long userId,
       int count) {
+    List<Preference<Long, Long>> results = new ArrayList<Preference<Long, Long>>();
+    if (m_model == null || count <= 0) {
+      return results;
+    }
+    int userRow = m_model.indexOfUser(userId);
+    if (userRow < 0) {
+      return results;
+    }
 
-    // TODO
-    // needs features
-    return null;
+    double[] user = m_model.getUserVector(userRow).toArray();
+    TopNHeap heap = new TopNHeap(Math.min(count,
+        Math.max(1, m_model.getItemCount())));
+    try {
+      if (m_itemIndex != null) {
+        m_itemIndex.search(user,
+            conf.getInt(CONF_MIPS_PROBES, DFLT_MIPS_PROBES), heap);
+      } else {
+        scoreItems(user, heap);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      e.printStackTrace();
+      return results;
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+      return results;
+    }
+
+    heap.sort();
+    for (int i = 0; i < heap.size(); i++) {
+      results.add(new Preference<Long, Long>(userId, m_model.getItemId(heap
+          .getRow(i)), heap.getScore(i)));
+    }
+    return results;
+  }
+
+  private void scoreItems(final double[] user, TopNHeap heap)
+      throws InterruptedException, ExecutionException {
+    final int items = m_model.getItemCount();
+    int threads = Math.min(conf.getInt(CONF_TOPN_THREADS, Runtime
+        .getRuntime().availableProcessors()), items / MIN_ITEMS_PER_THREAD);
+    if (threads <= 1) {
+      m_model.scoreItems(user, 0, items, heap);
+      return;
+    }
+
+    final int capacity = Math.min(heap.getCapacity(), items);
+    List<Future<TopNHeap>> futures = new ArrayList<Future<TopNHeap>>(threads);
+    for (int t = 0; t < threads; t++) {
+      final int start = (int) ((long) items * t / threads);
+      final int end = (int) ((long) items * (t + 1) / threads);
+      futures.add(getExecutor(threads).submit(new Callable<TopNHeap>() {
+        @Override
+        public TopNHeap call() {
+          TopNHeap rangeHeap = new TopNHeap(capacity);
+          m_model.scoreItems(user, start, end, rangeHeap);
+          return rangeHeap;
+        }
+      }));
+    }
+    for (Future<TopNHeap> future : futures) {
+      heap.offerAll(future.get());
+    }
+  }
+
+  private synchronized ExecutorService getExecutor(int threads) {
+    if (m_executor == null) {
+      // daemon threads, the recommender has no close
+      m_executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int m_threadCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "OnlineCF-topn-"
+              + (m_threadCount++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return m_executor;
   }
 
   public double calculateUserSimilarity(long user1, long user2) {
@@ -292,7 +426,8 @@ public class OnlineCF implements Recommender, RecommenderIO {
         count, similarityComparator);
 
     LinkedList<KeyValuePair<Long, Double>> results = new LinkedList<KeyValuePair<Long, Double>>();
-    for (Long candidateUser : m_modelUserFactorizedValues.keySet()) {
+    for (int row = 0; m_model != null && row < m_model.getUserCount(); row++) {
+      long candidateUser = m_model.getUserId(row);
       double similarity = calculateUserSimilarity(user, candidateUser);
       KeyValuePair<Long, Double> targetUser = new KeyValuePair<Long, Double>(
           candidateUser, similarity);
@@ -303,16 +438,14 @@ public class OnlineCF implements Recommender, RecommenderIO {
   }
 
   public double calculateItemSimilarity(long item1, long item2) {
-    VectorWritable itm1 = this.m_modelUserFactorizedValues.get(Long
-        .valueOf(item1));
-    VectorWritable itm2 = this.m_modelUserFactorizedValues.get(Long
-        .valueOf(item2));
-    if (itm1 == null || itm2 == null) {
+    int itm1 = (m_model != null) ? m_model.indexOfItem(item1) : -1;
+    int itm2 = (m_model != null) ? m_model.indexOfItem(item2) : -1;
+    if (itm1 < 0 || itm2 < 0) {
       return Double.MAX_VALUE;
     }
 
-    DoubleVector itm1Vector = itm1.getVector();
-    DoubleVector itm2Vector = itm2.getVector();
+    DoubleVector itm1Vector = m_model.getItemVector(itm1);
+    DoubleVector itm2Vector = m_model.getItemVector(itm2);
 
     // Euclidean distance
     return Math.pow(
@@ -336,7 +469,8 @@ public class OnlineCF implements Recommender, RecommenderIO {
     PriorityQueue<KeyValuePair<Long, Double>> queue = new PriorityQueue<KeyValuePair<Long, Double>>(
         count, similarityComparator);
     LinkedList<KeyValuePair<Long, Double>> results = new LinkedList<KeyValuePair<Long, Double>>();
-    for (Long candidateItem : m_modelItemFactorizedValues.keySet()) {
+    for (int row = 0; m_model != null && row < m_model.getItemCount(); row++) {
+      long candidateItem = m_model.getItemId(row);
       double similarity = calculateItemSimilarity(item, candidateItem);
       KeyValuePair<Long, Double> targetItem = new KeyValuePair<Long, Double>(
           candidateItem, similarity);
@@ -0,0 +1,471 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.onlinecf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hama.HamaConfiguration;
+import org.apache.hama.bsp.BSP;
+import org.apache.hama.bsp.BSPJob;
+import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.SequenceFileInputFormat;
+import org.apache.hama.bsp.SequenceFileOutputFormat;
+import org.apache.hama.bsp.sync.SyncException;
+import org.apache.hama.commons.io.PipesVectorWritable;
+import org.apache.hama.commons.math.DenseDoubleVector;
+import org.apache.hama.commons.math.DoubleVector;
+
+/**
+ * Alternating least squares with weighted lambda regularization (ALS-WR of
+ * Zhou et al.) as training engine of OnlineCF, see OnlineCF.CONF_TRAINER.
+ *
+ * Users and items are partitioned across the tasks by their id. Each task
+ * receives the preferences of its users and of its items once, then every
+ * iteration solves the (rank x rank) normal equations of its users and
+ * afterwards of its items by Cholesky decomposition. The rows are
+ * independent and are solved on several threads. A new factor is only sent
+ * to the tasks owning one of its ratings, which cache it for the next half
+ * iteration.
+ *
+ * The model is written in the format of OnlineCFTrainHybridBSP, each user
+ * and item exactly once.
+ */
+public class OnlineCFTrainALSBSP extends
+    BSP<LongWritable, PipesVectorWritable, Text, PipesVectorWritable, ItemMessage> {
+
+  private static final Log LOG = LogFactory.getLog(OnlineCFTrainALSBSP.class);
+
+  // number of threads solving the rows of each task, default all cores
+  public static final String CONF_THREADS = "onlinecf.als.threads";
+
+  // rows taken by a thread at once
+  private static final int ROW_CHUNK_SIZE = 64;
+
+  private int m_maxIterations;
+  private int m_matrixRank;
+  private double m_lambda;
+
+  // factors of the own users and items
+  private FactorStore m_users;
+  private FactorStore m_items;
+  // factors of the other side needed to solve the own rows
+  private FactorStore m_userCache;
+  private FactorStore m_itemCache;
+
+  // ratings of the own users by user, the items are rows of m_itemCache
+  private SparseRatingMatrix m_userRatings;
+  // ratings of the own items by item, the users are rows of m_userCache
+  private SparseRatingMatrix m_itemRatings;
+
+  // tasks which cache the factor of an own user or item
+  private int[][] m_userSubscribers;
+  private int[][] m_itemSubscribers;
+
+  private Random m_rand = new Random(32L);
+
+  private ItemMessage.Encoding m_encoding;
+
+  private int m_threads;
+  private ExecutorService m_executor = null;
+
+  @Override
+  public void setup(
+      BSPPeer<LongWritable, PipesVectorWritable, Text, PipesVectorWritable, ItemMessage> peer)
+      throws IOException {
+
+    Configuration conf = peer.getConfiguration();
+
+    this.m_maxIterations = conf.getInt(OnlineCF.CONF_ITERATION_COUNT,
+        OnlineCF.DFLT_ALS_ITERATION_COUNT);
+    this.m_matrixRank = conf.getInt(OnlineCF.CONF_MATRIX_RANK,
+        OnlineCF.DFLT_MATRIX_RANK);
+    this.m_lambda = conf.getFloat(OnlineCF.CONF_LAMBDA,
+        (float) OnlineCF.DFLT_LAMBDA);
+
+    this.m_users = new FactorStore(m_matrixRank);
+    this.m_items = new FactorStore(m_matrixRank);
+    this.m_userCache = new FactorStore(m_matrixRank);
+    this.m_itemCache = new FactorStore(m_matrixRank);
+
+    this.m_encoding = ItemMessage.parseEncoding(conf
+        .get(OnlineCFTrainHybridBSP.CONF_MESSAGE_ENCODING));
+
+    this.m_threads = conf.getInt(CONF_THREADS, Runtime.getRuntime()
+        .availableProcessors());
+    if (m_threads > 1) {
+      m_executor = Executors.newFixedThreadPool(m_threads, new ThreadFactory() {
+        private int m_threadCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "OnlineCFTrainALSBSP-solve-"
+              + (m_threadCount++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  @Override
+  public void bsp(
+      BSPPeer<LongWritable, PipesVectorWritable, Text, PipesVectorWritable, ItemMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    long startTime = System.currentTimeMillis();
+
+    collectInput(peer);
+
+    // initial items
+    sendFactors(peer, m_items, m_itemSubscribers, m_itemCache);
+
+    for (int i = 0; i < m_maxIterations; i++) {
+      solve(m_users, m_userRatings.getUserPointers(),
+          m_userRatings.getUserItems(), m_userRatings.getUserRatings(),
+          m_itemCache);
+      sendFactors(peer, m_users, m_userSubscribers, m_userCache);
+
+      solve(m_items, m_itemRatings.getItemPointers(),
+          m_itemRatings.getItemUsers(), m_itemRatings.getItemRatings(),
+          m_userCache);
+      // the users are not solved again after the last iteration
+      if (i + 1 < m_maxIterations) {
+        sendFactors(peer, m_items, m_itemSubscribers, m_itemCache);
+      }
+    }
+    if (m_executor != null) {
+      m_executor.shutdown();
+    }
+
+    // save model
+    for (int i = 0; i < m_users.size(); i++) {
+      peer.write(new Text(OnlineCF.DFLT_MODEL_USER_DELIM + m_users.getId(i)),
+          new PipesVectorWritable(m_users.getVector(i)));
+    }
+    for (int i = 0; i < m_items.size(); i++) {
+      peer.write(new Text(OnlineCF.DFLT_MODEL_ITEM_DELIM + m_items.getId(i)),
+          new PipesVectorWritable(m_items.getVector(i)));
+    }
+
+    LOG.info("OnlineCFTrainALSBSP: " + m_users.size() + " users, "
+        + m_items.size() + " items, " + m_userRatings.getRatingCount()
+        + " user ratings, " + m_itemRatings.getRatingCount()
+        + " item ratings");
+    LOG.info("OnlineCFTrainALSBSP,bspTime="
+        + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  // **********************************************************************
+  // collectInput
+  // **********************************************************************
+  // Sends each preference to the owner of its user and then to the owner of
+  // its item as ItemMessage(senderId, userId or itemId, (otherId, score))
+  private void collectInput(
+      BSPPeer<LongWritable, PipesVectorWritable, Text, PipesVectorWritable, ItemMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    int peerCount = peer.getNumPeers();
+    int peerId = peer.getPeerIndex();
+    String[] allPeerNames = peer.getAllPeerNames();
+
+    LongWritable key = new LongWritable();
+    PipesVectorWritable value = new PipesVectorWritable();
+
+    // preferences by user, the ids must not be rounded to float32
+    while (peer.readNext(key, value)) {
+      long userId = key.get();
+      int toPeerId = OnlineCFTrainHybridBSP.getPartition(userId, peerCount);
+      peer.send(allPeerNames[toPeerId],
+          new ItemMessage(peerId, userId, value.getVector().deepCopy(),
+              ItemMessage.Encoding.DOUBLE));
+    }
+    peer.sync();
+
+    PreferenceStore preferences = new PreferenceStore();
+    ItemMessage msg;
+    while ((msg = peer.getCurrentMessage()) != null) {
+      DoubleVector vector = msg.getVector();
+      preferences.add(m_users.add(msg.getItemId()),
+          m_itemCache.add((long) vector.get(0)), vector.get(1));
+    }
+    m_userRatings = new SparseRatingMatrix(preferences, m_users.size(),
+        m_itemCache.size());
+
+    // preferences by item
+    peer.reopenInput();
+    while (peer.readNext(key, value)) {
+      long itemId = (long) value.getVector().get(0);
+      int toPeerId = OnlineCFTrainHybridBSP.getPartition(itemId, peerCount);
+      peer.send(allPeerNames[toPeerId],
+          new ItemMessage(peerId, itemId, new DenseDoubleVector(new double[] {
+              key.get(), value.getVector().get(1) }),
+              ItemMessage.Encoding.DOUBLE));
+    }
+    peer.sync();
+
+    preferences = new PreferenceStore();
+    while ((msg = peer.getCurrentMessage()) != null) {
+      DoubleVector vector = msg.getVector();
+      preferences.add(m_userCache.add((long) vector.get(0)),
+          m_items.add(msg.getItemId(), m_rand), vector.get(1));
+    }
+    m_itemRatings = new SparseRatingMatrix(preferences, m_userCache.size(),
+        m_items.size());
+
+    m_userSubscribers = getSubscribers(m_userRatings.getUserPointers(),
+        m_userRatings.getUserItems(), m_itemCache, peerCount);
+    m_itemSubscribers = getSubscribers(m_itemRatings.getItemPointers(),
+        m_itemRatings.getItemUsers(), m_userCache, peerCount);
+  }
+
+  // the distinct owners of the rated ids of each row
+  private static int[][] getSubscribers(int[] pointers, int[] indices,
+      FactorStore cache, int peerCount) {
+    int[][] subscribers = new int[pointers.length - 1][];
+    boolean[] isSubscriber = new boolean[peerCount];
+    int[] peers = new int[peerCount];
+    for (int row = 0; row < subscribers.length; row++) {
+      int count = 0;
+      for (int p = pointers[row]; p < pointers[row + 1]; p++) {
+        int peer = OnlineCFTrainHybridBSP.getPartition(
+            cache.getId(indices[p]), peerCount);
+        if (!isSubscriber[peer]) {
+          isSubscriber[peer] = true;
+          peers[count++] = peer;
+        }
+      }
+      subscribers[row] = Arrays.copyOf(peers, count);
+      for (int i = 0; i < count; i++) {
+        isSubscriber[peers[i]] = false;
+      }
+    }
+    return subscribers;
+  }
+
+  // **********************************************************************
+  // sendFactors
+  // **********************************************************************
+  // Sends the factors to the caches of all subscribed tasks
+  private void sendFactors(
+      BSPPeer<LongWritable, PipesVectorWritable, Text, PipesVectorWritable, ItemMessage> peer,
+      FactorStore factors, int[][] subscribers, FactorStore cache)
+      throws IOException, SyncException, InterruptedException {
+
+    int peerId = peer.getPeerIndex();
+    String[] allPeerNames = peer.getAllPeerNames();
+
+    for (int row = 0; row < factors.size(); row++) {
+      ItemMessage msg = null;
+      for (int toPeerId : subscribers[row]) {
+        if (toPeerId == peerId) {
+          cache.put(factors.getId(row), factors.getVector(row));
+        } else {
+          if (msg == null) {
+            msg = new ItemMessage(peerId, factors.getId(row),
+                factors.getVector(row), m_encoding);
+          }
+          peer.send(allPeerNames[toPeerId], msg);
+        }
+      }
+    }
+    peer.sync();
+
+    ItemMessage msg;
+    while ((msg = peer.getCurrentMessage()) != null) {
+      cache.put(msg.getItemId(), msg.getVector());
+    }
+  }
+
+  // **********************************************************************
+  // solve
+  // **********************************************************************
+  // Solves all rows of factors against the cached factors of the other side
+  private void solve(final FactorStore factors, final int[] pointers,
+      final int[] indices, final double[] ratings, final FactorStore cache)
+      throws IOException, InterruptedException {
+
+    if (m_threads <= 1) {
+      solveRows(factors, pointers, indices, ratings, cache, 0, factors.size());
+      return;
+    }
+
+    // the threads take chunks of rows, which balances rows with many ratings
+    final AtomicInteger nextRow = new AtomicInteger(0);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(m_threads);
+    for (int t = 0; t < m_threads; t++) {
+      futures.add(m_executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          int start;
+          while ((start = nextRow.getAndAdd(ROW_CHUNK_SIZE)) < factors.size()) {
+            solveRows(factors, pointers, indices, ratings, cache, start,
+                Math.min(start + ROW_CHUNK_SIZE, factors.size()));
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw new IOException("ALS thread failed!", e.getCause());
+      }
+    }
+  }
+
+  // minimizes sum (r - x * y)^2 + lambda * n * |x|^2 over the n ratings of
+  // each row x in [start, end) by the normal equations
+  // (sum y * y^T + lambda * n * I) x = sum r * y
+  private void solveRows(FactorStore factors, int[] pointers, int[] indices,
+      double[] ratings, FactorStore cache, int start, int end) {
+    final int rank = m_matrixRank;
+    final double[] x = factors.getFactors();
+    final double[] y = cache.getFactors();
+    final double[] a = new double[rank * rank];
+    final double[] b = new double[rank];
+
+    for (int row = start; row < end; row++) {
+      Arrays.fill(a, 0);
+      Arrays.fill(b, 0);
+      // lower triangle of sum y * y^T
+      for (int p = pointers[row]; p < pointers[row + 1]; p++) {
+        final int offset = indices[p] * rank;
+        for (int r = 0; r < rank; r++) {
+          final double yr = y[offset + r];
+          for (int c = 0; c <= r; c++) {
+            a[r * rank + c] += yr * y[offset + c];
+          }
+          b[r] += ratings[p] * yr;
+        }
+      }
+      final double regularization = m_lambda
+          * (pointers[row + 1] - pointers[row]);
+      for (int r = 0; r < rank; r++) {
+        a[r * rank + r] += regularization;
+      }
+
+      // keep the old factors if the equations are singular (lambda = 0)
+      if (solveCholesky(a, b, rank)) {
+        System.arraycopy(b, 0, x, row * rank, rank);
+      }
+    }
+  }
+
+  /**
+   * Solves a * x = b in place for a symmetric positive definite matrix a,
+   * only the lower triangle of a (n x n, row-major) is used. a is overwritten
+   * by its Cholesky factor and b by x.
+   *
+   * @return false if a is not positive definite
+   */
+  static boolean solveCholesky(double[] a, double[] b, int n) {
+    // a = L * L^T
+    for (int j = 0; j < n; j++) {
+      double d = a[j * n + j];
+      for (int k = 0; k < j; k++) {
+        d -= a[j * n + k] * a[j * n + k];
+      }
+      if (d <= 0) {
+        return false;
+      }
+      d = Math.sqrt(d);
+      a[j * n + j] = d;
+      for (int i = j + 1; i < n; i++) {
+        double s = a[i * n + j];
+        for (int k = 0; k < j; k++) {
+          s -= a[i * n + k] * a[j * n + k];
+        }
+        a[i * n + j] = s / d;
+      }
+    }
+    // L * z = b
+    for (int i = 0; i < n; i++) {
+      double s = b[i];
+      for (int k = 0; k < i; k++) {
+        s -= a[i * n + k] * b[k];
+      }
+      b[i] = s / a[i * n + i];
+    }
+    // L^T * x = z
+    for (int i = n - 1; i >= 0; i--) {
+      double s = b[i];
+      for (int k = i + 1; k < n; k++) {
+        s -= a[k * n + i] * b[k];
+      }
+      b[i] = s / a[i * n + i];
+    }
+    return true;
+  }
+
+  // **********************************************************************
+  // createOnlineCFTrainALSBSPConf
+  // **********************************************************************
+  public static BSPJob createOnlineCFTrainALSBSPConf(Configuration conf,
+      Path inPath, Path outPath) throws IOException {
+
+    if (conf.getInt(OnlineCF.CONF_MATRIX_RANK, -1) == -1) {
+      conf.setInt(OnlineCF.CONF_MATRIX_RANK, OnlineCF.DFLT_MATRIX_RANK);
+    }
+
+    if (conf.getInt(OnlineCF.CONF_ITERATION_COUNT, -1) == -1) {
+      conf.setInt(OnlineCF.CONF_ITERATION_COUNT,
+          OnlineCF.DFLT_ALS_ITERATION_COUNT);
+    }
+
+    BSPJob job = new BSPJob(new HamaConfiguration(conf),
+        OnlineCFTrainALSBSP.class);
+    // Set the job name
+    job.setJobName("Collaborative Filtering ALS");
+    // set the BSP class which shall be executed
+    job.setBspClass(OnlineCFTrainALSBSP.class);
+    // help Hama to locale the jar to be distributed
+    job.setJarByClass(OnlineCFTrainALSBSP.class);
+
+    job.setInputPath(inPath);
+    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setInputKeyClass(LongWritable.class);
+    job.setInputValueClass(PipesVectorWritable.class);
+
+    job.setOutputPath(outPath);
+    job.setOutputFormat(SequenceFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(PipesVectorWritable.class);
+
+    job.setMessageClass(ItemMessage.class);
+
+    return job;
+  }
+
+}
@@ -23,18 +23,20 @@ import java.io.IOException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -60,16 +62,16 @@ import org.apache.hama.bsp.SequenceFileOutputFormat;
 import org.apache.hama.bsp.gpu.HybridBSP;
 import org.apache.hama.bsp.sync.SyncException;
 import org.apache.hama.commons.io.PipesVectorWritable;
-import org.apache.hama.commons.io.VectorWritable;
 import org.apache.hama.commons.math.DenseDoubleVector;
 import org.apache.hama.commons.math.DoubleVector;
 import org.apache.hama.ml.recommendation.Preference;
 import org.trifort.rootbeer.runtime.Context;
 import org.trifort.rootbeer.runtime.Rootbeer;
 import org.trifort.rootbeer.runtime.StatsRow;
-import org.trifort.rootbeer.runtime.ThreadConfig;
 import org.trifort.rootbeer.runtime.util.Stopwatch;
 
+import at.illecker.hama.hybrid.examples.util.emulator.KernelRunner;
+
 public class OnlineCFTrainHybridBSP
     extends
     HybridBSP<LongWritable, PipesVectorWritable, Text, PipesVectorWritable, ItemMessage> {
@@ -86,6 +88,14 @@ public class OnlineCFTrainHybridBSP
   public static final String CONF_BLOCKSIZE = "onlinecf.hybrid.blockSize";
   public static final String CONF_GRIDSIZE = "onlinecf.hybrid.gridSize";
   public static final String CONF_DEBUG = "onlinecf.is.debugging";
+  // ItemMessage encoding: binary (default), float or text (legacy)
+  public static final String CONF_MESSAGE_ENCODING = "onlinecf.hybrid.message.encoding";
+  // number of threads running the SGD of each CPU task without locking
+  // (Hogwild!), 1 = deterministic
+  public static final String CONF_THREADS = "onlinecf.hybrid.threads";
+  // stratified distributed SGD (DSGD): the users are partitioned and the
+  // item blocks rotate between the CPU tasks instead of averaging copies
+  public static final String CONF_DSGD = "onlinecf.hybrid.dsgd";
 
   // gridSize = amount of blocks and multiprocessors
   public static final int GRID_SIZE = 14;
@@ -112,18 +122,24 @@ public class OnlineCFTrainHybridBSP
   private int m_skipCount = 0;
 
   // Input Preferences
-  private ArrayList<Preference<Long, Long>> m_preferences = new ArrayList<Preference<Long, Long>>();
-  private ArrayList<Integer> m_indexes = new ArrayList<Integer>();
+  // rows of m_usersMatrix and m_itemsMatrix, ratings and training order
+  private PreferenceStore m_preferences = new PreferenceStore();
 
   // Randomly generated depending on matrix rank,
   // will be computed runtime and represents trained model
   // userId, factorized value
-  private HashMap<Long, PipesVectorWritable> m_usersMatrix = new HashMap<Long, PipesVectorWritable>();
+  private FactorStore m_usersMatrix;
   // itemId, factorized value
-  private HashMap<Long, PipesVectorWritable> m_itemsMatrix = new HashMap<Long, PipesVectorWritable>();
+  private FactorStore m_itemsMatrix;
 
   private Random m_rand = new Random(32L);
 
+  private int m_threads;
+  private ExecutorService m_executor = null;
+
+  private boolean m_isStratified;
+  private ItemMessage.Encoding m_encoding;
+
   /********************************* CPU *********************************/
   // **********************************************************************
   // setup
@@ -147,6 +163,30 @@ public class OnlineCFTrainHybridBSP
     this.m_skipCount = m_conf.getInt(OnlineCF.CONF_SKIP_COUNT,
         OnlineCF.DFLT_SKIP_COUNT);
 
+    this.m_usersMatrix = new FactorStore(m_matrixRank);
+    this.m_itemsMatrix = new FactorStore(m_matrixRank);
+
+    this.m_encoding = ItemMessage.parseEncoding(m_conf
+        .get(CONF_MESSAGE_ENCODING));
+
+    this.m_isStratified = m_conf.getBoolean(CONF_DSGD, false);
+
+    this.m_threads = m_conf.getInt(CONF_THREADS, 1);
+    if (m_threads > 1) {
+      m_executor = Executors.newFixedThreadPool(m_threads, new ThreadFactory() {
+        private int m_threadCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "OnlineCFTrainHybridBSP-sgd-"
+              + (m_threadCount++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      LOG.info("Run SGD using " + m_threads + " threads");
+    }
+
     // Init logging
     if (m_isDebuggingEnabled) {
       try {
@@ -175,11 +215,15 @@ public class OnlineCFTrainHybridBSP
     long startTime = System.currentTimeMillis();
 
     // Fetch inputs
-    collectInput(peer);
+    if (m_isStratified) {
+      collectStratifiedInput(peer);
+    } else {
+      collectInput(peer);
+
+      // Sync tasks after input has been collected
+      peer.sync();
+    }
 
-    // Sync tasks after input has been collected
-    peer.sync();
-    
     // DEBUG
     if (m_isDebuggingEnabled) {
       m_logger.writeChars("collected: " + this.m_usersMatrix.size()
@@ -188,61 +232,77 @@ public class OnlineCFTrainHybridBSP
 
       m_logger.writeChars("preferences: length: " + this.m_preferences.size()
           + "\n");
-      for (Preference<Long, Long> p : this.m_preferences) {
-        m_logger.writeChars("userId: '" + p.getUserId() + "' itemId: '"
-            + p.getItemId() + "' value: '" + p.getValue().get() + "'\n");
+      for (int i = 0; i < this.m_preferences.size(); i++) {
+        m_logger.writeChars("userId: '"
+            + m_usersMatrix.getId(m_preferences.getUserRow(i))
+            + "' itemId: '"
+            + m_itemsMatrix.getId(m_preferences.getItemRow(i)) + "' value: '"
+            + m_preferences.getRating(i) + "'\n");
       }
-      m_logger.writeChars("indexes: length: " + this.m_indexes.size()
-          + " indexes: " + Arrays.toString(this.m_indexes.toArray()) + "\n");
 
       m_logger.writeChars("usersMatrix: length: " + this.m_usersMatrix.size()
           + "\n");
-      for (Map.Entry<Long, PipesVectorWritable> e : this.m_usersMatrix
-          .entrySet()) {
-        m_logger.writeChars("key: '" + e.getKey() + "' value: '"
-            + e.getValue().toString() + "'\n");
+      for (int i = 0; i < this.m_usersMatrix.size(); i++) {
+        m_logger.writeChars("key: '" + m_usersMatrix.getId(i) + "' value: '"
+            + m_usersMatrix.getVector(i) + "'\n");
       }
       m_logger.writeChars("itemsMatrix: length: " + this.m_itemsMatrix.size()
           + "\n");
-      for (Map.Entry<Long, PipesVectorWritable> e : this.m_itemsMatrix
-          .entrySet()) {
-        m_logger.writeChars("key: '" + e.getKey() + "' value: '"
-            + e.getValue().toString() + "'\n");
+      for (int i = 0; i < this.m_itemsMatrix.size(); i++) {
+        m_logger.writeChars("key: '" + m_itemsMatrix.getId(i) + "' value: '"
+            + m_itemsMatrix.getVector(i) + "'\n");
       }
     }
 
     // calculation steps
-    for (int i = 0; i < m_maxIterations; i++) {
+    if (m_isStratified) {
+      computeStratified(peer);
+    } else {
+      for (int i = 0; i < m_maxIterations; i++) {
 
-      computeAllValues();
+        computeAllValues(0, m_preferences.size());
 
-      if ((i + 1) % m_skipCount == 0) {
-        normalizeWithBroadcastingValues(peer);
+        if ((i + 1) % m_skipCount == 0) {
+          normalizeWithBroadcastingValues(peer);
+        }
       }
     }
+    if (m_executor != null) {
+      m_executor.shutdown();
+    }
 
     // save users
     if (m_isDebuggingEnabled) {
       m_logger.writeChars("saving " + m_usersMatrix.size() + " users\n");
     }
-    for (Map.Entry<Long, PipesVectorWritable> user : m_usersMatrix.entrySet()) {
+    for (int i = 0; i < m_usersMatrix.size(); i++) {
+      DoubleVector vector = m_usersMatrix.getVector(i);
       if (m_isDebuggingEnabled) {
-        m_logger.writeChars("user: " + user.getKey() + " vector: "
-            + user.getValue().getVector() + "\n");
+        m_logger.writeChars("user: " + m_usersMatrix.getId(i) + " vector: "
+            + vector + "\n");
       }
-      peer.write(new Text("u" + user.getKey()), user.getValue());
+      peer.write(new Text("u" + m_usersMatrix.getId(i)),
+          new PipesVectorWritable(vector));
     }
     // save items
     // TODO duplicated item saves, but one item may belong to one task only
     if (m_isDebuggingEnabled) {
       m_logger.writeChars("saving " + m_itemsMatrix.size() + " items\n");
     }
-    for (Map.Entry<Long, PipesVectorWritable> item : m_itemsMatrix.entrySet()) {
+    for (int i = 0; i < m_itemsMatrix.size(); i++) {
+      // DSGD ends with each task holding its own item block
+      if (m_isStratified
+          && getPartition(m_itemsMatrix.getId(i), peer.getNumPeers()) != peer
+              .getPeerIndex()) {
+        continue;
+      }
+      DoubleVector vector = m_itemsMatrix.getVector(i);
       if (m_isDebuggingEnabled) {
-        m_logger.writeChars("item: " + item.getKey() + " vector: "
-            + item.getValue().getVector() + "\n");
+        m_logger.writeChars("item: " + m_itemsMatrix.getId(i) + " vector: "
+            + vector + "\n");
       }
-      peer.write(new Text("i" + item.getKey()), item.getValue());
+      peer.write(new Text("i" + m_itemsMatrix.getId(i)),
+          new PipesVectorWritable(vector));
     }
 
     this.m_bspTimeCpu = System.currentTimeMillis() - startTime;
@@ -278,79 +338,182 @@ public class OnlineCFTrainHybridBSP
 
     LongWritable key = new LongWritable();
     PipesVectorWritable value = new PipesVectorWritable();
-    int counter = 0;
 
     while (peer.readNext(key, value)) {
-      long actualId = key.get();
+      addPreference(key.get(), value.getVector());
+    }
+    m_preferences.trimToSize();
+  }
 
-      // parse as <k:userId, v:(itemId, score)>
-      long itemId = (long) value.getVector().get(0);
-      double score = value.getVector().get(1);
+  // **********************************************************************
+  // collectStratifiedInput
+  // **********************************************************************
+  // Sends each preference to the task owning its user, the preference is
+  // sent as ItemMessage(senderId, userId, (itemId, score)) like the input
+  private void collectStratifiedInput(
+      BSPPeer<LongWritable, PipesVectorWritable, Text, PipesVectorWritable, ItemMessage> peer)
+      throws IOException, SyncException, InterruptedException {
 
-      if (m_usersMatrix.containsKey(actualId) == false) {
-        DenseDoubleVector vals = new DenseDoubleVector(m_matrixRank);
-        for (int i = 0; i < m_matrixRank; i++) {
-          vals.set(i, m_rand.nextDouble());
-        }
-        m_usersMatrix.put(actualId, new PipesVectorWritable(vals));
-      }
+    int peerCount = peer.getNumPeers();
+    int peerId = peer.getPeerIndex();
+    String[] allPeerNames = peer.getAllPeerNames();
 
-      if (m_itemsMatrix.containsKey(itemId) == false) {
-        DenseDoubleVector vals = new DenseDoubleVector(m_matrixRank);
-        for (int i = 0; i < m_matrixRank; i++) {
-          vals.set(i, m_rand.nextDouble());
-        }
-        m_itemsMatrix.put(itemId, new PipesVectorWritable(vals));
+    LongWritable key = new LongWritable();
+    PipesVectorWritable value = new PipesVectorWritable();
+
+    while (peer.readNext(key, value)) {
+      long userId = key.get();
+      int toPeerId = getPartition(userId, peerCount);
+      if (toPeerId == peerId) {
+        addPreference(userId, value.getVector());
+      } else {
+        // item ids must not be rounded to float32
+        peer.send(allPeerNames[toPeerId], new ItemMessage(peerId, userId,
+            value.getVector().deepCopy(), ItemMessage.Encoding.DOUBLE));
       }
-      m_preferences.add(new Preference<Long, Long>(actualId, itemId, score));
-      m_indexes.add(counter);
-      counter++;
     }
+    peer.sync();
+
+    ItemMessage msg;
+    while ((msg = peer.getCurrentMessage()) != null) {
+      addPreference(msg.getItemId(), msg.getVector());
+    }
+    m_preferences.trimToSize();
+  }
+
+  // parse as <k:userId, v:(itemId, score)>
+  private void addPreference(long userId, DoubleVector value) {
+    long itemId = (long) value.get(0);
+    double score = value.get(1);
+
+    int userRow = m_usersMatrix.add(userId, m_rand);
+    int itemRow = m_itemsMatrix.add(itemId, m_rand);
+
+    m_preferences.add(userRow, itemRow, score);
+  }
+
+  // non-negative Long.hashCode modulo peerCount
+  static int getPartition(long id, int peerCount) {
+    return (((int) (id ^ (id >>> 32))) & Integer.MAX_VALUE) % peerCount;
   }
 
   // **********************************************************************
   // computeAllValues
   // **********************************************************************
-  private void computeAllValues() throws IOException {
+  // SGD over the preferences [start, end) of the training order
+  private void computeAllValues(int start, int end) throws IOException,
+      InterruptedException {
     // shuffling indexes
-    int idx = 0;
-    int idxValue = 0;
-    int tmp = 0;
-    for (int i = m_indexes.size(); i > 0; i--) {
-      idx = Math.abs(m_rand.nextInt()) % i;
-      idxValue = m_indexes.get(idx);
-      tmp = m_indexes.get(i - 1);
-      m_indexes.set(i - 1, idxValue);
-      m_indexes.set(idx, tmp);
+    m_preferences.shuffle(m_rand, start, end);
+
+    if (m_threads <= 1) {
+      computeValues(start, end);
+      return;
     }
 
-    // compute values
-    for (Integer prefIdx : m_indexes) {
-      Preference<Long, Long> pref = m_preferences.get(prefIdx);
-      DoubleVector alpha = m_usersMatrix.get(pref.getUserId()).getVector();
-      DoubleVector beta = m_itemsMatrix.get(pref.getItemId()).getVector();
+    // each thread runs over a range of the shuffled preferences and updates
+    // the shared factors without locking, collisions are rare for sparse
+    // ratings and only lose single updates
+    final int prefCount = end - start;
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(m_threads);
+    for (int t = 0; t < m_threads; t++) {
+      final int rangeStart = start + (int) (((long) prefCount * t) / m_threads);
+      final int rangeEnd = start
+          + (int) (((long) prefCount * (t + 1)) / m_threads);
+      futures.add(m_executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          computeValues(rangeStart, rangeEnd);
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw new IOException("SGD thread failed!", e.getCause());
+      }
+    }
+  }
+
+  // SGD over the preferences [start, end) of the shuffled order
+  private void computeValues(int start, int end) {
+    // compute values, the factors are updated in place
+    final double[] users = m_usersMatrix.getFactors();
+    final double[] items = m_itemsMatrix.getFactors();
+    for (int p = start; p < end; p++) {
+      final int pref = m_preferences.get(p);
+      final int alpha = m_preferences.getUserRow(pref) * m_matrixRank;
+      final int beta = m_preferences.getItemRow(pref) * m_matrixRank;
 
       // calculated score
-      double calculatedScore = alpha.multiply(beta).sum();
-      double expectedScore = pref.getValue().get();
+      double calculatedScore = 0;
+      for (int i = 0; i < m_matrixRank; i++) {
+        calculatedScore += users[alpha + i] * items[beta + i];
+      }
+      double expectedScore = m_preferences.getRating(pref);
       double loss = expectedScore - calculatedScore;
       // DEBUG
       // m_logger.writeChars("expectedScore: " + expectedScore
       // + " calculatedScore: " + calculatedScore + " loss: " + loss + "\n");
 
-      // update A
-      DoubleVector newAlpha = alpha.add(beta.multiply(2 * ALPHA * loss));
-      // DEBUG
-      // m_logger.writeChars("UPDATE alpa: " + newBeta.toString() + "\n");
-      m_usersMatrix.put(pref.getUserId(), new PipesVectorWritable(
-          new VectorWritable(newAlpha)));
+      // update A and B, both with the old values
+      final double step = 2 * ALPHA * loss;
+      for (int i = 0; i < m_matrixRank; i++) {
+        final double a = users[alpha + i];
+        final double b = items[beta + i];
+        users[alpha + i] = a + b * step;
+        items[beta + i] = b + a * step;
+      }
+    }
+  }
 
-      // update B
-      DoubleVector newBeta = beta.add(alpha.multiply(2 * ALPHA * loss));
-      // DEBUG
-      // m_logger.writeChars("UPDATE beta: " + newBeta.toString() + "\n");
-      m_itemsMatrix.put(pref.getItemId(), new PipesVectorWritable(
-          new VectorWritable(newBeta)));
+  // **********************************************************************
+  // computeStratified (DSGD)
+  // **********************************************************************
+  // The items are split into one block per task. In sub-epoch s task p
+  // trains its users against item block (p + s) % P, which no other task
+  // holds at the same time, and passes the block on to task p - 1. After P
+  // sub-epochs every preference has been trained once and each task holds
+  // its own item block again. Items a task sees before their block reaches
+  // it keep their first initialization.
+  private void computeStratified(
+      BSPPeer<LongWritable, PipesVectorWritable, Text, PipesVectorWritable, ItemMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    int peerCount = peer.getNumPeers();
+    int peerId = peer.getPeerIndex();
+    String toPeer = peer.getPeerName((peerId + peerCount - 1) % peerCount);
+
+    int[] itemBlocks = new int[m_itemsMatrix.size()];
+    for (int i = 0; i < itemBlocks.length; i++) {
+      itemBlocks[i] = getPartition(m_itemsMatrix.getId(i), peerCount);
+    }
+    int[] blockStarts = m_preferences.groupByItem(itemBlocks, peerCount);
+
+    for (int i = 0; i < m_maxIterations; i++) {
+      for (int s = 0; s < peerCount; s++) {
+        int block = (peerId + s) % peerCount;
+        computeAllValues(blockStarts[block], blockStarts[block + 1]);
+
+        if (peerCount > 1) {
+          // rotate the item block
+          for (int row = 0; row < m_itemsMatrix.size(); row++) {
+            long itemId = m_itemsMatrix.getId(row);
+            if (getPartition(itemId, peerCount) == block) {
+              peer.send(toPeer, new ItemMessage(peerId, itemId,
+                  m_itemsMatrix.getVector(row), m_encoding));
+            }
+          }
+          peer.sync();
+
+          ItemMessage msg;
+          while ((msg = peer.getCurrentMessage()) != null) {
+            m_itemsMatrix.put(msg.getItemId(), msg.getVector());
+          }
+        }
+      }
     }
   }
 
@@ -376,22 +539,24 @@ public class OnlineCFTrainHybridBSP
 
       // Step 1)
       // send item matrices to selected peers
-      for (Map.Entry<Long, PipesVectorWritable> item : m_itemsMatrix.entrySet()) {
+      for (int i = 0; i < m_itemsMatrix.size(); i++) {
+        long itemId = m_itemsMatrix.getId(i);
 
-        int toPeerId = item.getKey().hashCode() % peerCount;
+        // Long.hashCode
+        int toPeerId = ((int) (itemId ^ (itemId >>> 32))) % peerCount;
         // don't send item to itself
         if (toPeerId != peerId) {
-          // m_logger.writeChars("sendItem itemId: " + item.getKey()
+          // m_logger.writeChars("sendItem itemId: " + itemId
           // + " toPeerId: " + toPeerId + " value: "
-          // + item.getValue().getVector() + "\n");
+          // + m_itemsMatrix.getVector(i) + "\n");
 
-          peer.send(allPeerNames[toPeerId], new ItemMessage(peerId, item
-              .getKey().longValue(), item.getValue().getVector()));
+          peer.send(allPeerNames[toPeerId], new ItemMessage(peerId, itemId,
+              m_itemsMatrix.getVector(i), m_encoding));
 
         } else {
-          normalizedValues.put(item.getKey(), item.getValue().getVector());
-          normalizedValueCount.put(item.getKey(), 1);
-          senderList.put(item.getKey(), new LinkedList<Integer>());
+          normalizedValues.put(itemId, m_itemsMatrix.getVector(i));
+          normalizedValueCount.put(itemId, 1);
+          senderList.put(itemId, new LinkedList<Integer>());
         }
       }
       peer.sync();
@@ -428,7 +593,7 @@ public class OnlineCFTrainHybridBSP
       // Step 4)
       // send back normalized values to senders
       for (Map.Entry<Long, DoubleVector> e : normalizedValues.entrySet()) {
-        msg = new ItemMessage(peerId, e.getKey(), e.getValue());
+        msg = new ItemMessage(peerId, e.getKey(), e.getValue(), m_encoding);
 
         // send to interested peers
         Iterator<Integer> iter = senderList.get(e.getKey()).iterator();
@@ -440,7 +605,7 @@ public class OnlineCFTrainHybridBSP
         }
 
         // update items matrix
-        m_itemsMatrix.put(e.getKey(), new PipesVectorWritable(e.getValue()));
+        m_itemsMatrix.put(e.getKey(), e.getValue());
         // m_logger.writeChars("updateItems itemId: " + e.getKey() + " value: "
         // + e.getValue() + "\n");
       }
@@ -452,8 +617,7 @@ public class OnlineCFTrainHybridBSP
         // m_logger.writeChars("updateItems itemId: " + msg.getItemId()
         // + " fromPeerId: " + msg.getSenderId() + " value: "
         // + msg.getVector() + "\n");
-        m_itemsMatrix.put(msg.getItemId(),
-            new PipesVectorWritable(msg.getVector()));
+        m_itemsMatrix.put(msg.getItemId(), msg.getVector());
       }
 
     }
@@ -482,6 +646,17 @@ public class OnlineCFTrainHybridBSP
     this.m_skipCount = m_conf.getInt(OnlineCF.CONF_SKIP_COUNT,
         OnlineCF.DFLT_SKIP_COUNT);
 
+    this.m_usersMatrix = new FactorStore(m_matrixRank);
+    this.m_itemsMatrix = new FactorStore(m_matrixRank);
+
+    // The kernel sends and parses the text encoding, the received messages
+    // of the kernel are written as TEXT by the pipes forwarder.
+
+    // the kernel averages the items of all tasks
+    if (m_conf.getBoolean(CONF_DSGD, false)) {
+      throw new IOException(CONF_DSGD + " is not supported by GPU tasks!");
+    }
+
     this.m_blockSize = Integer.parseInt(this.m_conf.get(CONF_BLOCKSIZE));
     this.m_gridSize = Integer.parseInt(this.m_conf.get(CONF_GRIDSIZE));
 
@@ -516,13 +691,8 @@ public class OnlineCFTrainHybridBSP
     // **********************************************************************
     // Collect inputs
     // **********************************************************************
-    Map<Long, HashMap<Long, Double>> preferencesMap = new HashMap<Long, HashMap<Long, Double>>();
-    Map<Long, Long> userRatingCount = new HashMap<Long, Long>();
-    Map<Long, Long> itemRatingCount = new HashMap<Long, Long>();
-
     LongWritable key = new LongWritable();
     PipesVectorWritable value = new PipesVectorWritable();
-    int counter = 0;
 
     while (peer.readNext(key, value)) {
       // parse as <k:userId, v:(itemId, score)>
@@ -530,44 +700,12 @@ public class OnlineCFTrainHybridBSP
       long itemId = (long) value.getVector().get(0);
       double score = value.getVector().get(1);
 
-      // Add User vector
-      if (m_usersMatrix.containsKey(userId) == false) {
-        DenseDoubleVector vals = new DenseDoubleVector(m_matrixRank);
-        for (int i = 0; i < m_matrixRank; i++) {
-          vals.set(i, m_rand.nextDouble());
-        }
-        m_usersMatrix.put(userId, new PipesVectorWritable(vals));
-        userRatingCount.put(userId, 1l);
-      } else {
-        userRatingCount.put(userId, userRatingCount.get(userId) + 1);
-      }
-
-      // Add Item vector
-      if (m_itemsMatrix.containsKey(itemId) == false) {
-        DenseDoubleVector vals = new DenseDoubleVector(m_matrixRank);
-        for (int i = 0; i < m_matrixRank; i++) {
-          vals.set(i, m_rand.nextDouble());
-        }
-        m_itemsMatrix.put(itemId, new PipesVectorWritable(vals));
-        itemRatingCount.put(itemId, 1l);
-      } else {
-        itemRatingCount.put(itemId, itemRatingCount.get(itemId) + 1);
-      }
+      // Add User and Item vector
+      int userRow = m_usersMatrix.add(userId, m_rand);
+      int itemRow = m_itemsMatrix.add(itemId, m_rand);
 
       // Add preference
-      m_preferences.add(new Preference<Long, Long>(userId, itemId, score));
-
-      if (preferencesMap.containsKey(userId) == false) {
-        HashMap<Long, Double> map = new HashMap<Long, Double>();
-        map.put(itemId, score);
-        preferencesMap.put(userId, map);
-      } else {
-        preferencesMap.get(userId).put(itemId, score);
-      }
-
-      // Add counter
-      m_indexes.add(counter);
-      counter++;
+      m_preferences.add(userRow, itemRow, score);
     }
 
     // DEBUG
@@ -580,198 +718,83 @@ public class OnlineCFTrainHybridBSP
     // **********************************************************************
     // Prepare input for GPU
     // **********************************************************************
-    Map<Long, Long> sortedUserRatingCount = sortByValues(userRatingCount);
-    Map<Long, Long> sortedItemRatingCount = sortByValues(itemRatingCount);
-
-    // Convert preferences to userItemMatrix double[][]
-    // sortedUserRatingCount.size() x sortedItemRatingCount.size()
-    double[][] userItemMatrix = new double[m_usersMatrix.size()][m_itemsMatrix
-        .size()];
-
-    // Mappers
-    Map<Long, Integer> userItemMatrixUserRowMap = new HashMap<Long, Integer>();
-    GpuIntegerMap userItemMatrixItemColMap = new GpuIntegerMap(
-        m_itemsMatrix.size() + 1); // +1 because we are starting with 0
-    GpuIntegerMap userItemMatrixColItemMap = new GpuIntegerMap(
-        m_itemsMatrix.size() + 1); // +1 because we are starting with 0
-
-    // Create userHelper to int[][]
-    // userHelper[userId][0] = userRatingCount
-    // userHelper[userId][1] = colId of userItemMatrix
-    int[][] userHelper = null;
-    // Create itemHelper to int[][]
-    // itemHelper[itemId][0] = itemRatingCount
-    // itemHelper[userId][1] = rowId of userItemMatrix
-    int[][] itemHelper = null;
-    Map<Long, Integer> itemHelperId = new HashMap<Long, Integer>();
-
-    // Debug
-    if (m_isDebuggingEnabled) {
-      m_logger.writeChars("userItemMatrix: (m x n): " + m_usersMatrix.size()
-          + " x " + m_itemsMatrix.size() + "\n");
+    // Ratings by user (CSR) and by item (CSC)
+    SparseRatingMatrix ratings = new SparseRatingMatrix(m_preferences,
+        m_usersMatrix.size(), m_itemsMatrix.size());
+    // the preferences are not used anymore
+    m_preferences = null;
+
+    // Map item ids to the item rows and back
+    GpuIntegerMap itemColMap = new GpuIntegerMap(m_itemsMatrix.size() + 1);
+    int[] itemIds = new int[m_itemsMatrix.size()];
+    for (int i = 0; i < itemIds.length; i++) {
+      itemIds[i] = (int) m_itemsMatrix.getId(i);
+      itemColMap.put(itemIds[i], i);
     }
 
-    int rowId = 0;
-    for (Long userId : sortedUserRatingCount.keySet()) {
-
-      // Map userId to rowId in userItemMatrixUserRowMap
-      userItemMatrixUserRowMap.put(userId, rowId);
-
-      // Setup userHelper
-      if (userHelper == null) {
-        // TODO sortedUserRatingCount.size()
-        userHelper = new int[m_usersMatrix.size()][sortedUserRatingCount.get(
-            userId).intValue() + 1];
-      }
-      userHelper[rowId][0] = sortedUserRatingCount.get(userId).intValue();
-
-      int colId = 0;
-      int userHelperId = 1;
-      for (Long itemId : sortedItemRatingCount.keySet()) {
-
-        // Map itemId to colId in userItemMatrixItemColMap
-        if (rowId == 0) {
-          userItemMatrixItemColMap.put(itemId.intValue(), colId);
-          userItemMatrixColItemMap.put(colId, itemId.intValue());
-        }
-
-        // Setup itemHelper
-        if (itemHelper == null) {
-          // TODO sortedItemRatingCount.size()
-          itemHelper = new int[m_itemsMatrix.size()][sortedItemRatingCount.get(
-              itemId).intValue() + 1];
-        }
-        itemHelper[colId][0] = sortedItemRatingCount.get(itemId).intValue();
-
-        if (preferencesMap.get(userId).containsKey(itemId)) {
-          // Add userItemMatrix
-          userItemMatrix[rowId][colId] = preferencesMap.get(userId).get(itemId);
-
-          // Add userHelper
-          userHelper[rowId][userHelperId] = colId;
-          userHelperId++;
-
-          // Add itemHelper
-          if (itemHelperId.containsKey(itemId)) {
-            int idx = itemHelperId.get(itemId);
-            itemHelper[colId][idx] = rowId;
-            itemHelperId.put(itemId, idx + 1);
-          } else {
-            itemHelper[colId][1] = rowId;
-            itemHelperId.put(itemId, 2);
-          }
-
-        }
-
-        colId++;
-      }
-
-      // Debug userItemMatrix
-      if (m_isDebuggingEnabled) {
-        m_logger.writeChars("userItemMatrix userId: " + userId + " row["
-            + rowId + "]: " + Arrays.toString(userItemMatrix[rowId])
-            + " userRatings: " + sortedUserRatingCount.get(userId) + "\n");
-      }
-      rowId++;
-    }
-
-    // Debug userHelper and itemHelper
-    if (m_isDebuggingEnabled) {
-      // TODO sortedUserRatingCount.size()
-      for (int i = 0; i < m_usersMatrix.size(); i++) {
-        m_logger.writeChars("userHelper row " + i + ": "
-            + Arrays.toString(userHelper[i]) + "\n");
-      }
-      // TODO sortedItemRatingCount.size()
-      for (int i = 0; i < m_itemsMatrix.size(); i++) {
-        m_logger.writeChars("itemHelper row " + i + ": "
-            + Arrays.toString(itemHelper[i]) + "\n");
-      }
-    }
-
-    // Convert usersMatrix to double[][]
-    double[][] userMatrix = new double[m_usersMatrix.size()][m_matrixRank];
-    rowId = 0;
-    if (m_isDebuggingEnabled) {
-      m_logger.writeChars("userMatrix: length: " + m_usersMatrix.size() + "\n");
-    }
-    for (Long userId : sortedUserRatingCount.keySet()) {
-      DoubleVector vector = m_usersMatrix.get(userId).getVector();
-      for (int i = 0; i < m_matrixRank; i++) {
-        userMatrix[rowId][i] = vector.get(i);
-      }
-      if (m_isDebuggingEnabled) {
-        m_logger.writeChars("userId: " + userId + " "
-            + Arrays.toString(vector.toArray()) + "\n");
-      }
-      rowId++;
-    }
-
-    // Convert itemsMatrix to double[][]
-    double[][] itemMatrix = new double[m_itemsMatrix.size()][m_matrixRank];
-    rowId = 0;
-    GpuIntegerMap counterMap = new GpuIntegerMap(m_itemsMatrix.size());
+    // Debug ratings
     if (m_isDebuggingEnabled) {
-      m_logger.writeChars("itemMatrix: length: " + m_itemsMatrix.size() + "\n");
-    }
-    for (Long itemId : sortedItemRatingCount.keySet()) {
-      counterMap.put(itemId.intValue(), 0);
-
-      DoubleVector vector = m_itemsMatrix.get(itemId).getVector();
-      for (int i = 0; i < m_matrixRank; i++) {
-        itemMatrix[rowId][i] = vector.get(i);
-      }
-      if (m_isDebuggingEnabled) {
-        m_logger.writeChars("itemId: " + itemId + " "
-            + Arrays.toString(vector.toArray()) + "\n");
+      m_logger.writeChars("ratings: " + ratings.getUserCount() + " users x "
+          + ratings.getItemCount() + " items, " + ratings.getRatingCount()
+          + " ratings\n");
+      int[] pointers = ratings.getUserPointers();
+      for (int u = 0; u < ratings.getUserCount(); u++) {
+        m_logger.writeChars("userId: " + m_usersMatrix.getId(u) + " items: "
+            + Arrays.toString(Arrays.copyOfRange(ratings.getUserItems(),
+                pointers[u], pointers[u + 1]))
+            + " ratings: "
+            + Arrays.toString(Arrays.copyOfRange(ratings.getUserRatings(),
+                pointers[u], pointers[u + 1])) + "\n");
       }
-      rowId++;
     }
 
     // Sync tasks after input has been collected
     peer.sync();
-    
+
     // **********************************************************************
     // Run GPU Kernels
     // **********************************************************************
     OnlineCFTrainHybridKernel kernel = new OnlineCFTrainHybridKernel(
-        userItemMatrix, userHelper, itemHelper, userItemMatrixItemColMap,
-        userItemMatrixColItemMap, userMatrix, itemMatrix, m_usersMatrix.size(),
-        m_itemsMatrix.size(), ALPHA, m_matrixRank, m_maxIterations, counterMap,
-        m_skipCount, peer.getNumPeers(), peer.getPeerIndex(),
-        peer.getAllPeerNames());
+        ratings.getUserPointers(), ratings.getUserItems(),
+        ratings.getUserRatings(), ratings.getItemPointers(),
+        ratings.getItemUsers(), ratings.getItemRatings(),
+        ratings.getUserOrder(), ratings.getItemOrder(), itemColMap, itemIds,
+        m_usersMatrix.getFactors(), m_itemsMatrix.getFactors(),
+        m_usersMatrix.size(), m_itemsMatrix.size(), ALPHA, m_matrixRank,
+        m_maxIterations, m_skipCount, peer.getNumPeers(),
+        peer.getPeerIndex(), peer.getAllPeerNames());
 
-    Context context = rootbeer.createDefaultContext();
     Stopwatch watch = new Stopwatch();
     watch.start();
-    rootbeer.run(kernel, new ThreadConfig(m_blockSize, m_gridSize, m_blockSize
-        * m_gridSize), context);
+    Context context = KernelRunner.run(peer, rootbeer, kernel, m_blockSize,
+        m_gridSize, true);
     watch.stop();
 
     // **********************************************************************
     // Save Model
     // **********************************************************************
     // save users
-    for (Entry<Long, Integer> userMap : userItemMatrixUserRowMap.entrySet()) {
+    for (int u = 0; u < m_usersMatrix.size(); u++) {
+      double[] vector = Arrays.copyOfRange(kernel.m_usersMatrix, u
+          * m_matrixRank, (u + 1) * m_matrixRank);
       if (m_isDebuggingEnabled) {
-        m_logger.writeChars("user: " + userMap.getKey() + " vector: "
-            + Arrays.toString(kernel.m_usersMatrix[userMap.getValue()]) + "\n");
+        m_logger.writeChars("user: " + m_usersMatrix.getId(u) + " vector: "
+            + Arrays.toString(vector) + "\n");
       }
-      peer.write(new Text("u" + userMap.getKey()), new PipesVectorWritable(
-          new DenseDoubleVector(kernel.m_usersMatrix[userMap.getValue()])));
+      peer.write(new Text("u" + m_usersMatrix.getId(u)),
+          new PipesVectorWritable(new DenseDoubleVector(vector)));
     }
     // TODO duplicated item saves, but one item may belong to one task only
     // save items
-    for (GpuIntIntPair itemMap : userItemMatrixItemColMap.getList()) {
-      if (itemMap != null) {
-        if (m_isDebuggingEnabled) {
-          m_logger.writeChars("item: " + itemMap.getKey() + " vector: "
-              + Arrays.toString(kernel.m_itemsMatrix[itemMap.getValue()])
-              + "\n");
-        }
-        peer.write(new Text("i" + itemMap.getKey()), new PipesVectorWritable(
-            new DenseDoubleVector(kernel.m_itemsMatrix[itemMap.getValue()])));
+    for (int i = 0; i < m_itemsMatrix.size(); i++) {
+      double[] vector = Arrays.copyOfRange(kernel.m_itemsMatrix, i
+          * m_matrixRank, (i + 1) * m_matrixRank);
+      if (m_isDebuggingEnabled) {
+        m_logger.writeChars("item: " + m_itemsMatrix.getId(i) + " vector: "
+            + Arrays.toString(vector) + "\n");
       }
+      peer.write(new Text("i" + m_itemsMatrix.getId(i)),
+          new PipesVectorWritable(new DenseDoubleVector(vector)));
     }
 
     this.m_bspTimeGpu = System.currentTimeMillis() - startTime;
@@ -792,7 +815,8 @@ public class OnlineCFTrainHybridBSP
       m_logger.writeChars("OnlineCFTrainHybridBSP,bspTimeGpu="
           + (this.m_bspTimeGpu / 1000.0) + " seconds\n");
 
-      List<StatsRow> stats = context.getStats();
+      List<StatsRow> stats = (context != null) ? context.getStats()
+          : new ArrayList<StatsRow>();
       for (StatsRow row : stats) {
         m_logger.writeChars("  StatsRow:\n");
         m_logger.writeChars("    serial time: " + row.getSerializationTime()
@@ -810,7 +834,8 @@ public class OnlineCFTrainHybridBSP
     }
 
     // Logging
-    List<StatsRow> stats = context.getStats();
+    List<StatsRow> stats = (context != null) ? context.getStats()
+        : new ArrayList<StatsRow>();
     for (StatsRow row : stats) {
       LOG.info("  StatsRow:");
       LOG.info("    serial time: " + row.getSerializationTime());
@@ -833,32 +858,6 @@ public class OnlineCFTrainHybridBSP
 
   }
 
-  // **********************************************************************
-  // sortByValues(Map)
-  // **********************************************************************
-  public static <K extends Comparable, V extends Comparable> Map<K, V> sortByValues(
-      Map<K, V> map) {
-
-    List<Map.Entry<K, V>> entries = new LinkedList<Map.Entry<K, V>>(
-        map.entrySet());
-
-    Collections.sort(entries, new Comparator<Map.Entry<K, V>>() {
-      @Override
-      public int compare(Entry<K, V> o1, Entry<K, V> o2) {
-        return o2.getValue().compareTo(o1.getValue());
-      }
-    });
-
-    // LinkedHashMap will keep the keys in the order they are inserted
-    // which is currently sorted on natural ordering
-    Map<K, V> sortedMap = new LinkedHashMap<K, V>();
-    for (Map.Entry<K, V> entry : entries) {
-      sortedMap.put(entry.getKey(), entry.getValue());
-    }
-
-    return sortedMap;
-  }
-
   // **********************************************************************
   // createJobConfiguration
   // **********************************************************************
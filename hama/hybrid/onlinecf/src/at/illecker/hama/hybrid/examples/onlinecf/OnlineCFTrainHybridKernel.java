@@ -28,11 +28,18 @@ import org.trifort.rootbeer.runtime.RootbeerGpu;
  * 
  */
 public class OnlineCFTrainHybridKernel implements Kernel {
-  private double[][] m_userItemMatrix;
-  private int[][] m_userHelper;
-  private int[][] m_itemHelper;
-  public double[][] m_usersMatrix;
-  public double[][] m_itemsMatrix;
+  // ratings by user (CSR) and by item (CSC), see SparseRatingMatrix
+  private int[] m_userPointers;
+  private int[] m_userItems;
+  private double[] m_userRatings;
+  private int[] m_itemPointers;
+  private int[] m_itemUsers;
+  private double[] m_itemRatings;
+  private int[] m_userOrder;
+  private int[] m_itemOrder;
+  // factors row-major, row r starts at r * m_matrixRank
+  public double[] m_usersMatrix;
+  public double[] m_itemsMatrix;
   private int m_N;
   private int m_M;
   private double m_ALPHA;
@@ -44,23 +51,29 @@ public class OnlineCFTrainHybridKernel implements Kernel {
   private int m_peerId = 0;
   private String[] m_allPeerNames;
 
-  private GpuIntegerMap m_counterMap;
+  private int[] m_counters;
   private GpuIntegerListMap m_senderMap;
 
   private GpuIntegerMap m_itemColMap;
-  private GpuIntegerMap m_colItemMap;
-
-  public OnlineCFTrainHybridKernel(double[][] userItemMatrix,
-      int[][] userHelper, int[][] itemHelper, GpuIntegerMap itemColMap,
-      GpuIntegerMap colItemMap, double[][] usersMatrix, double[][] itemsMatrix,
-      int n, int m, double alpha, int matrixRank, int maxIterations,
-      GpuIntegerMap counterMap, int skipCount, int peerCount, int peerId,
+  private int[] m_itemIds;
+
+  public OnlineCFTrainHybridKernel(int[] userPointers, int[] userItems,
+      double[] userRatings, int[] itemPointers, int[] itemUsers,
+      double[] itemRatings, int[] userOrder, int[] itemOrder,
+      GpuIntegerMap itemColMap, int[] itemIds, double[] usersMatrix,
+      double[] itemsMatrix, int n, int m, double alpha, int matrixRank,
+      int maxIterations, int skipCount, int peerCount, int peerId,
       String[] allPeerNames) {
-    this.m_userItemMatrix = userItemMatrix;
-    this.m_userHelper = userHelper;
-    this.m_itemHelper = itemHelper;
+    this.m_userPointers = userPointers;
+    this.m_userItems = userItems;
+    this.m_userRatings = userRatings;
+    this.m_itemPointers = itemPointers;
+    this.m_itemUsers = itemUsers;
+    this.m_itemRatings = itemRatings;
+    this.m_userOrder = userOrder;
+    this.m_itemOrder = itemOrder;
     this.m_itemColMap = itemColMap;
-    this.m_colItemMap = colItemMap;
+    this.m_itemIds = itemIds;
     this.m_usersMatrix = usersMatrix;
     this.m_itemsMatrix = itemsMatrix;
     this.m_N = n;
@@ -72,8 +85,8 @@ public class OnlineCFTrainHybridKernel implements Kernel {
     this.m_peerCount = peerCount;
     this.m_peerId = peerId;
     this.m_allPeerNames = allPeerNames;
-    this.m_counterMap = counterMap;
-    this.m_senderMap = new GpuIntegerListMap(m_M);
+    this.m_counters = new int[m];
+    this.m_senderMap = new GpuIntegerListMap(m);
   }
 
   public void gpuMethod() {
@@ -115,19 +128,23 @@ public class OnlineCFTrainHybridKernel implements Kernel {
       // Loop over all usersPerBlock
       for (int u = 0; u < usersPerBlock; u++) {
 
-        int userId = (gridSize * u) + block_idxx;
-        if (userId < m_N) {
+        int userIdxx = (gridSize * u) + block_idxx;
+        if (userIdxx < m_N) {
+
+          // Users are ordered by rating count to balance the blocks
+          int userId = m_userOrder[userIdxx];
+          int userOffset = userId * m_matrixRank;
 
           // Each user loops over all items which have a rating
-          for (int itemIdxx = 1; itemIdxx <= m_userHelper[userId][0]; itemIdxx++) {
+          for (int pos = m_userPointers[userId]; pos < m_userPointers[userId + 1]; pos++) {
 
-            int itemId = m_userHelper[userId][itemIdxx];
+            int itemOffset = m_userItems[pos] * m_matrixRank;
 
             // Each thread within a block computes one multiplication
             if (thread_idxx < m_matrixRank) {
               RootbeerGpu.setSharedDouble(shmMultVectorStartPos + thread_idxx
-                  * 8, m_usersMatrix[userId][thread_idxx]
-                  * m_itemsMatrix[itemId][thread_idxx]);
+                  * 8, m_usersMatrix[userOffset + thread_idxx]
+                  * m_itemsMatrix[itemOffset + thread_idxx]);
             }
 
             // Sync all threads within a block
@@ -155,10 +172,11 @@ public class OnlineCFTrainHybridKernel implements Kernel {
             // Calculate new userVector
             // Each thread does one update operation of vector u
             if (thread_idxx < m_matrixRank) {
-              m_usersMatrix[userId][thread_idxx] += m_itemsMatrix[itemId][thread_idxx]
+              m_usersMatrix[userOffset + thread_idxx] += m_itemsMatrix[itemOffset
+                  + thread_idxx]
                   * 2
                   * m_ALPHA
-                  * (m_userItemMatrix[userId][itemId] - RootbeerGpu
+                  * (m_userRatings[pos] - RootbeerGpu
                       .getSharedDouble(shmMultVectorStartPos));
             }
 
@@ -167,7 +185,7 @@ public class OnlineCFTrainHybridKernel implements Kernel {
 
           } // loop over all items which have a rating
 
-        } // if userId < m_N
+        } // if userIdxx < m_N
 
       } // loop over all usersPerBlock
 
@@ -180,19 +198,23 @@ public class OnlineCFTrainHybridKernel implements Kernel {
       // Loop over all itemsPerBlock
       for (int v = 0; v < itemsPerBlock; v++) {
 
-        int itemId = (gridSize * v) + block_idxx;
-        if (itemId < m_M) {
+        int itemIdxx = (gridSize * v) + block_idxx;
+        if (itemIdxx < m_M) {
 
-          // Each user loops over all users which have a rating
-          for (int userIdxx = 1; userIdxx <= m_itemHelper[itemId][0]; userIdxx++) {
+          // Items are ordered by rating count to balance the blocks
+          int itemId = m_itemOrder[itemIdxx];
+          int itemOffset = itemId * m_matrixRank;
 
-            int userId = m_itemHelper[itemId][userIdxx];
+          // Each item loops over all users which have a rating
+          for (int pos = m_itemPointers[itemId]; pos < m_itemPointers[itemId + 1]; pos++) {
+
+            int userOffset = m_itemUsers[pos] * m_matrixRank;
 
             // Each thread within a block computes one multiplication
             if (thread_idxx < m_matrixRank) {
               RootbeerGpu.setSharedDouble(shmMultVectorStartPos + thread_idxx
-                  * 8, m_itemsMatrix[itemId][thread_idxx]
-                  * m_usersMatrix[userId][thread_idxx]);
+                  * 8, m_itemsMatrix[itemOffset + thread_idxx]
+                  * m_usersMatrix[userOffset + thread_idxx]);
             }
 
             // Sync all threads within a block
@@ -220,10 +242,11 @@ public class OnlineCFTrainHybridKernel implements Kernel {
             // Calculate new userVector
             // Each thread does one update operation of vector u
             if (thread_idxx < m_matrixRank) {
-              m_itemsMatrix[itemId][thread_idxx] += m_usersMatrix[userId][thread_idxx]
+              m_itemsMatrix[itemOffset + thread_idxx] += m_usersMatrix[userOffset
+                  + thread_idxx]
                   * 2
                   * m_ALPHA
-                  * (m_userItemMatrix[userId][itemId] - RootbeerGpu
+                  * (m_itemRatings[pos] - RootbeerGpu
                       .getSharedDouble(shmMultVectorStartPos));
             }
 
@@ -232,7 +255,7 @@ public class OnlineCFTrainHybridKernel implements Kernel {
 
           } // loop over all users which have a rating
 
-        } // if (itemId < m_M)
+        } // if (itemIdxx < m_M)
 
       } // loop over all itemsPerBlock
 
@@ -242,177 +265,156 @@ public class OnlineCFTrainHybridKernel implements Kernel {
       // **********************************************************************
       // normalizeWithBroadcastingValues
       // **********************************************************************
-      // Only global Thread 0
-      if ((m_peerCount > 1) && ((i + 1) % m_skipCount == 0)
-          && (RootbeerGpu.getThreadId() == 0)) {
+      // All threads take the same branch, the blocks are synchronized within
+      if ((m_peerCount > 1) && ((i + 1) % m_skipCount == 0)) {
 
-        // clear sender map
-        m_senderMap.clear();
+        // Only global Thread 0
+        if (RootbeerGpu.getThreadId() == 0) {
 
-        // Step 1)
-        // send item matrices to selected peers
-        for (int itemId = 0; itemId < m_M; itemId++) {
+          // clear sender map
+          m_senderMap.clear();
 
-          int realItemId = m_colItemMap.get(itemId);
-          int toPeerId = realItemId % m_peerCount;
-          // don't send item to itself
-          if (toPeerId != m_peerId) {
-            // init Counter
-            m_counterMap.put(itemId, 0);
+          // Step 1)
+          // send item matrices to selected peers
+          for (int itemId = 0; itemId < m_M; itemId++) {
 
-            // ItemMessage (senderId,itemId,itemVector)
-            // 0,1,0.622676719363376,0.47894004113535393,0.9099409696184495
-            StringBuilder message = new StringBuilder();
-            message.append(Integer.toString(m_peerId));
-            message.append(",");
-            message.append(Integer.toString(realItemId));
-            message.append(",");
-            for (int d = 0; d < m_matrixRank; d++) {
-              message.append(Double.toString(m_itemsMatrix[itemId][d]));
-              if (d + 1 < m_matrixRank) {
-                message.append(",");
-              }
+            int realItemId = m_itemIds[itemId];
+            int toPeerId = realItemId % m_peerCount;
+            // don't send item to itself
+            if (toPeerId != m_peerId) {
+              // init Counter
+              m_counters[itemId] = 0;
+
+              // ItemMessage (senderId,itemId,itemVector)
+              // 0,1,0.622676719363376,0.47894004113535393,0.9099409696184495
+              HamaPeer.send(m_allPeerNames[toPeerId],
+                  itemMessage(realItemId, itemId));
+
+            } else {
+              m_counters[itemId] = 1;
             }
-            String messageStr = message.toString();
+          }
 
-            // System.out.println("sendItem itemId: " + itemId + " toPeerId: "
-            // + toPeerId + " value: "
-            // + arrayToString(m_itemsMatrix[itemId], m_matrixRank));
+          HamaPeer.sync();
 
-            HamaPeer.send(m_allPeerNames[toPeerId], messageStr);
+          // Step 2)
+          // receive item matrices if this peer is selected and normalize them
+          String msg;
+          while ((msg = HamaPeer.getCurrentStringMessage()) != null) {
+            // Parse string message
+            // ItemMessage (senderId,itemId,itemVector)
+            String[] values = msg.split(",");
+            int senderId = Integer.parseInt(values[0]);
+            int realItemId = Integer.parseInt(values[1]);
+            Integer itemId = m_itemColMap.get(realItemId);
+            if (itemId != null) {
+              int itemOffset = itemId * m_matrixRank;
+              int dim = values.length - 2;
+              for (int d = 0; d < dim; d++) {
+                m_itemsMatrix[itemOffset + d] += Double
+                    .parseDouble(values[d + 2]);
+              }
 
-          } else {
-            m_counterMap.put(itemId, 1);
-          }
-        }
-
-        HamaPeer.sync();
-
-        // Step 2)
-        // receive item matrices if this peer is selected and normalize them
-        String msg;
-        while ((msg = HamaPeer.getCurrentStringMessage()) != null) {
-          // Parse string message
-          // ItemMessage (senderId,itemId,itemVector)
-          String[] values = msg.split(",");
-          int senderId = Integer.parseInt(values[0]);
-          int realItemId = Integer.parseInt(values[1]);
-          Integer itemId = m_itemColMap.get(realItemId);
-          if (itemId != null) {
-            int dim = values.length - 2;
-            for (int d = 0; d < dim; d++) {
-              m_itemsMatrix[itemId][d] += Double.parseDouble(values[d + 2]);
+              m_counters[itemId]++;
+              m_senderMap.put(itemId, senderId);
             }
+          }
 
-            m_counterMap.add(itemId, 1);
-            m_senderMap.put(itemId, senderId);
+        } // RootbeerGpu.getThreadId() == 0
 
-            // System.out.println("receiveItem itemId: " + itemId
-            // + " fromPeerId: " + senderId + " accumulated value: "
-            // + arrayToString(m_itemsMatrix[itemId], dim) + " counter: "
-            // + m_counterMap.get(itemId));
+        // Sync all blocks Inter-Block Synchronization
+        RootbeerGpu.syncblocks(3);
+
+        // Step 3)
+        // normalize (messages with counters)
+        // Loop over all itemsPerBlock
+        // Each thread within a block in parallel
+        for (int v = 0; v < itemsPerBlock; v++) {
+          int itemId = (gridSize * v) + block_idxx;
+          if ((itemId < m_M) && (m_counters[itemId] > 1)
+              && (thread_idxx < m_matrixRank)) {
+            m_itemsMatrix[itemId * m_matrixRank + thread_idxx] /= m_counters[itemId];
           }
-        }
 
-      } // RootbeerGpu.getThreadId() == 0
+          // Sync all threads within a block
+          RootbeerGpu.syncthreads();
 
-      // Sync all blocks Inter-Block Synchronization
-      RootbeerGpu.syncblocks(3);
+        } // loop over all itemsPerBlock
 
-      // Step 3)
-      // normalize (messages with counters)
-      // Loop over all itemsPerBlock
-      // Each thread within a block in parallel
-      for (int v = 0; v < itemsPerBlock; v++) {
-        int itemId = (itemsPerBlock * v) + block_idxx;
-        Integer counter = m_counterMap.get(itemId);
-        if ((itemId < m_M) && (counter != null) && (counter > 1)
-            && (thread_idxx < m_matrixRank)) {
-          m_itemsMatrix[itemId][thread_idxx] = m_itemsMatrix[itemId][thread_idxx]
-              / counter;
-        }
+        // Sync all blocks Inter-Block Synchronization
+        RootbeerGpu.syncblocks(4);
 
-        // Sync all threads within a block
-        RootbeerGpu.syncthreads();
+        // Only global Thread 0
+        if (RootbeerGpu.getThreadId() == 0) {
 
-      } // loop over all itemsPerBlock
+          // Step 4)
+          // send back normalized values to senders
+          for (int itemId = 0; itemId < m_M; itemId++) {
 
-      // Sync all blocks Inter-Block Synchronization
-      RootbeerGpu.syncblocks(4);
+            // only send own items
+            int realItemId = m_itemIds[itemId];
+            if (m_peerId == realItemId % m_peerCount) {
 
-      // Only global Thread 0
-      if (RootbeerGpu.getThreadId() == 0) {
+              String messageStr = itemMessage(realItemId, itemId);
 
-        // Step 4)
-        // send back normalized values to senders
-        for (int itemId = 0; itemId < m_M; itemId++) {
+              // send to interested peers
+              GpuIntIntPair pair = m_senderMap.getList(itemId);
+              while (pair != null) {
+                int toPeerId = pair.getValue();
+                HamaPeer.send(m_allPeerNames[toPeerId], messageStr);
+                pair = pair.getNext();
+              }
+            } // if (m_peerId == realItemId % m_peerCount)
+          }
 
-          // only send own items
-          int realItemId = m_colItemMap.get(itemId);
-          if (m_peerId == realItemId % m_peerCount) {
+          HamaPeer.sync();
 
+          // Step 5)
+          // receive already normalized and update data
+          String msg;
+          while ((msg = HamaPeer.getCurrentStringMessage()) != null) {
+            // Parse string message
             // ItemMessage (senderId,itemId,itemVector)
-            // e.g.,
-            // 0,1,0.622676719363376,0.47894004113535393,0.9099409696184495
-            StringBuilder message = new StringBuilder();
-            message.append(Integer.toString(m_peerId));
-            message.append(",");
-            message.append(Integer.toString(realItemId));
-            message.append(",");
-            for (int d = 0; d < m_matrixRank; d++) {
-              message.append(Double.toString(m_itemsMatrix[itemId][d]));
-              if (d + 1 < m_matrixRank) {
-                message.append(",");
+            String[] values = msg.split(",");
+
+            // don't care about the senderId (values[0])
+            int realItemId = Integer.parseInt(values[1]);
+            Integer itemId = m_itemColMap.get(realItemId);
+            if (itemId != null) {
+              int itemOffset = itemId * m_matrixRank;
+              int dim = values.length - 2;
+              for (int d = 0; d < dim; d++) {
+                m_itemsMatrix[itemOffset + d] = Double
+                    .parseDouble(values[d + 2]);
               }
             }
-            String messageStr = message.toString();
-            // System.out.println(messageStr); // Error will break
+          }
 
-            // send to interested peers
-            GpuIntIntPair pair = m_senderMap.getList(itemId);
-            while (pair != null) {
-              int toPeerId = pair.getValue();
+        } // if (RootbeerGpu.getThreadId() == 0)
 
-              // System.out.println("sendNormalizedBack itemId: " + itemId
-              // + " toPeerId: " + toPeerId + " value: "
-              // + arrayToString(vector) + "\n");
+        // Sync all blocks Inter-Block Synchronization
+        RootbeerGpu.syncblocks(5);
 
-              HamaPeer.send(m_allPeerNames[toPeerId], messageStr);
+      } // if ((m_peerCount > 1) && ((i + 1) % m_skipCount == 0))
 
-              pair = pair.getNext();
-            }
-          } // if (m_peerId == realItemId % m_peerCount)
-        }
-
-        HamaPeer.sync();
-
-        // Step 5)
-        // receive already normalized and update data
-        String msg;
-        while ((msg = HamaPeer.getCurrentStringMessage()) != null) {
-          // Parse string message
-          // ItemMessage (senderId,itemId,itemVector)
-          String[] values = msg.split(",");
-
-          // don't care about the senderId (values[0])
-          int realItemId = Integer.parseInt(values[1]);
-          Integer itemId = m_itemColMap.get(realItemId);
-          if (itemId != null) {
-            int dim = values.length - 2;
-            for (int d = 0; d < dim; d++) {
-              m_itemsMatrix[itemId][d] = Double.parseDouble(values[d + 2]);
-            }
-            // System.out.println("updateItems itemId: " + itemId + " value: "
-            // + arrayToString(vector) + "\n");
-          }
-        }
-
-      } // if (RootbeerGpu.getThreadId() == 0)
-
-      // Sync all blocks Inter-Block Synchronization
-      RootbeerGpu.syncblocks(5);
+    } // loop over all iterations
+  }
 
-    } // if (((i + 1) % m_skipCount == 0) && (m_peerCount > 0))
+  private String itemMessage(int realItemId, int itemId) {
+    // ItemMessage (senderId,itemId,itemVector)
+    StringBuilder message = new StringBuilder();
+    message.append(Integer.toString(m_peerId));
+    message.append(",");
+    message.append(Integer.toString(realItemId));
+    message.append(",");
+    int itemOffset = itemId * m_matrixRank;
+    for (int d = 0; d < m_matrixRank; d++) {
+      message.append(Double.toString(m_itemsMatrix[itemOffset + d]));
+      if (d + 1 < m_matrixRank) {
+        message.append(",");
+      }
+    }
+    return message.toString();
   }
 
   private int divup(int x, int y) {
@@ -451,8 +453,8 @@ public class OnlineCFTrainHybridKernel implements Kernel {
   public static void main(String[] args) {
     // Dummy invocation
     // otherwise Rootbeer will remove constructors and methods
-    new OnlineCFTrainHybridKernel(null, null, null, null, null, null, null, 0,
-        0, 0, 0, 0, null, 0, 0, 0, null);
+    new OnlineCFTrainHybridKernel(null, null, null, null, null, null, null,
+        null, null, null, null, null, 0, 0, 0, 0, 0, 0, 0, 0, null);
     new GpuIntegerMap().getList();
   }
 }
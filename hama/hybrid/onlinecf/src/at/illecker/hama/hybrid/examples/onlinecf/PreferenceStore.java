@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.onlinecf;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Preferences as structure of arrays: the user row and the item row of the
+ * FactorStores and the rating, plus a permutation which defines the training
+ * order.
+ *
+ * Ratings are stored as float while all of them are exact floats (e.g. 1 to
+ * 5 stars in steps of 0.5), which takes 12 bytes per preference plus 4 bytes
+ * of the permutation. The first rating which is not an exact float switches
+ * the store to doubles.
+ */
+public final class PreferenceStore {
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private int m_size;
+  private int[] m_userRows;
+  private int[] m_itemRows;
+  private float[] m_floatRatings;
+  private double[] m_doubleRatings = null;
+  private int[] m_order;
+
+  public PreferenceStore() {
+    this.m_size = 0;
+    this.m_userRows = new int[DEFAULT_CAPACITY];
+    this.m_itemRows = new int[DEFAULT_CAPACITY];
+    this.m_floatRatings = new float[DEFAULT_CAPACITY];
+    this.m_order = new int[DEFAULT_CAPACITY];
+  }
+
+  public void add(int userRow, int itemRow, double rating) {
+    if (m_size == m_userRows.length) {
+      final int capacity = Math.max(DEFAULT_CAPACITY, 2 * m_size);
+      m_userRows = Arrays.copyOf(m_userRows, capacity);
+      m_itemRows = Arrays.copyOf(m_itemRows, capacity);
+      m_order = Arrays.copyOf(m_order, capacity);
+      if (m_doubleRatings != null) {
+        m_doubleRatings = Arrays.copyOf(m_doubleRatings, capacity);
+      } else {
+        m_floatRatings = Arrays.copyOf(m_floatRatings, capacity);
+      }
+    }
+    if (m_doubleRatings == null && (float) rating != rating) {
+      m_doubleRatings = new double[m_floatRatings.length];
+      for (int i = 0; i < m_size; i++) {
+        m_doubleRatings[i] = m_floatRatings[i];
+      }
+      m_floatRatings = null;
+    }
+
+    m_userRows[m_size] = userRow;
+    m_itemRows[m_size] = itemRow;
+    if (m_doubleRatings != null) {
+      m_doubleRatings[m_size] = rating;
+    } else {
+      m_floatRatings[m_size] = (float) rating;
+    }
+    m_order[m_size] = m_size;
+    m_size++;
+  }
+
+  /**
+   * Shuffles the training order in place (Fisher-Yates).
+   */
+  public void shuffle(Random rand) {
+    shuffle(rand, 0, m_size);
+  }
+
+  /**
+   * Shuffles the positions [start, end) of the training order in place.
+   */
+  public void shuffle(Random rand, int start, int end) {
+    for (int i = end; i > start; i--) {
+      final int idx = start + rand.nextInt(i - start);
+      final int tmp = m_order[i - 1];
+      m_order[i - 1] = m_order[idx];
+      m_order[idx] = tmp;
+    }
+  }
+
+  /**
+   * Reorders the training order by the group of the item rows, stable
+   * within a group.
+   * 
+   * @param itemGroups the group in [0, groupCount) of each item row
+   * @return the start of each group within the training order, the last
+   *         entry is size()
+   */
+  public int[] groupByItem(int[] itemGroups, int groupCount) {
+    int[] starts = new int[groupCount + 1];
+    for (int p = 0; p < m_size; p++) {
+      starts[itemGroups[m_itemRows[m_order[p]]] + 1]++;
+    }
+    for (int g = 0; g < groupCount; g++) {
+      starts[g + 1] += starts[g];
+    }
+    int[] next = Arrays.copyOf(starts, groupCount);
+    int[] order = new int[m_order.length];
+    for (int p = 0; p < m_size; p++) {
+      final int pref = m_order[p];
+      order[next[itemGroups[m_itemRows[pref]]]++] = pref;
+    }
+    m_order = order;
+    return starts;
+  }
+
+  /**
+   * @return the preference at the given position of the training order
+   */
+  public int get(int position) {
+    return m_order[position];
+  }
+
+  public int getUserRow(int preference) {
+    return m_userRows[preference];
+  }
+
+  public int getItemRow(int preference) {
+    return m_itemRows[preference];
+  }
+
+  public double getRating(int preference) {
+    return (m_doubleRatings != null) ? m_doubleRatings[preference]
+        : m_floatRatings[preference];
+  }
+
+  public int size() {
+    return m_size;
+  }
+
+  /**
+   * Releases unused capacity after the input has been read completely.
+   */
+  public void trimToSize() {
+    if (m_size < m_userRows.length) {
+      m_userRows = Arrays.copyOf(m_userRows, m_size);
+      m_itemRows = Arrays.copyOf(m_itemRows, m_size);
+      m_order = Arrays.copyOf(m_order, m_size);
+      if (m_doubleRatings != null) {
+        m_doubleRatings = Arrays.copyOf(m_doubleRatings, m_size);
+      } else {
+        m_floatRatings = Arrays.copyOf(m_floatRatings, m_size);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.onlinecf;
+
+/**
+ * The user x item rating matrix in compressed sparse row (CSR, by user) and
+ * compressed sparse column (CSC, by item) layout, rows and columns are the
+ * rows of the user and item FactorStores.
+ *
+ * The ratings of user u are getUserItems()[p] and getUserRatings()[p] for p
+ * in [getUserPointers()[u], getUserPointers()[u + 1]), the same holds for
+ * the items. Both layouts take 12 bytes per rating and 4 bytes per user or
+ * item, independent of the number of users times items.
+ */
+public final class SparseRatingMatrix {
+  private final int m_users;
+  private final int m_items;
+
+  private final int[] m_userPointers;
+  private final int[] m_userItems;
+  private final double[] m_userRatings;
+
+  private final int[] m_itemPointers;
+  private final int[] m_itemUsers;
+  private final double[] m_itemRatings;
+
+  private final int[] m_userOrder;
+  private final int[] m_itemOrder;
+
+  /**
+   * Builds both layouts from the preferences by counting sort, the ratings
+   * of a user or item keep the order of the preferences.
+   */
+  public SparseRatingMatrix(PreferenceStore preferences, int users, int items) {
+    this.m_users = users;
+    this.m_items = items;
+    final int size = preferences.size();
+
+    // count ratings per user and item, shifted by one
+    m_userPointers = new int[users + 1];
+    m_itemPointers = new int[items + 1];
+    for (int p = 0; p < size; p++) {
+      m_userPointers[preferences.getUserRow(p) + 1]++;
+      m_itemPointers[preferences.getItemRow(p) + 1]++;
+    }
+    // the users and items ordered by descending rating count
+    m_userOrder = orderByCount(m_userPointers);
+    m_itemOrder = orderByCount(m_itemPointers);
+    for (int u = 0; u < users; u++) {
+      m_userPointers[u + 1] += m_userPointers[u];
+    }
+    for (int i = 0; i < items; i++) {
+      m_itemPointers[i + 1] += m_itemPointers[i];
+    }
+
+    m_userItems = new int[size];
+    m_userRatings = new double[size];
+    m_itemUsers = new int[size];
+    m_itemRatings = new double[size];
+    int[] userNext = new int[users];
+    int[] itemNext = new int[items];
+    System.arraycopy(m_userPointers, 0, userNext, 0, users);
+    System.arraycopy(m_itemPointers, 0, itemNext, 0, items);
+    for (int p = 0; p < size; p++) {
+      final int user = preferences.getUserRow(p);
+      final int item = preferences.getItemRow(p);
+      final double rating = preferences.getRating(p);
+
+      final int userPos = userNext[user]++;
+      m_userItems[userPos] = item;
+      m_userRatings[userPos] = rating;
+
+      final int itemPos = itemNext[item]++;
+      m_itemUsers[itemPos] = user;
+      m_itemRatings[itemPos] = rating;
+    }
+  }
+
+  /**
+   * @param counts the count of row r at counts[r + 1]
+   * @return the rows ordered by descending count, stable for equal counts
+   */
+  private static int[] orderByCount(int[] counts) {
+    final int rows = counts.length - 1;
+    int maxCount = 0;
+    for (int r = 0; r < rows; r++) {
+      maxCount = Math.max(maxCount, counts[r + 1]);
+    }
+    // start of each count within the order, the largest count first
+    int[] starts = new int[maxCount + 2];
+    for (int r = 0; r < rows; r++) {
+      starts[maxCount - counts[r + 1] + 1]++;
+    }
+    for (int c = 0; c <= maxCount; c++) {
+      starts[c + 1] += starts[c];
+    }
+    int[] order = new int[rows];
+    for (int r = 0; r < rows; r++) {
+      order[starts[maxCount - counts[r + 1]]++] = r;
+    }
+    return order;
+  }
+
+  public int getUserCount() {
+    return m_users;
+  }
+
+  public int getItemCount() {
+    return m_items;
+  }
+
+  public int getRatingCount() {
+    return m_userItems.length;
+  }
+
+  public int[] getUserPointers() {
+    return m_userPointers;
+  }
+
+  public int[] getUserItems() {
+    return m_userItems;
+  }
+
+  public double[] getUserRatings() {
+    return m_userRatings;
+  }
+
+  public int[] getItemPointers() {
+    return m_itemPointers;
+  }
+
+  public int[] getItemUsers() {
+    return m_itemUsers;
+  }
+
+  public double[] getItemRatings() {
+    return m_itemRatings;
+  }
+
+  /**
+   * @return the users ordered by descending rating count
+   */
+  public int[] getUserOrder() {
+    return m_userOrder;
+  }
+
+  /**
+   * @return the items ordered by descending rating count
+   */
+  public int[] getItemOrder() {
+    return m_itemOrder;
+  }
+
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.onlinecf;
+
+/**
+ * The n rows with the highest scores, kept in a bounded binary min-heap of
+ * primitive arrays. A score which does not beat the smallest kept score is
+ * rejected by a single comparison. Equal scores prefer the lower row, so the
+ * result does not depend on the order of the offers.
+ */
+public final class TopNHeap {
+  private final int m_capacity;
+  private int m_size;
+  private final int[] m_rows;
+  private final double[] m_scores;
+  private boolean m_sorted = false;
+
+  public TopNHeap(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: "
+          + capacity);
+    }
+    this.m_capacity = capacity;
+    this.m_size = 0;
+    this.m_rows = new int[capacity];
+    this.m_scores = new double[capacity];
+  }
+
+  // true if (row1, score1) ranks below (row2, score2)
+  private static boolean lower(int row1, double score1, int row2,
+      double score2) {
+    return score1 < score2 || (score1 == score2 && row1 > row2);
+  }
+
+  public int getCapacity() {
+    return m_capacity;
+  }
+
+  public boolean isFull() {
+    return m_size == m_capacity;
+  }
+
+  /**
+   * @return the smallest kept score, a new score has to be higher to be kept
+   *         by a full heap
+   */
+  public double getMinScore() {
+    return (m_size > 0) ? m_scores[0] : Double.NEGATIVE_INFINITY;
+  }
+
+  public void offer(int row, double score) {
+    if (m_sorted) {
+      throw new IllegalStateException("Heap is already sorted!");
+    }
+    if (score != score) {
+      // NaN
+      return;
+    }
+    if (m_size < m_capacity) {
+      siftUp(m_size++, row, score);
+    } else if (lower(m_rows[0], m_scores[0], row, score)) {
+      siftDown(0, row, score);
+    }
+  }
+
+  /**
+   * Offers all rows of the other, unsorted heap.
+   */
+  public void offerAll(TopNHeap other) {
+    for (int i = 0; i < other.m_size; i++) {
+      offer(other.m_rows[i], other.m_scores[i]);
+    }
+  }
+
+  private void siftUp(int pos, int row, double score) {
+    while (pos > 0) {
+      final int parent = (pos - 1) >>> 1;
+      if (!lower(row, score, m_rows[parent], m_scores[parent])) {
+        break;
+      }
+      m_rows[pos] = m_rows[parent];
+      m_scores[pos] = m_scores[parent];
+      pos = parent;
+    }
+    m_rows[pos] = row;
+    m_scores[pos] = score;
+  }
+
+  private void siftDown(int pos, int row, double score) {
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= m_size) {
+        break;
+      }
+      if (child + 1 < m_size
+          && lower(m_rows[child + 1], m_scores[child + 1], m_rows[child],
+              m_scores[child])) {
+        child++;
+      }
+      if (!lower(m_rows[child], m_scores[child], row, score)) {
+        break;
+      }
+      m_rows[pos] = m_rows[child];
+      m_scores[pos] = m_scores[child];
+      pos = child;
+    }
+    m_rows[pos] = row;
+    m_scores[pos] = score;
+  }
+
+  /**
+   * Sorts the kept rows by descending score (heapsort in place), no rows can
+   * be offered afterwards.
+   */
+  public void sort() {
+    if (m_sorted) {
+      return;
+    }
+    // move the smallest to the end until the heap is empty
+    for (int end = m_size - 1; end > 0; end--) {
+      final int row = m_rows[0];
+      final double score = m_scores[0];
+      final int size = m_size;
+      m_size = end;
+      siftDown(0, m_rows[end], m_scores[end]);
+      m_size = size;
+      m_rows[end] = row;
+      m_scores[end] = score;
+    }
+    m_sorted = true;
+  }
+
+  public int size() {
+    return m_size;
+  }
+
+  /**
+   * @return the row at the position, ordered by descending score after sort
+   */
+  public int getRow(int i) {
+    return m_rows[i];
+  }
+
+  public double getScore(int i) {
+    return m_scores[i];
+  }
+
+}
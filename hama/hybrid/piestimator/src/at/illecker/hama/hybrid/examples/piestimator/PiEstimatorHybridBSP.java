@@ -17,6 +17,7 @@
 package at.illecker.hama.hybrid.examples.piestimator;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -45,9 +46,10 @@ import org.apache.hama.bsp.sync.SyncException;
 import org.trifort.rootbeer.runtime.Context;
 import org.trifort.rootbeer.runtime.Rootbeer;
 import org.trifort.rootbeer.runtime.StatsRow;
-import org.trifort.rootbeer.runtime.ThreadConfig;
 import org.trifort.rootbeer.runtime.util.Stopwatch;
 
+import at.illecker.hama.hybrid.examples.util.emulator.KernelRunner;
+
 public class PiEstimatorHybridBSP extends
     HybridBSP<NullWritable, NullWritable, Text, DoubleWritable, LongWritable> {
 
@@ -284,11 +286,10 @@ public class PiEstimatorHybridBSP extends
         System.currentTimeMillis(), m_blockSize, resultList);
 
     // Run GPU Kernels
-    Context context = rootbeer.createDefaultContext();
     Stopwatch watch = new Stopwatch();
     watch.start();
-    rootbeer.run(kernel, new ThreadConfig(m_blockSize, m_gridSize, m_blockSize
-        * m_gridSize), context);
+    Context context = KernelRunner.run(peer, rootbeer, kernel, m_blockSize,
+        m_gridSize, false);
     watch.stop();
 
     // Get GPU results
@@ -304,7 +305,8 @@ public class PiEstimatorHybridBSP extends
     if (m_isDebuggingEnabled) {
       m_logger.writeChars("BSP=PiEstimatorHybrid,Iterations=" + m_iterations
           + ",GPUTime=" + watch.elapsedTimeMillis() + "ms\n");
-      List<StatsRow> stats = context.getStats();
+      List<StatsRow> stats = (context != null) ? context.getStats()
+          : new ArrayList<StatsRow>();
       for (StatsRow row : stats) {
         m_logger.writeChars("  StatsRow:\n");
         m_logger.writeChars("    serial time: " + row.getSerializationTime()
@@ -49,8 +49,9 @@ public class PiEstimatorKernel implements Kernel {
     long seed = m_seed;
     int reductionStart = m_reductionStart;
 
+    // thread 0 must not divide by zero
     LinearCongruentialRandomGenerator lcg = new LinearCongruentialRandomGenerator(
-        seed / threadId);
+        seed / (threadId + 1));
 
     long hits = 0;
     for (long i = 0; i < iterations; i++) {
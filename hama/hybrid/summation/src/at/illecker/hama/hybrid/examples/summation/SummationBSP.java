@@ -19,6 +19,7 @@ package at.illecker.hama.hybrid.examples.summation;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -47,9 +48,10 @@ import org.apache.hama.bsp.sync.SyncException;
 import org.trifort.rootbeer.runtime.Context;
 import org.trifort.rootbeer.runtime.Rootbeer;
 import org.trifort.rootbeer.runtime.StatsRow;
-import org.trifort.rootbeer.runtime.ThreadConfig;
 import org.trifort.rootbeer.runtime.util.Stopwatch;
 
+import at.illecker.hama.hybrid.examples.util.emulator.KernelRunner;
+
 public class SummationBSP extends
     HybridBSP<Text, Text, Text, DoubleWritable, DoubleWritable> {
 
@@ -140,14 +142,14 @@ public class SummationBSP extends
     SummationKernel kernel = new SummationKernel(m_masterTask);
 
     // Run GPU Kernels
-    Context context = rootbeer.createDefaultContext();
     Stopwatch watch = new Stopwatch();
     watch.start();
     // 1 Kernel within 1 Block
-    rootbeer.run(kernel, new ThreadConfig(1, 1, 1), context);
+    Context context = KernelRunner.run(peer, rootbeer, kernel, 1, 1, false);
     watch.stop();
 
-    List<StatsRow> stats = context.getStats();
+    List<StatsRow> stats = (context != null) ? context.getStats()
+        : new ArrayList<StatsRow>();
     for (StatsRow row : stats) {
       outStream.writeChars("  StatsRow:\n");
       outStream.writeChars("    serial time: " + row.getSerializationTime()
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.broadcast;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.sync.SyncException;
+
+/**
+ * Broadcasts read-only side data, e.g. the initial centers or a matrix which
+ * is used by all peers, from one root peer to all other peers.
+ *
+ * Only the root reads the side input and splits it into chunks, which are
+ * messages of the job. The chunks are spread along a binomial tree: in each
+ * superstep every peer holding the data sends it to one peer without it, so
+ * the data reaches all N peers after ceil(log2(N)) supersteps and each peer
+ * sends it at most log2(N) times instead of N peers reading it from HDFS.
+ *
+ * All peers have to call broadcast at the same superstep and must not have
+ * other messages pending. The order of the chunks is not preserved, each
+ * chunk has to carry its own index.
+ *
+ * <pre>
+ * List&lt;M&gt; chunks = null;
+ * if (peer.getPeerIndex() == 0) {
+ *   chunks = readSideInput();
+ * }
+ * chunks = TreeBroadcast.broadcast(peer, 0, chunks);
+ * </pre>
+ */
+public final class TreeBroadcast {
+
+  private TreeBroadcast() {
+  }
+
+  /**
+   * @return the number of supersteps of a broadcast to numPeers peers
+   */
+  public static int getSuperstepCount(int numPeers) {
+    int supersteps = 0;
+    for (int step = 1; step < numPeers; step <<= 1) {
+      supersteps++;
+    }
+    return supersteps;
+  }
+
+  /**
+   * Spreads the chunks of the root peer to all peers.
+   *
+   * @param rootPeer the index of the peer holding the chunks
+   * @param chunks the chunks on the root peer, ignored on all other peers
+   * @return the chunks, which are cached locally by every peer
+   */
+  public static <M extends Writable> List<M> broadcast(
+      BSPPeer<?, ?, ?, ?, M> peer, int rootPeer, List<M> chunks)
+      throws IOException, SyncException, InterruptedException {
+
+    final int numPeers = peer.getNumPeers();
+    if (rootPeer < 0 || rootPeer >= numPeers) {
+      throw new IllegalArgumentException("Invalid rootPeer: " + rootPeer
+          + " of " + numPeers + " peers");
+    }
+    // rank within the tree, the root has rank 0
+    final int rank = (peer.getPeerIndex() - rootPeer + numPeers) % numPeers;
+
+    List<M> cache;
+    if (rank == 0) {
+      if (chunks == null) {
+        throw new IllegalArgumentException("The root peer has no chunks!");
+      }
+      cache = chunks;
+    } else {
+      cache = new ArrayList<M>();
+    }
+
+    for (int step = 1; step < numPeers; step <<= 1) {
+      // peers of rank < step hold the data and send it to rank + step
+      if (rank < step && rank + step < numPeers) {
+        String target = peer.getPeerName((rank + step + rootPeer) % numPeers);
+        for (M chunk : cache) {
+          peer.send(target, chunk);
+        }
+      }
+
+      peer.sync();
+
+      M chunk = null;
+      while ((chunk = peer.getCurrentMessage()) != null) {
+        cache.add(chunk);
+      }
+    }
+    return cache;
+  }
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.sync.SyncException;
+import org.trifort.rootbeer.runtime.KeyValuePair;
+
+/**
+ * Backend for emulated kernels of a BSP task, e.g. if the task was scheduled
+ * as GPU task but the host has no GPU. The calls are forwarded to the BSPPeer
+ * and the values are converted like the Hama Pipes protocol does, messages
+ * are instances of the configured message class.
+ */
+public class BSPHamaPeerBackend<K1, V1, K2 extends Writable, V2 extends Writable, M extends Writable>
+    implements HamaPeerBackend {
+  private final BSPPeer<K1, V1, K2, V2, M> m_peer;
+  private final Configuration m_conf;
+  private final Class<? extends Writable> m_messageClass;
+  private final K2 m_outputKey;
+  private final V2 m_outputValue;
+  private final SequenceFiles m_sequenceFiles;
+
+  @SuppressWarnings("unchecked")
+  public BSPHamaPeerBackend(BSPPeer<K1, V1, K2, V2, M> peer) {
+    this.m_peer = peer;
+    this.m_conf = peer.getConfiguration();
+    this.m_messageClass = m_conf.getClass("bsp.message.class", null,
+        Writable.class);
+    this.m_outputKey = (K2) newWritable("bsp.output.key.class");
+    this.m_outputValue = (V2) newWritable("bsp.output.value.class");
+    this.m_sequenceFiles = new SequenceFiles(m_conf);
+  }
+
+  private Writable newWritable(String classKey) {
+    Class<? extends Writable> writableClass = m_conf.getClass(classKey, null,
+        Writable.class);
+    if (writableClass == null || writableClass == NullWritable.class) {
+      return NullWritable.get();
+    }
+    return ReflectionUtils.newInstance(writableClass, m_conf);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void send(String peerName, Object message) {
+    if (m_messageClass == null) {
+      throw new IllegalStateException("bsp.message.class is not set");
+    }
+    try {
+      Writable writable = ReflectionUtils.newInstance(m_messageClass, m_conf);
+      WritableConverter.toWritable(message, writable);
+      m_peer.send(peerName, (M) writable);
+    } catch (IOException e) {
+      throw new IllegalStateException("Message could not be sent to "
+          + peerName, e);
+    }
+  }
+
+  @Override
+  public void sync() {
+    try {
+      m_peer.sync();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    } catch (SyncException e) {
+      throw new IllegalStateException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public long getSuperstepCount() {
+    return m_peer.getSuperstepCount();
+  }
+
+  @Override
+  public int getNumCurrentMessages() {
+    return m_peer.getNumCurrentMessages();
+  }
+
+  @Override
+  public Object getCurrentMessage() {
+    try {
+      return WritableConverter.toObject(m_peer.getCurrentMessage(), null);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public String getPeerName() {
+    return m_peer.getPeerName();
+  }
+
+  @Override
+  public String getPeerName(int index) {
+    return m_peer.getPeerName(index);
+  }
+
+  @Override
+  public int getPeerIndex() {
+    return m_peer.getPeerIndex();
+  }
+
+  @Override
+  public String[] getAllPeerNames() {
+    return m_peer.getAllPeerNames();
+  }
+
+  @Override
+  public int getNumPeers() {
+    return m_peer.getNumPeers();
+  }
+
+  @Override
+  public boolean readNext(KeyValuePair keyValuePair) {
+    try {
+      org.apache.hama.commons.util.KeyValuePair<K1, V1> pair = m_peer
+          .readNext();
+      if (pair == null) {
+        return false;
+      }
+      keyValuePair.setKey(WritableConverter.toObject(
+          (Writable) pair.getKey(), keyValuePair.getKey()));
+      keyValuePair.setValue(WritableConverter.toObject(
+          (Writable) pair.getValue(), keyValuePair.getValue()));
+      return true;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void reopenInput() {
+    try {
+      m_peer.reopenInput();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void write(Object key, Object value) {
+    try {
+      WritableConverter.toWritable(key, m_outputKey);
+      WritableConverter.toWritable(value, m_outputValue);
+      m_peer.write(m_outputKey, m_outputValue);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int sequenceFileOpen(String path, char option, String keyType,
+      String valueType) {
+    return m_sequenceFiles.open(path, option, keyType, valueType);
+  }
+
+  @Override
+  public boolean sequenceFileReadNext(int fileId, KeyValuePair keyValuePair) {
+    return m_sequenceFiles.readNext(fileId, keyValuePair);
+  }
+
+  @Override
+  public boolean sequenceFileAppend(int fileId, Object key, Object value) {
+    return m_sequenceFiles.append(fileId, key, value);
+  }
+
+  @Override
+  public boolean sequenceFileClose(int fileId) {
+    return m_sequenceFiles.close(fileId);
+  }
+}
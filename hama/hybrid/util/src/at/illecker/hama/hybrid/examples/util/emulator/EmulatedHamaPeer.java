@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import org.trifort.rootbeer.runtime.KeyValuePair;
+
+/**
+ * CPU replacement of org.trifort.rootbeer.runtime.HamaPeer, which forwards
+ * the calls of emulated kernels to a HamaPeerBackend.
+ *
+ * The backend is set per emulated GPU thread, so kernels of several tasks
+ * can be emulated in the same JVM. The calls of one kernel are serialized by
+ * its backend.
+ */
+public final class EmulatedHamaPeer {
+
+  private static final ThreadLocal<HamaPeerBackend> s_backend = new ThreadLocal<HamaPeerBackend>();
+
+  private EmulatedHamaPeer() {
+  }
+
+  static void setBackend(HamaPeerBackend backend) {
+    if (backend == null) {
+      s_backend.remove();
+    } else {
+      s_backend.set(backend);
+    }
+  }
+
+  private static HamaPeerBackend backend() {
+    HamaPeerBackend backend = s_backend.get();
+    if (backend == null) {
+      throw new IllegalStateException(
+          "KernelEmulator has no HamaPeerBackend to handle HamaPeer calls!");
+    }
+    return backend;
+  }
+
+  /******************************** Messaging ********************************/
+
+  public static void send(String peerName, int message) {
+    send(peerName, (Object) Integer.valueOf(message));
+  }
+
+  public static void send(String peerName, long message) {
+    send(peerName, (Object) Long.valueOf(message));
+  }
+
+  public static void send(String peerName, float message) {
+    send(peerName, (Object) Float.valueOf(message));
+  }
+
+  public static void send(String peerName, double message) {
+    send(peerName, (Object) Double.valueOf(message));
+  }
+
+  public static void send(String peerName, String message) {
+    send(peerName, (Object) message);
+  }
+
+  public static void send(String peerName, Object message) {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      backend.send(peerName, message);
+    }
+  }
+
+  public static void sync() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      backend.sync();
+    }
+  }
+
+  public static long getSuperstepCount() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.getSuperstepCount();
+    }
+  }
+
+  public static int getNumCurrentMessages() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.getNumCurrentMessages();
+    }
+  }
+
+  private static Object getCurrentMessage() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.getCurrentMessage();
+    }
+  }
+
+  public static String getCurrentStringMessage() {
+    Object message = getCurrentMessage();
+    return (message != null) ? message.toString() : null;
+  }
+
+  public static int getCurrentIntMessage() {
+    Object message = getCurrentMessage();
+    return (message instanceof Number) ? ((Number) message).intValue()
+        : Integer.parseInt(String.valueOf(message));
+  }
+
+  public static long getCurrentLongMessage() {
+    Object message = getCurrentMessage();
+    return (message instanceof Number) ? ((Number) message).longValue() : Long
+        .parseLong(String.valueOf(message));
+  }
+
+  public static float getCurrentFloatMessage() {
+    Object message = getCurrentMessage();
+    return (message instanceof Number) ? ((Number) message).floatValue()
+        : Float.parseFloat(String.valueOf(message));
+  }
+
+  public static double getCurrentDoubleMessage() {
+    Object message = getCurrentMessage();
+    return (message instanceof Number) ? ((Number) message).doubleValue()
+        : Double.parseDouble(String.valueOf(message));
+  }
+
+  /********************************** Peers **********************************/
+
+  public static String getPeerName() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.getPeerName();
+    }
+  }
+
+  public static String getPeerName(int index) {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.getPeerName(index);
+    }
+  }
+
+  public static int getPeerIndex() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.getPeerIndex();
+    }
+  }
+
+  public static String[] getAllPeerNames() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.getAllPeerNames();
+    }
+  }
+
+  public static int getNumPeers() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.getNumPeers();
+    }
+  }
+
+  /****************************** Input / Output ******************************/
+
+  public static boolean readNext(KeyValuePair keyValuePair) {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.readNext(keyValuePair);
+    }
+  }
+
+  public static void reopenInput() {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      backend.reopenInput();
+    }
+  }
+
+  public static void write(Object key, Object value) {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      backend.write(key, value);
+    }
+  }
+
+  public static int sequenceFileOpen(String path, char option, String keyType,
+      String valueType) {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.sequenceFileOpen(path, option, keyType, valueType);
+    }
+  }
+
+  public static boolean sequenceFileReadNext(int fileId,
+      KeyValuePair keyValuePair) {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.sequenceFileReadNext(fileId, keyValuePair);
+    }
+  }
+
+  public static boolean sequenceFileAppend(int fileId, Object key, Object value) {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.sequenceFileAppend(fileId, key, value);
+    }
+  }
+
+  public static boolean sequenceFileClose(int fileId) {
+    HamaPeerBackend backend = backend();
+    synchronized (backend) {
+      return backend.sequenceFileClose(fileId);
+    }
+  }
+}
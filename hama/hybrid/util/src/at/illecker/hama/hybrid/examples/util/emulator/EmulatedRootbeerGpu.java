@@ -0,0 +1,297 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CPU replacement of org.trifort.rootbeer.runtime.RootbeerGpu. Kernels loaded
+ * by the KernelEmulator call these methods instead of the Rootbeer ones, each
+ * emulated GPU thread is a Java thread with its own indices.
+ *
+ * Shared memory is a byte addressed buffer per block, syncthreads waits for
+ * all threads of the block and syncblocks for all threads of the grid. Like on
+ * a GPU syncblocks requires all blocks of the grid to run at the same time.
+ */
+public final class EmulatedRootbeerGpu {
+
+  private static final ThreadLocal<ThreadContext> s_context = new ThreadLocal<ThreadContext>();
+
+  private EmulatedRootbeerGpu() {
+  }
+
+  /**
+   * State of one emulated GPU thread.
+   */
+  static final class ThreadContext {
+    final int m_threadIdxx;
+    final int m_blockIdxx;
+    final int m_blockDimx;
+    final int m_gridDimx;
+    final ByteBuffer m_sharedMemory;
+    final Object[] m_sharedObjects;
+    final Barrier m_blockBarrier;
+    // null if the blocks of the grid do not run at the same time
+    final Barrier m_gridBarrier;
+
+    ThreadContext(int threadIdxx, int blockIdxx, int blockDimx, int gridDimx,
+        ByteBuffer sharedMemory, Object[] sharedObjects,
+        Barrier blockBarrier, Barrier gridBarrier) {
+      this.m_threadIdxx = threadIdxx;
+      this.m_blockIdxx = blockIdxx;
+      this.m_blockDimx = blockDimx;
+      this.m_gridDimx = gridDimx;
+      this.m_sharedMemory = sharedMemory;
+      this.m_sharedObjects = sharedObjects;
+      this.m_blockBarrier = blockBarrier;
+      this.m_gridBarrier = gridBarrier;
+    }
+  }
+
+  /**
+   * Reusable barrier which stays broken once a thread failed, so no thread
+   * can wait forever for a thread that will never arrive.
+   */
+  static final class Barrier {
+    private final int m_parties;
+    private int m_waiting = 0;
+    private long m_generation = 0;
+    private boolean m_broken = false;
+
+    Barrier(int parties) {
+      this.m_parties = parties;
+    }
+
+    synchronized void await() {
+      if (m_broken) {
+        throw new IllegalStateException("Barrier broken by another thread");
+      }
+      if (++m_waiting == m_parties) {
+        m_waiting = 0;
+        m_generation++;
+        notifyAll();
+        return;
+      }
+      long generation = m_generation;
+      while (generation == m_generation) {
+        if (m_broken) {
+          throw new IllegalStateException("Barrier broken by another thread");
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(
+              "Interrupted while waiting at barrier", e);
+        }
+      }
+    }
+
+    synchronized void breakBarrier() {
+      m_broken = true;
+      notifyAll();
+    }
+  }
+
+  static void setContext(ThreadContext context) {
+    if (context == null) {
+      s_context.remove();
+    } else {
+      s_context.set(context);
+    }
+  }
+
+  private static ThreadContext context() {
+    ThreadContext context = s_context.get();
+    if (context == null) {
+      throw new IllegalStateException(
+          "EmulatedRootbeerGpu called outside of the KernelEmulator!");
+    }
+    return context;
+  }
+
+  public static boolean isOnGpu() {
+    return s_context.get() != null;
+  }
+
+  /********************************* Indices *********************************/
+
+  public static int getThreadId() {
+    ThreadContext context = context();
+    return (context.m_blockIdxx * context.m_blockDimx) + context.m_threadIdxx;
+  }
+
+  public static int getThreadIdxx() {
+    return context().m_threadIdxx;
+  }
+
+  public static int getBlockIdxx() {
+    return context().m_blockIdxx;
+  }
+
+  public static int getBlockDimx() {
+    return context().m_blockDimx;
+  }
+
+  public static long getGridDimx() {
+    return context().m_gridDimx;
+  }
+
+  /***************************** Synchronization *****************************/
+
+  public static void syncthreads() {
+    context().m_blockBarrier.await();
+  }
+
+  public static void syncblocks(int barrierId) {
+    ThreadContext context = context();
+    if (context.m_gridBarrier == null) {
+      throw new IllegalStateException("syncblocks requires all "
+          + context.m_gridDimx + " blocks to run at the same time, "
+          + "increase the maximum thread count of the KernelEmulator!");
+    }
+    context.m_gridBarrier.await();
+  }
+
+  // memory is coherent on the CPU, a barrier gives the required ordering
+  public static void threadfence() {
+  }
+
+  public static void threadfenceBlock() {
+  }
+
+  /****************************** Shared Memory ******************************/
+
+  public static void setSharedByte(int index, byte value) {
+    context().m_sharedMemory.put(index, value);
+  }
+
+  public static byte getSharedByte(int index) {
+    return context().m_sharedMemory.get(index);
+  }
+
+  public static void setSharedBoolean(int index, boolean value) {
+    context().m_sharedMemory.put(index, (byte) (value ? 1 : 0));
+  }
+
+  public static boolean getSharedBoolean(int index) {
+    return context().m_sharedMemory.get(index) != 0;
+  }
+
+  public static void setSharedChar(int index, char value) {
+    context().m_sharedMemory.putChar(index, value);
+  }
+
+  public static char getSharedChar(int index) {
+    return context().m_sharedMemory.getChar(index);
+  }
+
+  public static void setSharedShort(int index, short value) {
+    context().m_sharedMemory.putShort(index, value);
+  }
+
+  public static short getSharedShort(int index) {
+    return context().m_sharedMemory.getShort(index);
+  }
+
+  public static void setSharedInteger(int index, int value) {
+    context().m_sharedMemory.putInt(index, value);
+  }
+
+  public static int getSharedInteger(int index) {
+    return context().m_sharedMemory.getInt(index);
+  }
+
+  public static void setSharedLong(int index, long value) {
+    context().m_sharedMemory.putLong(index, value);
+  }
+
+  public static long getSharedLong(int index) {
+    return context().m_sharedMemory.getLong(index);
+  }
+
+  public static void setSharedFloat(int index, float value) {
+    context().m_sharedMemory.putFloat(index, value);
+  }
+
+  public static float getSharedFloat(int index) {
+    return context().m_sharedMemory.getFloat(index);
+  }
+
+  public static void setSharedDouble(int index, double value) {
+    context().m_sharedMemory.putDouble(index, value);
+  }
+
+  public static double getSharedDouble(int index) {
+    return context().m_sharedMemory.getDouble(index);
+  }
+
+  // object references are kept beside the buffer at the same offsets
+  public static void setSharedObject(int index, Object value) {
+    context().m_sharedObjects[index] = value;
+  }
+
+  public static Object getSharedObject(int index) {
+    return context().m_sharedObjects[index];
+  }
+
+  /********************************* Atomics *********************************/
+
+  public static int atomicAddGlobal(int[] array, int index, int addValue) {
+    synchronized (array) {
+      int old = array[index];
+      array[index] += addValue;
+      return old;
+    }
+  }
+
+  public static long atomicAddGlobal(long[] array, int index, long addValue) {
+    synchronized (array) {
+      long old = array[index];
+      array[index] += addValue;
+      return old;
+    }
+  }
+
+  public static float atomicAddGlobal(float[] array, int index, float addValue) {
+    synchronized (array) {
+      float old = array[index];
+      array[index] += addValue;
+      return old;
+    }
+  }
+
+  public static double atomicAddGlobal(double[] array, int index,
+      double addValue) {
+    synchronized (array) {
+      double old = array[index];
+      array[index] += addValue;
+      return old;
+    }
+  }
+
+  public static int atomicCASGlobal(int[] array, int index, int compare,
+      int value) {
+    synchronized (array) {
+      int old = array[index];
+      if (old == compare) {
+        array[index] = value;
+      }
+      return old;
+    }
+  }
+}
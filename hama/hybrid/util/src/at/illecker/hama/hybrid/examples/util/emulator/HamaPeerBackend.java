@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import org.trifort.rootbeer.runtime.KeyValuePair;
+
+/**
+ * Target of the HamaPeer calls of emulated kernels. Messages are passed as
+ * String, Integer, Long, Float or Double like the Hama Pipes protocol does.
+ *
+ * Calls are serialized by EmulatedHamaPeer.
+ */
+public interface HamaPeerBackend {
+
+  void send(String peerName, Object message);
+
+  void sync();
+
+  long getSuperstepCount();
+
+  int getNumCurrentMessages();
+
+  /**
+   * @return the next message or null if there is none
+   */
+  Object getCurrentMessage();
+
+  String getPeerName();
+
+  String getPeerName(int index);
+
+  int getPeerIndex();
+
+  String[] getAllPeerNames();
+
+  int getNumPeers();
+
+  boolean readNext(KeyValuePair keyValuePair);
+
+  void reopenInput();
+
+  void write(Object key, Object value);
+
+  int sequenceFileOpen(String path, char option, String keyType,
+      String valueType);
+
+  boolean sequenceFileReadNext(int fileId, KeyValuePair keyValuePair);
+
+  boolean sequenceFileAppend(int fileId, Object key, Object value);
+
+  boolean sequenceFileClose(int fileId);
+}
@@ -0,0 +1,283 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads kernel classes with all references to RootbeerGpu and HamaPeer
+ * redirected to EmulatedRootbeerGpu and EmulatedHamaPeer.
+ *
+ * The class names are replaced in the UTF8 entries of the constant pool, all
+ * other parts of the class file are index based and stay untouched. Classes
+ * without such references are loaded by the parent class loader.
+ *
+ * A rewritten class gets an additional constructor with the parameter type
+ * MARKER_CONSTRUCTOR_PARAMETER, which only calls the no-argument constructor
+ * of the superclass. The KernelEmulator creates the emulated kernel with it
+ * and copies the fields of the original kernel, because the constructors of
+ * a kernel may do arbitrary work.
+ */
+public class KernelClassLoader extends ClassLoader {
+  public static final Class<?> MARKER_CONSTRUCTOR_PARAMETER = Void.class;
+
+  private static final String MARKER_CONSTRUCTOR_DESCRIPTOR = "(L"
+      + internalName(MARKER_CONSTRUCTOR_PARAMETER) + ";)V";
+
+  private static final String[][] REPLACEMENTS = new String[][] {
+      { "org/trifort/rootbeer/runtime/RootbeerGpu",
+          internalName(EmulatedRootbeerGpu.class) },
+      { "org/trifort/rootbeer/runtime/HamaPeer",
+          internalName(EmulatedHamaPeer.class) } };
+
+  public KernelClassLoader(ClassLoader parent) {
+    super(parent);
+  }
+
+  @Override
+  protected synchronized Class<?> loadClass(String name, boolean resolve)
+      throws ClassNotFoundException {
+    Class<?> c = findLoadedClass(name);
+    if (c == null) {
+      byte[] classBytes = null;
+      if (!name.startsWith("java.")) {
+        classBytes = readClassBytes(name);
+      }
+      byte[] rewritten = (classBytes != null) ? rewrite(classBytes) : null;
+      if (rewritten != null) {
+        c = defineClass(name, rewritten, 0, rewritten.length);
+      } else {
+        return super.loadClass(name, resolve);
+      }
+    }
+    if (resolve) {
+      resolveClass(c);
+    }
+    return c;
+  }
+
+  private byte[] readClassBytes(String name) throws ClassNotFoundException {
+    InputStream in = getParent().getResourceAsStream(
+        name.replace('.', '/') + ".class");
+    if (in == null) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        out.write(buffer, 0, len);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new ClassNotFoundException(name, e);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * @return the rewritten class file or null if it has no references to
+   *         RootbeerGpu or HamaPeer
+   */
+  static byte[] rewrite(byte[] classBytes) {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+          classBytes));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+          classBytes.length + 256);
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      out.writeInt(in.readInt()); // magic
+      out.writeShort(in.readUnsignedShort()); // minor version
+      out.writeShort(in.readUnsignedShort()); // major version
+      int constantPoolCount = in.readUnsignedShort();
+
+      // the marker constructor adds 6 constant pool entries
+      final int markerConstants = 6;
+      if (constantPoolCount + markerConstants > 0xFFFF) {
+        throw new IllegalArgumentException("Constant pool is full");
+      }
+      out.writeShort(constantPoolCount + markerConstants);
+
+      boolean changed = false;
+      for (int i = 1; i < constantPoolCount; i++) {
+        int tag = in.readUnsignedByte();
+        out.writeByte(tag);
+        switch (tag) {
+          case 1: // Utf8
+            String value = in.readUTF();
+            String replaced = replace(value);
+            changed |= (replaced != value);
+            out.writeUTF(replaced);
+            break;
+          case 3: // Integer
+          case 4: // Float
+            out.writeInt(in.readInt());
+            break;
+          case 5: // Long
+          case 6: // Double, takes two entries
+            out.writeLong(in.readLong());
+            i++;
+            break;
+          case 7: // Class
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            out.writeShort(in.readUnsignedShort());
+            break;
+          case 15: // MethodHandle
+            out.writeByte(in.readUnsignedByte());
+            out.writeShort(in.readUnsignedShort());
+            break;
+          case 9: // Fieldref
+          case 10: // Methodref
+          case 11: // InterfaceMethodref
+          case 12: // NameAndType
+          case 17: // Dynamic
+          case 18: // InvokeDynamic
+            out.writeInt(in.readInt());
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown constant pool tag "
+                + tag);
+        }
+      }
+      if (!changed) {
+        return null;
+      }
+
+      int accessFlags = in.readUnsignedShort();
+      int thisClass = in.readUnsignedShort();
+      int superClass = in.readUnsignedShort();
+
+      // constants of the marker constructor
+      final int initName = constantPoolCount;
+      final int markerDescriptor = initName + 1;
+      final int voidDescriptor = initName + 2;
+      final int codeName = initName + 3;
+      final int superInitNameAndType = initName + 4;
+      final int superInit = initName + 5;
+      out.writeByte(1);
+      out.writeUTF("<init>");
+      out.writeByte(1);
+      out.writeUTF(MARKER_CONSTRUCTOR_DESCRIPTOR);
+      out.writeByte(1);
+      out.writeUTF("()V");
+      out.writeByte(1);
+      out.writeUTF("Code");
+      out.writeByte(12);
+      out.writeShort(initName);
+      out.writeShort(voidDescriptor);
+      out.writeByte(10);
+      out.writeShort(superClass);
+      out.writeShort(superInitNameAndType);
+
+      out.writeShort(accessFlags);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      int interfacesCount = in.readUnsignedShort();
+      out.writeShort(interfacesCount);
+      for (int i = 0; i < interfacesCount; i++) {
+        out.writeShort(in.readUnsignedShort());
+      }
+      copyMembers(in, out, 0);
+      copyMembers(in, out, 1);
+
+      // public synthetic <init>(Void) { super(); }
+      out.writeShort(0x1001);
+      out.writeShort(initName);
+      out.writeShort(markerDescriptor);
+      out.writeShort(1); // attributes
+      out.writeShort(codeName);
+      out.writeInt(17); // attribute length
+      out.writeShort(1); // max stack
+      out.writeShort(2); // max locals
+      out.writeInt(5); // code length
+      out.writeByte(0x2a); // aload_0
+      out.writeByte(0xb7); // invokespecial
+      out.writeShort(superInit);
+      out.writeByte(0xb1); // return
+      out.writeShort(0); // exception table
+      out.writeShort(0); // attributes
+
+      // copy the attributes of the class
+      byte[] buffer = new byte[4096];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        out.write(buffer, 0, len);
+      }
+      out.flush();
+      return bytes.toByteArray();
+
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Invalid class file", e);
+    }
+  }
+
+  // copies the fields or methods, the count of the methods is increased by
+  // the additional ones
+  private static void copyMembers(DataInputStream in, DataOutputStream out,
+      int additional) throws IOException {
+    int count = in.readUnsignedShort();
+    out.writeShort(count + additional);
+    for (int i = 0; i < count; i++) {
+      out.writeShort(in.readUnsignedShort()); // access flags
+      out.writeShort(in.readUnsignedShort()); // name
+      out.writeShort(in.readUnsignedShort()); // descriptor
+      int attributesCount = in.readUnsignedShort();
+      out.writeShort(attributesCount);
+      for (int j = 0; j < attributesCount; j++) {
+        out.writeShort(in.readUnsignedShort()); // name
+        int length = in.readInt();
+        out.writeInt(length);
+        byte[] info = new byte[length];
+        in.readFully(info);
+        out.write(info);
+      }
+    }
+  }
+
+  private static String replace(String value) {
+    String result = value;
+    for (String[] replacement : REPLACEMENTS) {
+      if (result.equals(replacement[0])) {
+        result = replacement[1];
+      } else if (result.indexOf('L' + replacement[0] + ';') != -1) {
+        // field and method descriptors
+        result = result.replace('L' + replacement[0] + ';', 'L'
+            + replacement[1] + ';');
+      }
+    }
+    return result;
+  }
+
+  private static String internalName(Class<?> c) {
+    return c.getName().replace('.', '/');
+  }
+}
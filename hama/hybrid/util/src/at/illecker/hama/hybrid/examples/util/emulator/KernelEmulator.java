@@ -0,0 +1,296 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.trifort.rootbeer.runtime.GpuDevice;
+import org.trifort.rootbeer.runtime.Kernel;
+import org.trifort.rootbeer.runtime.Rootbeer;
+
+/**
+ * Runs Rootbeer kernels on the CPU, e.g. on nodes without a GPU or to check
+ * the results of a kernel in a plain JVM.
+ *
+ * Every GPU thread is emulated by a task of a pool of at most maxThreads
+ * Java threads. The threads of a block are started together to support
+ * syncthreads, syncblocks requires the whole grid to fit into the pool. Each
+ * block has its own shared memory. HamaPeer calls are forwarded to the
+ * HamaPeerBackend, e.g. BSPHamaPeerBackend within a GPU task.
+ *
+ * <pre>
+ * KernelEmulator emulator = new KernelEmulator(blockSize, gridSize);
+ * emulator.setHamaPeerBackend(new LocalHamaPeerBackend());
+ * emulator.run(kernel);
+ * </pre>
+ */
+public class KernelEmulator {
+  // shared memory per block of compute capability 2.x and later
+  public static final int DEFAULT_SHARED_MEMORY_SIZE = 48 * 1024;
+  // maximum block size of compute capability 2.x and later
+  public static final int DEFAULT_MAX_THREADS = 1024;
+
+  private final int m_blockSize;
+  private final int m_gridSize;
+  private final int m_sharedMemorySize;
+  private final int m_maxThreads;
+  private final KernelClassLoader m_classLoader;
+  private HamaPeerBackend m_hamaPeerBackend = null;
+
+  public KernelEmulator(int blockSize, int gridSize) {
+    this(blockSize, gridSize, DEFAULT_SHARED_MEMORY_SIZE, DEFAULT_MAX_THREADS);
+  }
+
+  public KernelEmulator(int blockSize, int gridSize, int sharedMemorySize) {
+    this(blockSize, gridSize, sharedMemorySize, DEFAULT_MAX_THREADS);
+  }
+
+  public KernelEmulator(int blockSize, int gridSize, int sharedMemorySize,
+      int maxThreads) {
+    if (blockSize < 1 || gridSize < 1) {
+      throw new IllegalArgumentException("Invalid blockSize: " + blockSize
+          + " or gridSize: " + gridSize);
+    }
+    if (maxThreads < blockSize) {
+      throw new IllegalArgumentException("maxThreads: " + maxThreads
+          + " is smaller than blockSize: " + blockSize);
+    }
+    this.m_blockSize = blockSize;
+    this.m_gridSize = gridSize;
+    this.m_sharedMemorySize = sharedMemorySize;
+    this.m_maxThreads = maxThreads;
+    this.m_classLoader = new KernelClassLoader(
+        KernelEmulator.class.getClassLoader());
+  }
+
+  /**
+   * @return true if Rootbeer finds a GPU, otherwise kernels have to be run by
+   *         the KernelEmulator
+   */
+  public static boolean isGpuAvailable(Rootbeer rootbeer) {
+    try {
+      List<GpuDevice> devices = rootbeer.getDevices();
+      return (devices != null) && !devices.isEmpty();
+    } catch (RuntimeException e) {
+      return false;
+    } catch (UnsatisfiedLinkError e) {
+      // no CUDA driver
+      return false;
+    }
+  }
+
+  public void setHamaPeerBackend(HamaPeerBackend hamaPeerBackend) {
+    this.m_hamaPeerBackend = hamaPeerBackend;
+  }
+
+  /**
+   * Runs one kernel instance in all blockSize * gridSize threads.
+   */
+  public void run(Kernel kernel) {
+    Kernel emulated = emulatedInstance(kernel);
+    List<Kernel> kernels = Collections.nCopies(m_blockSize * m_gridSize,
+        emulated);
+    try {
+      execute(kernels, m_gridSize);
+    } finally {
+      if (emulated != kernel) {
+        copyFields(emulated, kernel);
+      }
+    }
+  }
+
+  /**
+   * Runs one kernel per thread, the grid size is derived from the number of
+   * kernels and the block size.
+   */
+  public void run(List<Kernel> kernels) {
+    List<Kernel> emulated = new ArrayList<Kernel>(kernels.size());
+    for (Kernel kernel : kernels) {
+      emulated.add(emulatedInstance(kernel));
+    }
+    try {
+      execute(emulated, (kernels.size() + m_blockSize - 1) / m_blockSize);
+    } finally {
+      for (int i = 0; i < kernels.size(); i++) {
+        if (emulated.get(i) != kernels.get(i)) {
+          copyFields(emulated.get(i), kernels.get(i));
+        }
+      }
+    }
+  }
+
+  private void execute(List<Kernel> kernels, int gridSize) {
+    final int numThreads = kernels.size();
+    final int poolSize = Math.min(numThreads, m_maxThreads);
+    // all blocks run at the same time only if the pool has a thread for each
+    final EmulatedRootbeerGpu.Barrier gridBarrier = (numThreads <= poolSize) ? new EmulatedRootbeerGpu.Barrier(
+        numThreads) : null;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final HamaPeerBackend hamaPeerBackend = m_hamaPeerBackend;
+
+    final List<EmulatedRootbeerGpu.Barrier> barriers = new ArrayList<EmulatedRootbeerGpu.Barrier>();
+    if (gridBarrier != null) {
+      barriers.add(gridBarrier);
+    }
+    List<EmulatedRootbeerGpu.ThreadContext> contexts = new ArrayList<EmulatedRootbeerGpu.ThreadContext>(
+        numThreads);
+    for (int block = 0; block < gridSize; block++) {
+      int blockThreads = Math.min(m_blockSize, numThreads
+          - (block * m_blockSize));
+      EmulatedRootbeerGpu.Barrier blockBarrier = new EmulatedRootbeerGpu.Barrier(
+          blockThreads);
+      barriers.add(blockBarrier);
+      ByteBuffer sharedMemory = ByteBuffer.allocate(m_sharedMemorySize);
+      Object[] sharedObjects = new Object[m_sharedMemorySize];
+      for (int thread = 0; thread < blockThreads; thread++) {
+        contexts.add(new EmulatedRootbeerGpu.ThreadContext(thread, block,
+            m_blockSize, gridSize, sharedMemory, sharedObjects, blockBarrier,
+            gridBarrier));
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(poolSize,
+        new ThreadFactory() {
+          private int m_threadCount = 0;
+
+          @Override
+          public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "KernelEmulator-thread-"
+                + (m_threadCount++));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try {
+      // The tasks are queued by block, a waiting thread of a block is taken
+      // before the threads of the next blocks, so syncthreads never waits for
+      // a thread which can not be started.
+      List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+      for (int i = 0; i < numThreads; i++) {
+        final Kernel kernel = kernels.get(i);
+        final EmulatedRootbeerGpu.ThreadContext context = contexts.get(i);
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            if (failure.get() != null) {
+              return;
+            }
+            EmulatedRootbeerGpu.setContext(context);
+            EmulatedHamaPeer.setBackend(hamaPeerBackend);
+            try {
+              kernel.gpuMethod();
+            } catch (Throwable e) {
+              // first failure wins, release all threads waiting at barriers
+              if (failure.compareAndSet(null, e)) {
+                for (EmulatedRootbeerGpu.Barrier barrier : barriers) {
+                  barrier.breakBarrier();
+                }
+              }
+            } finally {
+              EmulatedHamaPeer.setBackend(null);
+              EmulatedRootbeerGpu.setContext(null);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while running kernel", e);
+    } catch (ExecutionException e) {
+      // failures of the kernel are caught by the task
+      throw new IllegalStateException("Unable to run kernel", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (failure.get() != null) {
+      throw new RuntimeException("Kernel failed: " + failure.get(),
+          failure.get());
+    }
+  }
+
+  /**
+   * Creates an instance of the rewritten kernel class with the field values
+   * of the given kernel. The kernel itself is returned if its class has no
+   * references to RootbeerGpu or HamaPeer.
+   */
+  private Kernel emulatedInstance(Kernel kernel) {
+    try {
+      Class<?> emulatedClass = m_classLoader.loadClass(kernel.getClass()
+          .getName());
+      if (emulatedClass == kernel.getClass()) {
+        return kernel;
+      }
+      // the kernel constructor may do arbitrary work, copying fields is
+      // enough
+      Constructor<?> constructor = emulatedClass
+          .getDeclaredConstructor(KernelClassLoader.MARKER_CONSTRUCTOR_PARAMETER);
+      constructor.setAccessible(true);
+      Kernel emulated = (Kernel) constructor
+          .newInstance(new Object[] { null });
+      copyFields(kernel, emulated);
+      return emulated;
+
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Kernel class not found: "
+          + kernel.getClass().getName(), e);
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to create instance of "
+          + kernel.getClass().getName(), e);
+    }
+  }
+
+  private static void copyFields(Object from, Object to) {
+    Class<?> fromClass = from.getClass();
+    Class<?> toClass = to.getClass();
+    try {
+      while (fromClass != null && toClass != null
+          && fromClass != Object.class) {
+        for (Field fromField : fromClass.getDeclaredFields()) {
+          if (Modifier.isStatic(fromField.getModifiers())) {
+            continue;
+          }
+          Field toField = toClass.getDeclaredField(fromField.getName());
+          fromField.setAccessible(true);
+          toField.setAccessible(true);
+          toField.set(to, fromField.get(from));
+        }
+        fromClass = fromClass.getSuperclass();
+        toClass = toClass.getSuperclass();
+      }
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to copy fields of "
+          + from.getClass().getName(), e);
+    }
+  }
+}
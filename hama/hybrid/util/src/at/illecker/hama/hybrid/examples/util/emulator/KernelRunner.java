@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPPeer;
+import org.trifort.rootbeer.runtime.Context;
+import org.trifort.rootbeer.runtime.Kernel;
+import org.trifort.rootbeer.runtime.Rootbeer;
+import org.trifort.rootbeer.runtime.ThreadConfig;
+
+/**
+ * Runs the kernel of a GPU task on the GPU or, if the host has no GPU, on the
+ * CPU by the KernelEmulator. HamaPeer calls of emulated kernels are forwarded
+ * to the BSPPeer of the task.
+ *
+ * <pre>
+ * Context context = KernelRunner.run(peer, rootbeer, kernel, blockSize,
+ *     gridSize, false);
+ * if (context != null) {
+ *   // Rootbeer stats
+ * }
+ * </pre>
+ */
+public final class KernelRunner {
+  private static final Log LOG = LogFactory.getLog(KernelRunner.class);
+
+  private KernelRunner() {
+  }
+
+  /**
+   * Runs one kernel instance in all blockSize * gridSize threads.
+   * 
+   * @param gridSync true if the kernel calls syncblocks, the emulated grid is
+   *          then reduced to the blocks which can run at the same time
+   * @return the Rootbeer context or null if the kernel was emulated
+   */
+  public static <K1, V1, K2 extends Writable, V2 extends Writable, M extends Writable> Context run(
+      BSPPeer<K1, V1, K2, V2, M> peer, Rootbeer rootbeer, Kernel kernel,
+      int blockSize, int gridSize, boolean gridSync) {
+    return run(peer, rootbeer, kernel, blockSize, gridSize, gridSync, 0);
+  }
+
+  /**
+   * @param memorySize the GPU memory of the Rootbeer context in bytes, 0 for
+   *          the Rootbeer default
+   */
+  public static <K1, V1, K2 extends Writable, V2 extends Writable, M extends Writable> Context run(
+      BSPPeer<K1, V1, K2, V2, M> peer, Rootbeer rootbeer, Kernel kernel,
+      int blockSize, int gridSize, boolean gridSync, long memorySize) {
+
+    if (KernelEmulator.isGpuAvailable(rootbeer)) {
+      Context context = rootbeer.createDefaultContext();
+      if (memorySize > 0) {
+        context.init(memorySize);
+      }
+      rootbeer.run(kernel, new ThreadConfig(blockSize, gridSize, blockSize
+          * gridSize), context);
+      return context;
+    }
+
+    // syncblocks needs the whole grid to run at the same time
+    if (gridSync) {
+      gridSize = Math.max(1,
+          Math.min(gridSize, KernelEmulator.DEFAULT_MAX_THREADS / blockSize));
+    }
+    LOG.warn("No GPU found, emulating " + kernel.getClass().getSimpleName()
+        + " with blockSize: " + blockSize + " gridSize: " + gridSize);
+    KernelEmulator emulator = new KernelEmulator(blockSize, gridSize);
+    emulator.setHamaPeerBackend(new BSPHamaPeerBackend<K1, V1, K2, V2, M>(
+        peer));
+    emulator.run(kernel);
+    return null;
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.trifort.rootbeer.runtime.KeyValuePair;
+
+/**
+ * In-memory single peer backend to run kernels without Hama, e.g. to check
+ * the results of a kernel without a GPU. All messages are sent to this peer
+ * and are received after the next sync. Sequence files are opened with the
+ * given Configuration.
+ */
+public class LocalHamaPeerBackend implements HamaPeerBackend {
+  public static final String PEER_NAME = "local:0";
+
+  private final List<Object[]> m_input = new ArrayList<Object[]>();
+  private int m_inputIndex = 0;
+  private final List<Object[]> m_output = new ArrayList<Object[]>();
+
+  private List<Object> m_outgoingMessages = new ArrayList<Object>();
+  private final LinkedList<Object> m_currentMessages = new LinkedList<Object>();
+  private long m_superstepCount = 0;
+  private final SequenceFiles m_sequenceFiles;
+
+  public LocalHamaPeerBackend() {
+    this(new Configuration());
+  }
+
+  public LocalHamaPeerBackend(Configuration conf) {
+    this.m_sequenceFiles = new SequenceFiles(conf);
+  }
+
+  public void addInput(Object key, Object value) {
+    m_input.add(new Object[] { key, value });
+  }
+
+  /**
+   * @return the key value pairs written by the kernel
+   */
+  public List<Object[]> getOutput() {
+    return m_output;
+  }
+
+  @Override
+  public void send(String peerName, Object message) {
+    if (!PEER_NAME.equals(peerName)) {
+      throw new IllegalArgumentException("Unknown peer: " + peerName);
+    }
+    m_outgoingMessages.add(message);
+  }
+
+  @Override
+  public void sync() {
+    m_currentMessages.clear();
+    m_currentMessages.addAll(m_outgoingMessages);
+    m_outgoingMessages = new ArrayList<Object>();
+    m_superstepCount++;
+  }
+
+  @Override
+  public long getSuperstepCount() {
+    return m_superstepCount;
+  }
+
+  @Override
+  public int getNumCurrentMessages() {
+    return m_currentMessages.size();
+  }
+
+  @Override
+  public Object getCurrentMessage() {
+    return m_currentMessages.poll();
+  }
+
+  @Override
+  public String getPeerName() {
+    return PEER_NAME;
+  }
+
+  @Override
+  public String getPeerName(int index) {
+    return PEER_NAME;
+  }
+
+  @Override
+  public int getPeerIndex() {
+    return 0;
+  }
+
+  @Override
+  public String[] getAllPeerNames() {
+    return new String[] { PEER_NAME };
+  }
+
+  @Override
+  public int getNumPeers() {
+    return 1;
+  }
+
+  @Override
+  public boolean readNext(KeyValuePair keyValuePair) {
+    if (m_inputIndex >= m_input.size()) {
+      return false;
+    }
+    Object[] pair = m_input.get(m_inputIndex++);
+    keyValuePair.setKey(pair[0]);
+    keyValuePair.setValue(pair[1]);
+    return true;
+  }
+
+  @Override
+  public void reopenInput() {
+    m_inputIndex = 0;
+  }
+
+  @Override
+  public void write(Object key, Object value) {
+    m_output.add(new Object[] { key, value });
+  }
+
+  @Override
+  public int sequenceFileOpen(String path, char option, String keyType,
+      String valueType) {
+    return m_sequenceFiles.open(path, option, keyType, valueType);
+  }
+
+  @Override
+  public boolean sequenceFileReadNext(int fileId, KeyValuePair keyValuePair) {
+    return m_sequenceFiles.readNext(fileId, keyValuePair);
+  }
+
+  @Override
+  public boolean sequenceFileAppend(int fileId, Object key, Object value) {
+    return m_sequenceFiles.append(fileId, key, value);
+  }
+
+  @Override
+  public boolean sequenceFileClose(int fileId) {
+    return m_sequenceFiles.close(fileId);
+  }
+}
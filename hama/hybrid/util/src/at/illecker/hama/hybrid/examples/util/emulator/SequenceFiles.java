@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.trifort.rootbeer.runtime.KeyValuePair;
+
+/**
+ * Sequence files opened by emulated kernels, like the Hama Pipes protocol
+ * opens them for the HamaPeer.sequenceFile* calls.
+ */
+final class SequenceFiles {
+  private final Configuration m_conf;
+  private final Map<Integer, SequenceFile.Reader> m_readers = new HashMap<Integer, SequenceFile.Reader>();
+  private final Map<Integer, Writable[]> m_readerPairs = new HashMap<Integer, Writable[]>();
+  private final Map<Integer, SequenceFile.Writer> m_writers = new HashMap<Integer, SequenceFile.Writer>();
+  private final Map<Integer, Writable[]> m_writerPairs = new HashMap<Integer, Writable[]>();
+  private int m_nextId = 0;
+
+  SequenceFiles(Configuration conf) {
+    this.m_conf = conf;
+  }
+
+  private Writable newInstance(String className) throws IOException {
+    try {
+      return (Writable) ReflectionUtils.newInstance(
+          m_conf.getClassByName(className), m_conf);
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return the id of the opened file, -1 if the option is neither 'r' nor
+   *         'w'
+   */
+  int open(String path, char option, String keyType, String valueType) {
+    try {
+      Path file = new Path(path);
+      FileSystem fs = file.getFileSystem(m_conf);
+      Writable[] pair = new Writable[] { newInstance(keyType),
+          newInstance(valueType) };
+      if (option == 'r') {
+        m_readers.put(m_nextId, new SequenceFile.Reader(fs, file, m_conf));
+        m_readerPairs.put(m_nextId, pair);
+      } else if (option == 'w') {
+        m_writers.put(m_nextId, SequenceFile.createWriter(fs, m_conf, file,
+            pair[0].getClass(), pair[1].getClass()));
+        m_writerPairs.put(m_nextId, pair);
+      } else {
+        return -1;
+      }
+      return m_nextId++;
+    } catch (IOException e) {
+      throw new IllegalStateException("Sequence file " + path
+          + " could not be opened", e);
+    }
+  }
+
+  boolean readNext(int fileId, KeyValuePair keyValuePair) {
+    SequenceFile.Reader reader = m_readers.get(fileId);
+    if (reader == null) {
+      return false;
+    }
+    Writable[] pair = m_readerPairs.get(fileId);
+    try {
+      if (!reader.next(pair[0], pair[1])) {
+        return false;
+      }
+      keyValuePair.setKey(WritableConverter.toObject(pair[0],
+          keyValuePair.getKey()));
+      keyValuePair.setValue(WritableConverter.toObject(pair[1],
+          keyValuePair.getValue()));
+      return true;
+    } catch (IOException e) {
+      throw new IllegalStateException("Sequence file " + fileId
+          + " could not be read", e);
+    }
+  }
+
+  boolean append(int fileId, Object key, Object value) {
+    SequenceFile.Writer writer = m_writers.get(fileId);
+    if (writer == null) {
+      return false;
+    }
+    Writable[] pair = m_writerPairs.get(fileId);
+    try {
+      WritableConverter.toWritable(key, pair[0]);
+      WritableConverter.toWritable(value, pair[1]);
+      writer.append(pair[0], pair[1]);
+      return true;
+    } catch (IOException e) {
+      throw new IllegalStateException("Sequence file " + fileId
+          + " could not be written", e);
+    }
+  }
+
+  boolean close(int fileId) {
+    try {
+      SequenceFile.Reader reader = m_readers.remove(fileId);
+      if (reader != null) {
+        m_readerPairs.remove(fileId);
+        reader.close();
+        return true;
+      }
+      SequenceFile.Writer writer = m_writers.remove(fileId);
+      if (writer != null) {
+        m_writerPairs.remove(fileId);
+        writer.close();
+        return true;
+      }
+      return false;
+    } catch (IOException e) {
+      throw new IllegalStateException("Sequence file " + fileId
+          + " could not be closed", e);
+    }
+  }
+}
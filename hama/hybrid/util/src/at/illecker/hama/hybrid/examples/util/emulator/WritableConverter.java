@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.emulator;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Converts between Writables and the values kernels exchange with HamaPeer,
+ * like the Hama Pipes protocol does. Text, IntWritable, LongWritable,
+ * FloatWritable and DoubleWritable are passed as String, Integer, Long, Float
+ * and Double. Other Writables have to write themselves as a string, e.g.
+ * PipesVectorWritable, and are passed as that string.
+ */
+final class WritableConverter {
+
+  private WritableConverter() {
+  }
+
+  /**
+   * @param type the type requested by the kernel, e.g. the current key of a
+   *          KeyValuePair, or null for the type of the Writable
+   */
+  static Object toObject(Writable writable, Object type) throws IOException {
+    if (writable == null || writable instanceof NullWritable) {
+      return null;
+    }
+    Object value;
+    if (writable instanceof Text) {
+      value = writable.toString();
+    } else if (writable instanceof IntWritable) {
+      value = ((IntWritable) writable).get();
+    } else if (writable instanceof LongWritable) {
+      value = ((LongWritable) writable).get();
+    } else if (writable instanceof FloatWritable) {
+      value = ((FloatWritable) writable).get();
+    } else if (writable instanceof DoubleWritable) {
+      value = ((DoubleWritable) writable).get();
+    } else {
+      DataOutputBuffer out = new DataOutputBuffer();
+      writable.write(out);
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(out.getData(), out.getLength());
+      value = Text.readString(in);
+    }
+
+    if (type instanceof String) {
+      return value.toString();
+    } else if (type instanceof Integer) {
+      return (value instanceof Number) ? ((Number) value).intValue() : Integer
+          .parseInt(value.toString());
+    } else if (type instanceof Long) {
+      return (value instanceof Number) ? ((Number) value).longValue() : Long
+          .parseLong(value.toString());
+    } else if (type instanceof Float) {
+      return (value instanceof Number) ? ((Number) value).floatValue() : Float
+          .parseFloat(value.toString());
+    } else if (type instanceof Double) {
+      return (value instanceof Number) ? ((Number) value).doubleValue()
+          : Double.parseDouble(value.toString());
+    }
+    return value;
+  }
+
+  /**
+   * Sets the Writable to the value sent or written by a kernel.
+   */
+  static void toWritable(Object value, Writable writable) throws IOException {
+    if (writable instanceof NullWritable) {
+      return;
+    }
+    if (value == null) {
+      throw new IllegalArgumentException("Kernel value is null for "
+          + writable.getClass().getName());
+    }
+    if (writable instanceof Text) {
+      ((Text) writable).set(value.toString());
+    } else if (writable instanceof IntWritable) {
+      ((IntWritable) writable).set((value instanceof Number) ? ((Number) value)
+          .intValue() : Integer.parseInt(value.toString()));
+    } else if (writable instanceof LongWritable) {
+      ((LongWritable) writable)
+          .set((value instanceof Number) ? ((Number) value).longValue() : Long
+              .parseLong(value.toString()));
+    } else if (writable instanceof FloatWritable) {
+      ((FloatWritable) writable)
+          .set((value instanceof Number) ? ((Number) value).floatValue()
+              : Float.parseFloat(value.toString()));
+    } else if (writable instanceof DoubleWritable) {
+      ((DoubleWritable) writable)
+          .set((value instanceof Number) ? ((Number) value).doubleValue()
+              : Double.parseDouble(value.toString()));
+    } else {
+      // the Writable reads the value as the pipes protocol writes it
+      DataOutputBuffer out = new DataOutputBuffer();
+      if (value instanceof Integer) {
+        WritableUtils.writeVInt(out, (Integer) value);
+      } else if (value instanceof Long) {
+        WritableUtils.writeVLong(out, (Long) value);
+      } else if (value instanceof Float) {
+        out.writeFloat((Float) value);
+      } else if (value instanceof Double) {
+        out.writeDouble((Double) value);
+      } else {
+        Text.writeString(out, value.toString());
+      }
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(out.getData(), out.getLength());
+      writable.readFields(in);
+    }
+  }
+}
@@ -0,0 +1,413 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Columnar block file of dense vectors with a fixed dimension and an
+ * optional int key per vector, e.g. the row index of a matrix.
+ *
+ * The vectors are stored in blocks. A block holds the key column followed by
+ * the vectors as contiguous doubles, so a whole block is decoded into
+ * primitive arrays at once instead of reading each double of each record.
+ * Blocks can be compressed with a Hadoop CompressionCodec. A footer indexes
+ * the offset and the record count of each block, the file is split at block
+ * boundaries.
+ *
+ * <pre>
+ * header: magic, version, dimension, hasKeys, codec class name or ""
+ * block:  rows, stored bytes, raw bytes, keys (int[rows]),
+ *         vectors (double[rows * dimension])
+ * footer: block count, (offset, rows) per block, record count
+ * tail:   footer offset, magic
+ * </pre>
+ */
+public final class VectorBlockFile {
+  // target raw size of a block
+  public static final String CONF_BLOCK_SIZE = "vectorblock.block.size";
+  public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+  private static final byte[] MAGIC = { 'V', 'B', 'L', 'K' };
+  private static final byte VERSION = 1;
+  private static final int TAIL_SIZE = 8 + MAGIC.length;
+
+  private VectorBlockFile() {
+  }
+
+  /**
+   * Writes vectors of one dimension, which is set by the first vector.
+   */
+  public static final class Writer implements Closeable {
+    private final FSDataOutputStream m_out;
+    private final boolean m_hasKeys;
+    private final CompressionCodec m_codec;
+    private final int m_blockSize;
+
+    private int m_dimension = -1;
+    private int m_blockRows;
+    private int m_rows = 0;
+    private int[] m_keys;
+    private double[] m_vectors;
+    private ByteBuffer m_buffer;
+    private ByteArrayOutputStream m_compressed;
+
+    private long[] m_blockOffsets = new long[16];
+    private int[] m_blockCounts = new int[16];
+    private int m_blockCount = 0;
+    private long m_recordCount = 0;
+
+    /**
+     * @param hasKeys store an int key per vector
+     * @param codec the block compression or null
+     */
+    public Writer(FileSystem fs, Configuration conf, Path path,
+        boolean hasKeys, CompressionCodec codec) throws IOException {
+      this.m_out = fs.create(path);
+      this.m_hasKeys = hasKeys;
+      this.m_codec = codec;
+      this.m_blockSize = conf.getInt(CONF_BLOCK_SIZE, DEFAULT_BLOCK_SIZE);
+    }
+
+    public void append(double[] vector) throws IOException {
+      append(0, vector);
+    }
+
+    public void append(int key, double[] vector) throws IOException {
+      if (m_dimension < 0) {
+        start(vector.length);
+      } else if (vector.length != m_dimension) {
+        throw new IllegalArgumentException("Vector dimension "
+            + vector.length + " does not match file dimension " + m_dimension);
+      }
+      m_keys[m_rows] = key;
+      System.arraycopy(vector, 0, m_vectors, m_rows * m_dimension,
+          m_dimension);
+      m_rows++;
+      if (m_rows == m_blockRows) {
+        writeBlock();
+      }
+    }
+
+    private void start(int dimension) throws IOException {
+      if (dimension <= 0) {
+        throw new IllegalArgumentException("Dimension must be positive: "
+            + dimension);
+      }
+      m_dimension = dimension;
+      final int rowBytes = (m_hasKeys ? 4 : 0) + 8 * dimension;
+      m_blockRows = Math.max(1, m_blockSize / rowBytes);
+      m_keys = new int[m_blockRows];
+      m_vectors = new double[m_blockRows * dimension];
+      m_buffer = ByteBuffer.allocate(m_blockRows * rowBytes);
+      writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+      m_out.write(MAGIC);
+      m_out.writeByte(VERSION);
+      m_out.writeInt(Math.max(0, m_dimension));
+      m_out.writeBoolean(m_hasKeys);
+      m_out.writeUTF((m_codec != null) ? m_codec.getClass().getName() : "");
+    }
+
+    private void writeBlock() throws IOException {
+      m_buffer.clear();
+      if (m_hasKeys) {
+        m_buffer.asIntBuffer().put(m_keys, 0, m_rows);
+        m_buffer.position(4 * m_rows);
+      }
+      m_buffer.asDoubleBuffer().put(m_vectors, 0, m_rows * m_dimension);
+      final int rawBytes = m_buffer.position() + 8 * m_rows * m_dimension;
+
+      byte[] bytes = m_buffer.array();
+      int storedBytes = rawBytes;
+      if (m_codec != null) {
+        if (m_compressed == null) {
+          m_compressed = new ByteArrayOutputStream(rawBytes);
+        }
+        m_compressed.reset();
+        Compressor compressor = CodecPool.getCompressor(m_codec);
+        try {
+          CompressionOutputStream out = m_codec.createOutputStream(
+              m_compressed, compressor);
+          out.write(bytes, 0, rawBytes);
+          out.finish();
+          out.close();
+        } finally {
+          CodecPool.returnCompressor(compressor);
+        }
+        bytes = m_compressed.toByteArray();
+        storedBytes = bytes.length;
+      }
+
+      if (m_blockCount == m_blockOffsets.length) {
+        m_blockOffsets = Arrays.copyOf(m_blockOffsets, 2 * m_blockCount);
+        m_blockCounts = Arrays.copyOf(m_blockCounts, 2 * m_blockCount);
+      }
+      m_blockOffsets[m_blockCount] = m_out.getPos();
+      m_blockCounts[m_blockCount] = m_rows;
+      m_blockCount++;
+
+      m_out.writeInt(m_rows);
+      m_out.writeInt(storedBytes);
+      m_out.writeInt(rawBytes);
+      m_out.write(bytes, 0, storedBytes);
+      m_recordCount += m_rows;
+      m_rows = 0;
+    }
+
+    public long getRecordCount() {
+      return m_recordCount + m_rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (m_dimension < 0) {
+        // empty file
+        writeHeader();
+      } else if (m_rows > 0) {
+        writeBlock();
+      }
+      final long footerOffset = m_out.getPos();
+      m_out.writeInt(m_blockCount);
+      for (int i = 0; i < m_blockCount; i++) {
+        m_out.writeLong(m_blockOffsets[i]);
+        m_out.writeInt(m_blockCounts[i]);
+      }
+      m_out.writeLong(m_recordCount);
+      m_out.writeLong(footerOffset);
+      m_out.write(MAGIC);
+      m_out.close();
+    }
+  }
+
+  /**
+   * Reads the blocks starting within a byte range of a file, so the splits
+   * of a file read every block exactly once.
+   */
+  public static final class Reader implements Closeable {
+    private final FSDataInputStream m_in;
+    private final int m_dimension;
+    private final boolean m_hasKeys;
+    private final CompressionCodec m_codec;
+    private final long m_recordCount;
+
+    private final long[] m_blockOffsets;
+    private final int[] m_blockCounts;
+    // blocks of the range
+    private int m_block;
+    private final int m_endBlock;
+    private long m_rangeRecords = 0;
+
+    private int m_rows = 0;
+    private int[] m_keys = new int[0];
+    private double[] m_vectors = new double[0];
+    private byte[] m_bytes = new byte[0];
+
+    public Reader(FileSystem fs, Configuration conf, Path path)
+        throws IOException {
+      this(fs, conf, path, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads all blocks whose offset is in [start, start + length).
+     */
+    public Reader(FileSystem fs, Configuration conf, Path path, long start,
+        long length) throws IOException {
+      final long fileLength = fs.getFileStatus(path).getLen();
+      m_in = fs.open(path);
+      try {
+        final byte[] magic = new byte[MAGIC.length];
+        m_in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+          throw new IOException(path + " is not a vector block file!");
+        }
+        final byte version = m_in.readByte();
+        if (version != VERSION) {
+          throw new IOException("Unsupported version " + version + " of "
+              + path);
+        }
+        m_dimension = m_in.readInt();
+        m_hasKeys = m_in.readBoolean();
+        final String codecClass = m_in.readUTF();
+        if (codecClass.isEmpty()) {
+          m_codec = null;
+        } else {
+          try {
+            m_codec = (CompressionCodec) ReflectionUtils.newInstance(
+                conf.getClassByName(codecClass), conf);
+          } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown codec " + codecClass + " of "
+                + path, e);
+          }
+        }
+
+        m_in.seek(fileLength - TAIL_SIZE);
+        final long footerOffset = m_in.readLong();
+        m_in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+          throw new IOException(path + " is truncated!");
+        }
+        m_in.seek(footerOffset);
+        final int blockCount = m_in.readInt();
+        m_blockOffsets = new long[blockCount];
+        m_blockCounts = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+          m_blockOffsets[i] = m_in.readLong();
+          m_blockCounts[i] = m_in.readInt();
+        }
+        m_recordCount = m_in.readLong();
+      } catch (IOException e) {
+        IOUtils.closeStream(m_in);
+        throw e;
+      }
+
+      final long end = (length == Long.MAX_VALUE) ? Long.MAX_VALUE : start
+          + length;
+      int block = 0;
+      while (block < m_blockOffsets.length && m_blockOffsets[block] < start) {
+        block++;
+      }
+      m_block = block;
+      while (block < m_blockOffsets.length && m_blockOffsets[block] < end) {
+        m_rangeRecords += m_blockCounts[block];
+        block++;
+      }
+      m_endBlock = block;
+    }
+
+    /**
+     * Decodes the next block of the range.
+     *
+     * @return false if there is no block left
+     */
+    public boolean nextBlock() throws IOException {
+      if (m_block >= m_endBlock) {
+        m_rows = 0;
+        return false;
+      }
+      m_in.seek(m_blockOffsets[m_block++]);
+      final int rows = m_in.readInt();
+      final int storedBytes = m_in.readInt();
+      final int rawBytes = m_in.readInt();
+
+      if (m_bytes.length < rawBytes) {
+        m_bytes = new byte[rawBytes];
+      }
+      if (m_codec == null) {
+        m_in.readFully(m_bytes, 0, rawBytes);
+      } else {
+        final byte[] stored = new byte[storedBytes];
+        m_in.readFully(stored);
+        Decompressor decompressor = CodecPool.getDecompressor(m_codec);
+        try {
+          InputStream in = m_codec.createInputStream(
+              new ByteArrayInputStream(stored), decompressor);
+          new DataInputStream(in).readFully(m_bytes, 0, rawBytes);
+          in.close();
+        } finally {
+          CodecPool.returnDecompressor(decompressor);
+        }
+      }
+
+      if (m_keys.length < rows) {
+        m_keys = new int[rows];
+        m_vectors = new double[rows * m_dimension];
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(m_bytes, 0, rawBytes);
+      if (m_hasKeys) {
+        buffer.asIntBuffer().get(m_keys, 0, rows);
+        buffer.position(4 * rows);
+      } else {
+        Arrays.fill(m_keys, 0, rows, 0);
+      }
+      buffer.slice().asDoubleBuffer().get(m_vectors, 0, rows * m_dimension);
+      m_rows = rows;
+      return true;
+    }
+
+    /**
+     * @return the rows of the current block
+     */
+    public int getRows() {
+      return m_rows;
+    }
+
+    /**
+     * @return the keys of the current block, 0 if the file has no keys
+     */
+    public int[] getKeys() {
+      return m_keys;
+    }
+
+    /**
+     * @return the vectors of the current block, row i starts at index i *
+     *         getDimension()
+     */
+    public double[] getVectors() {
+      return m_vectors;
+    }
+
+    public int getDimension() {
+      return m_dimension;
+    }
+
+    public boolean hasKeys() {
+      return m_hasKeys;
+    }
+
+    /**
+     * @return the number of records of the file
+     */
+    public long getRecordCount() {
+      return m_recordCount;
+    }
+
+    /**
+     * @return the number of records of the byte range
+     */
+    public long getRangeRecordCount() {
+      return m_rangeRecords;
+    }
+
+    @Override
+    public void close() throws IOException {
+      m_in.close();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.bsp.BSPJob;
+import org.apache.hama.bsp.FileInputFormat;
+import org.apache.hama.bsp.FileSplit;
+import org.apache.hama.bsp.InputSplit;
+import org.apache.hama.bsp.RecordReader;
+import org.apache.hama.commons.io.VectorWritable;
+import org.apache.hama.commons.math.DenseDoubleVector;
+
+/**
+ * Reads {@link VectorBlockFile}s. The vector is set to the key or the value
+ * which is a VectorWritable (e.g. PipesVectorWritable), the int key of the
+ * file to an IntWritable, any other Writable (e.g. NullWritable) is left
+ * unchanged.
+ *
+ * <pre>
+ * job.setInputFormat(VectorBlockInputFormat.class);
+ * job.setInputKeyClass(PipesVectorWritable.class);
+ * job.setInputValueClass(NullWritable.class);
+ * </pre>
+ */
+public class VectorBlockInputFormat<K extends Writable, V extends Writable>
+    extends FileInputFormat<K, V> {
+
+  @Override
+  public RecordReader<K, V> getRecordReader(InputSplit split, BSPJob job)
+      throws IOException {
+    return new VectorBlockRecordReader<K, V>((FileSplit) split, job);
+  }
+
+  private static final class VectorBlockRecordReader<K extends Writable, V extends Writable>
+      implements RecordReader<K, V> {
+    private final BSPJob m_job;
+    private final VectorBlockFile.Reader m_reader;
+    private final int m_dimension;
+    private long m_records = 0;
+    // row within the current block
+    private int m_row = 0;
+
+    VectorBlockRecordReader(FileSplit split, BSPJob job) throws IOException {
+      this.m_job = job;
+      Path path = split.getPath();
+      this.m_reader = new VectorBlockFile.Reader(path.getFileSystem(job
+          .getConfiguration()), job.getConfiguration(), path,
+          split.getStart(), split.getLength());
+      this.m_dimension = m_reader.getDimension();
+    }
+
+    @Override
+    public boolean next(K key, V value) throws IOException {
+      while (m_row >= m_reader.getRows()) {
+        if (!m_reader.nextBlock()) {
+          return false;
+        }
+        m_row = 0;
+      }
+      set(key);
+      set(value);
+      m_row++;
+      m_records++;
+      return true;
+    }
+
+    private void set(Writable writable) {
+      if (writable instanceof VectorWritable) {
+        final int offset = m_row * m_dimension;
+        ((VectorWritable) writable).set(new DenseDoubleVector(Arrays
+            .copyOfRange(m_reader.getVectors(), offset, offset + m_dimension)));
+      } else if (writable instanceof IntWritable) {
+        ((IntWritable) writable).set(m_reader.getKeys()[m_row]);
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public K createKey() {
+      return (K) ReflectionUtils.newInstance(m_job.getInputKeyClass(),
+          m_job.getConfiguration());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V createValue() {
+      return (V) ReflectionUtils.newInstance(m_job.getInputValueClass(),
+          m_job.getConfiguration());
+    }
+
+    @Override
+    public long getPos() throws IOException {
+      return m_records;
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+      final long total = m_reader.getRangeRecordCount();
+      return (total == 0) ? 1.0f : Math.min(1.0f, m_records / (float) total);
+    }
+
+    @Override
+    public void close() throws IOException {
+      m_reader.close();
+    }
+  }
+
+}
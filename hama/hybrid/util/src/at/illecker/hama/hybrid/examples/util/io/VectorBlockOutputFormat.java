@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.illecker.hama.hybrid.examples.util.io;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.bsp.BSPJob;
+import org.apache.hama.bsp.FileOutputFormat;
+import org.apache.hama.bsp.RecordWriter;
+import org.apache.hama.commons.io.VectorWritable;
+
+/**
+ * Writes {@link VectorBlockFile}s. The key or the value has to be a
+ * VectorWritable, an IntWritable key or value is stored as the int key. The
+ * blocks are compressed if FileOutputFormat.setCompressOutput is set.
+ */
+public class VectorBlockOutputFormat<K extends Writable, V extends Writable>
+    extends FileOutputFormat<K, V> {
+
+  @Override
+  public RecordWriter<K, V> getRecordWriter(FileSystem ignored, BSPJob job,
+      String name) throws IOException {
+    Path file = getTaskOutputPath(job, name);
+    FileSystem fs = file.getFileSystem(job.getConfiguration());
+
+    CompressionCodec codec = null;
+    if (getCompressOutput(job)) {
+      Class<? extends CompressionCodec> codecClass = getOutputCompressorClass(
+          job, DefaultCodec.class);
+      codec = ReflectionUtils.newInstance(codecClass, job.getConfiguration());
+    }
+    final boolean hasKeys = IntWritable.class.isAssignableFrom(job
+        .getOutputKeyClass())
+        || IntWritable.class.isAssignableFrom(job.getOutputValueClass());
+
+    final VectorBlockFile.Writer writer = new VectorBlockFile.Writer(fs,
+        job.getConfiguration(), file, hasKeys, codec);
+
+    return new RecordWriter<K, V>() {
+      @Override
+      public void write(K key, V value) throws IOException {
+        VectorWritable vector = (key instanceof VectorWritable) ? (VectorWritable) key
+            : (VectorWritable) value;
+        int intKey = 0;
+        if (key instanceof IntWritable) {
+          intKey = ((IntWritable) key).get();
+        } else if (value instanceof IntWritable) {
+          intKey = ((IntWritable) value).get();
+        }
+        writer.append(intKey, vector.getVector().toArray());
+      }
+
+      @Override
+      public void close() throws IOException {
+        writer.close();
+      }
+    };
+  }
+
+}
@@ -50,6 +50,7 @@ import org.apache.hama.commons.util.KeyValuePair;
 
 import at.illecker.hama.rootbeer.examples.matrixmultiplication.util.DistributedRowMatrix;
 import at.illecker.hama.rootbeer.examples.matrixmultiplication.util.MatrixRowMessage;
+import at.illecker.hama.hybrid.examples.util.broadcast.TreeBroadcast;
 
 public class MatrixMultiplicationBSPCpu
     extends
@@ -60,6 +61,8 @@ public class MatrixMultiplicationBSPCpu
 
   public static final String CONF_DEBUG = "matrixmultiplication.bsp.cpu.debug";
   public static final String CONF_MATRIX_MULT_B_PATH = "matrixmultiplication.bsp.cpu.B.path";
+  // only peer 0 reads matrix B and broadcasts it to all other peers
+  public static final String CONF_MATRIX_MULT_B_BROADCAST = "matrixmultiplication.bsp.cpu.B.broadcast";
 
   private static final Path OUTPUT_DIR = new Path(
       "output/hama/rootbeer/examples/matrixmultiplication/CPU-"
@@ -76,6 +79,7 @@ public class MatrixMultiplicationBSPCpu
   private boolean m_isDebuggingEnabled;
   private FSDataOutputStream m_logger;
   private String m_masterTask;
+  private boolean m_broadcastB;
   private List<KeyValuePair<Integer, DoubleVector>> m_bColumns = new ArrayList<KeyValuePair<Integer, DoubleVector>>();
 
   @Override
@@ -106,7 +110,15 @@ public class MatrixMultiplicationBSPCpu
       }
     }
 
-    // Receive transposed Matrix B
+    // Read transposed Matrix B, the other peers receive it in the first
+    // superstep if it is broadcast
+    this.m_broadcastB = conf.getBoolean(CONF_MATRIX_MULT_B_BROADCAST, false);
+    if (!m_broadcastB || peer.getPeerIndex() == 0) {
+      readMatrixB(conf);
+    }
+  }
+
+  private void readMatrixB(Configuration conf) throws IOException {
     SequenceFile.Reader reader = new SequenceFile.Reader(FileSystem.get(conf),
         new Path(conf.get(CONF_MATRIX_MULT_B_PATH)), conf);
 
@@ -124,11 +136,41 @@ public class MatrixMultiplicationBSPCpu
     reader.close();
   }
 
+  /**
+   * Spreads the columns of B read by peer 0 to all other peers, see
+   * TreeBroadcast.
+   */
+  private void broadcastMatrixB(
+      BSPPeer<IntWritable, PipesVectorWritable, IntWritable, PipesVectorWritable, MatrixRowMessage> peer)
+      throws IOException, SyncException, InterruptedException {
+
+    List<MatrixRowMessage> chunks = null;
+    if (peer.getPeerIndex() == 0) {
+      chunks = new ArrayList<MatrixRowMessage>(m_bColumns.size());
+      for (KeyValuePair<Integer, DoubleVector> bColumn : m_bColumns) {
+        chunks.add(new MatrixRowMessage(bColumn.getKey(), bColumn.getValue()));
+      }
+    }
+
+    chunks = TreeBroadcast.broadcast(peer, 0, chunks);
+
+    if (peer.getPeerIndex() != 0) {
+      for (MatrixRowMessage chunk : chunks) {
+        m_bColumns.add(new KeyValuePair<Integer, DoubleVector>(chunk
+            .getRowIndex(), chunk.getRowValues()));
+      }
+    }
+  }
+
   @Override
   public void bsp(
       BSPPeer<IntWritable, PipesVectorWritable, IntWritable, PipesVectorWritable, MatrixRowMessage> peer)
       throws IOException, SyncException, InterruptedException {
 
+    if (m_broadcastB) {
+      broadcastMatrixB(peer);
+    }
+
     IntWritable aKey = new IntWritable();
     PipesVectorWritable aVector = new PipesVectorWritable();
     // while for each row of matrix A